@@ -1,7 +1,10 @@
 package starspire;
 
 import starspire.controllers.EntityExtractorWrapper;
+import starspire.controllers.ExtractionCache;
+import starspire.controllers.InteractionPipeline;
 import starspire.controllers.StarSpireController;
+import starspire.models.DataModel;
 import java.util.logging.*;
 import javax.swing.*;
 import java.awt.event.*;
@@ -11,6 +14,8 @@ import java.util.ArrayList;
 import org.json.JSONException;
 import java.util.prefs.*;
 import java.awt.event.KeyEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.lang.reflect.*;
 
 /**
@@ -58,6 +63,11 @@ public class StarSpireApp extends JFrame implements ComponentListener {
     private JMenuItem docView;
     private JMenuItem entView;
     private JMenuItem databaseView;
+    /*
+     * Shows the progress of background interactions (retrievals, searches...)
+     */
+    private JProgressBar interactionProgress;
+    private PropertyChangeListener interactionListener;
     /*
      * Application Actions
      */
@@ -69,6 +79,7 @@ public class StarSpireApp extends JFrame implements ComponentListener {
     private Action projectOpen;
     private Action projectSave;
     private Action projectSaveAs;
+    private JCheckBoxMenuItem autoSaveItem;
     private Action projectClose;
     private Action appQuit;
 
@@ -80,6 +91,47 @@ public class StarSpireApp extends JFrame implements ComponentListener {
         return MacOS;
     }
 
+    /**
+     * Reads where documents keep their content from the "content_storage"
+     * preference (MAPPED, COMPRESSED or HEAP), mapped by default.
+     */
+    private void loadContentStorage() {
+        String storage = prefs.get("content_storage", DataModel.ContentStorage.MAPPED.name());
+        try {
+            DataModel.setDefaultContentStorage(DataModel.ContentStorage.valueOf(storage));
+        } catch (IllegalArgumentException ex) {
+            logger.log(Level.WARNING, "Unknown content storage {0}, using the default", storage);
+        }
+    }
+
+    /**
+     * Reads how many entity extractors can run at once from the
+     * "extractor_pool_size" preference, one per core by default.
+     */
+    private void loadExtractorPoolSize() {
+        int size = prefs.getInt("extractor_pool_size", Runtime.getRuntime().availableProcessors());
+        EntityExtractorWrapper.setPoolSize(size);
+    }
+
+    /**
+     * Opens the cache of extracted entities, in the "entity_cache_dir"
+     * preference folder (~/.starspire/entities by default) and capped at
+     * "entity_cache_size_mb" megabytes. Size 0 turns the cache off.
+     */
+    private void loadExtractionCache() {
+        int mb = prefs.getInt("entity_cache_size_mb", 64);
+        if (mb <= 0) {
+            return;
+        }
+        File dir = new File(prefs.get("entity_cache_dir", ExtractionCache.DEFAULT_ROOT.getPath()));
+        try {
+            EntityExtractorWrapper.setCache(new ExtractionCache(dir,
+                    EntityExtractorWrapper.getConfiguration(), mb * 1024L * 1024L));
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Entity cache disabled", ex);
+        }
+    }
+
     /**
      * Returns a copy of the preference object.
      * @return prefs...
@@ -96,6 +148,9 @@ public class StarSpireApp extends JFrame implements ComponentListener {
          * Load Preferences
          */
         addComponentListener(this);
+        loadContentStorage();
+        loadExtractorPoolSize();
+        loadExtractionCache();
 
         /*
          * Set debug options
@@ -128,6 +183,28 @@ public class StarSpireApp extends JFrame implements ComponentListener {
         //Set layout
         getContentPane().setLayout(new BorderLayout());
 
+        //progress of the background interactions
+        interactionProgress = new JProgressBar(0, 100);
+        interactionProgress.setStringPainted(true);
+        interactionProgress.setVisible(false);
+        getContentPane().add(interactionProgress, BorderLayout.SOUTH);
+        interactionListener = new PropertyChangeListener() {
+
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName())) {
+                    interactionProgress.setValue((Integer) evt.getNewValue());
+                } else if (InteractionPipeline.INTERACTION_PROPERTY.equals(evt.getPropertyName())) {
+                    if (evt.getNewValue() == null) {
+                        interactionProgress.setVisible(false);
+                    } else {
+                        interactionProgress.setValue(0);
+                        interactionProgress.setString(evt.getNewValue() + "...");
+                        interactionProgress.setVisible(true);
+                    }
+                }
+            }
+        };
+
         //pack
         pack();
 
@@ -391,6 +468,21 @@ public class StarSpireApp extends JFrame implements ComponentListener {
         JMenuItem saveAsItem = new JMenuItem(projectSaveAs);
         fileMenu.add(saveAsItem);
 
+        /*
+         * Autosave, kept in the "autosave" preference
+         */
+        autoSaveItem = new JCheckBoxMenuItem("Autosave", prefs.getBoolean("autosave", false));
+        autoSaveItem.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                prefs.putBoolean("autosave", autoSaveItem.isSelected());
+                if (currentProject != null) {
+                    currentProject.setAutoSave(autoSaveItem.isSelected());
+                }
+            }
+        });
+        fileMenu.add(autoSaveItem);
+
         /*
          * Close
          */
@@ -431,15 +523,26 @@ public class StarSpireApp extends JFrame implements ComponentListener {
             if (reply == JOptionPane.YES_OPTION) {
                 setVisible(false);
                 dispose();
+                waitForSaves();
                 System.exit(0);
             }
         } else {
             setVisible(false);
             dispose();
+            waitForSaves();
             System.exit(0);
         }
     }
 
+    /**
+     * Saves are written in the background, let them finish before exiting.
+     */
+    private void waitForSaves() {
+        for (StarSpireController p : openProjects) {
+            p.waitForSaves();
+        }
+    }
+
     /**
      * This initializes the view menu
      */
@@ -634,7 +737,9 @@ public class StarSpireApp extends JFrame implements ComponentListener {
                 currentProject.save();
             }
         }
+        currentProject.removeInteractionListener(interactionListener);
         currentProject.close();
+        interactionProgress.setVisible(false);
 
         getContentPane().remove(currentProject.getGraphView());
         //getContentPane().remove(currentDoc.getActionToolBar());
@@ -689,7 +794,7 @@ public class StarSpireApp extends JFrame implements ComponentListener {
             closeProject();
         }
 
-        File file = StarSpireUtility.openFile("Open Drawing", "last_open_path", StarSpireUtility.EXT_FILTER_JSON);
+        File file = StarSpireUtility.openFile("Open Drawing", "last_open_path", StarSpireUtility.EXT_FILTER_WORKSPACE);
         if (file != null) {
             System.out.println("Open target:" + file.getAbsolutePath());
             try {
@@ -704,6 +809,10 @@ public class StarSpireApp extends JFrame implements ComponentListener {
                 JOptionPane.showMessageDialog(null, ex, "Error File Not Found",
                         JOptionPane.ERROR_MESSAGE);
                 logger.log(Level.WARNING, "File Not Found", ex);
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(null, ex, "Error failed to read file",
+                        JOptionPane.ERROR_MESSAGE);
+                logger.log(Level.WARNING, "Read Error", ex);
             } catch (JSONException ex) {
                 JOptionPane.showMessageDialog(null, ex, "Error JSON failed to open file",
                         JOptionPane.ERROR_MESSAGE);
@@ -719,6 +828,7 @@ public class StarSpireApp extends JFrame implements ComponentListener {
     private void setCurrentProject(StarSpireController project) {
         currentProject = project;
         openProjects.add(currentProject);
+        currentProject.addInteractionListener(interactionListener);
 
         reloadAllMenus();
 
@@ -732,6 +842,7 @@ public class StarSpireApp extends JFrame implements ComponentListener {
         projectClose.setEnabled(true);
         projectSave.setEnabled(true);
         projectSaveAs.setEnabled(true);
+        currentProject.setAutoSave(autoSaveItem.isSelected());
         projectMSSI.setEnabled(true);
         projectMSSIoff.setEnabled(true);
 
@@ -787,7 +898,7 @@ public class StarSpireApp extends JFrame implements ComponentListener {
      * Save current document.
      */
     private void saveAs() {
-        File file = StarSpireUtility.saveFile("Save Project As", "last_save_path", StarSpireUtility.EXT_FILTER_JSON);
+        File file = StarSpireUtility.saveFile("Save Project As", "last_save_path", StarSpireUtility.EXT_FILTER_WORKSPACE);
         if (file != null) {
             file = checkExtension(file);
             /*
@@ -21,6 +21,7 @@ public class StarSpireUtility {
     public final static FileNameExtensionFilter EXT_FILTER_TXT = new FileNameExtensionFilter("Text", "txt");
     public final static FileNameExtensionFilter EXT_FILTER_CSV = new FileNameExtensionFilter("CSV", "csv");
     public final static FileNameExtensionFilter EXT_FILTER_JSON = new FileNameExtensionFilter("JSON", "json");
+    public final static FileNameExtensionFilter EXT_FILTER_WORKSPACE = new FileNameExtensionFilter("Workspace", "json", "ssw");
 
     /**
      * Tries to use the native file dialog to open a file.
@@ -2,15 +2,92 @@ package starspire.controllers;
 
 import edu.vt.entityextractor.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import starspire.StarSpireApp;
 
 /**
  * EntytiExtractorWrapper is the single class way that we interface with the EntityExtractor
  * from Christopher Andrews.
+ *
+ * About the extractor pool:
+ * - Extractors aren't shared between threads, each one is borrowed by one
+ *   extraction at a time. The pool holds up to getPoolSize() of them, the
+ *   first is made by setup (at startup), the others the first time they're
+ *   needed.
+ * - extractEntities(List) extracts a list of texts (one per document) on
+ *   as many threads as there are extractors and returns each text's
+ *   entities with where they are in it.
+ * - Throughput is counted over all extractions, see getCharactersPerSecond.
+ * - With a cache set (see ExtractionCache), extractEntities(List) looks
+ *   every text up first and only extracts the ones it doesn't know.
+ *
  * @author Patrick Fiaux, Alex Endert
  */
 public class EntityExtractorWrapper {
 
-    private static EntityExtractor e = null;
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    private static final LinkedBlockingQueue<EntityExtractor> idle = new LinkedBlockingQueue<EntityExtractor>();
+    private static int poolSize = Runtime.getRuntime().availableProcessors();
+    private static int created = 0;
+    private static ExecutorService workers = null;
+    private static volatile ExtractionCache cache = null;
+    /**
+     * Bump when the way the extractor is set up changes, cached entities
+     * of another configuration aren't used.
+     */
+    private static final int CONFIGURATION_REVISION = 1;
+    private static final AtomicLong documentsExtracted = new AtomicLong();
+    private static final AtomicLong charactersExtracted = new AtomicLong();
+    private static final AtomicLong extractionNanos = new AtomicLong();
+
+    /**
+     * An entity found in a text.
+     */
+    public static class Extracted {
+
+        private final String text;
+        private final int start;
+        private final int end;
+
+        Extracted(String text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Get the entity as it was found.
+         * @return entity text
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Get where the entity starts in the text.
+         * @return start offset, -1 if it couldn't be found in the text
+         */
+        public int getStart() {
+            return start;
+        }
+
+        /**
+         * Get where the entity ends in the text (exclusive).
+         * @return end offset, -1 if it couldn't be found in the text
+         */
+        public int getEnd() {
+            return end;
+        }
+    }
 
     /**
      * Constructor to create an EntityExtractorWrapper
@@ -19,34 +96,234 @@ public class EntityExtractorWrapper {
 //        setup();
 //    }
     /**
-     * Helper for the constructor of the EntityExtractor
+     * Helper for the constructor of the EntityExtractor, makes the first
+     * extractor of the pool.
      */
     public synchronized static void setup() {
-        if (e == null) {
-            e = new EntityExtractor();
-            e.loadKnownAltRecognizers();
+        if (created == 0) {
+            idle.add(newExtractor());
+        }
+    }
+
+    /**
+     * Sets how many extractors can run at once, call before setup. Extra
+     * extractors already made are kept.
+     * @param size pool size, at least 1
+     */
+    public synchronized static void setPoolSize(int size) {
+        poolSize = Math.max(1, size);
+        if (workers != null) {
+            workers.shutdown();
+            workers = null;
         }
     }
 
+    /**
+     * Sets the cache of extracted entities.
+     * @param c cache to use, null for none
+     */
+    public static void setCache(ExtractionCache c) {
+        cache = c;
+    }
+
+    /**
+     * Describes the extractor setup, cached entities are only valid for
+     * the same configuration.
+     * @return configuration string
+     */
+    public static String getConfiguration() {
+        Package p = EntityExtractor.class.getPackage();
+        String version = p == null ? null : p.getImplementationVersion();
+        return EntityExtractor.class.getName() + " " + version
+                + " knownAltRecognizers r" + CONFIGURATION_REVISION;
+    }
+
+    /**
+     * Get how many extractors can run at once.
+     * @return pool size
+     */
+    public synchronized static int getPoolSize() {
+        return poolSize;
+    }
+
     /**
      * This method will extract all entities from a given string.
      * @param s String from which entities are extracted
      * @return ArrayList<String> all the entities extracted
      */
-    public synchronized static ArrayList<String> extractEntities(String s) {
+    public static ArrayList<String> extractEntities(String s) {
         ArrayList<String> entityList = new ArrayList<String>();
+        for (Entity ent : extract(s)) {
+            //System.out.println(ent.getText());
+            entityList.add(ent.getText());
+        }
+        return entityList;
+    }
+
+    /**
+     * Extracts the entities of several texts at once, in parallel.
+     * @param texts texts to extract from, one per document
+     * @return for each text (same order), the entities found in it
+     * @throws InterruptedException interrupted while waiting for the extraction
+     */
+    public static List<List<Extracted>> extractEntities(List<String> texts) throws InterruptedException {
+        ExecutorService pool = workers();
+        final ExtractionCache c = cache;
+        ArrayList<Future<List<Extracted>>> results = new ArrayList<Future<List<Extracted>>>(texts.size());
+        for (final String text : texts) {
+            results.add(pool.submit(new Callable<List<Extracted>>() {
 
-        if (e == null) {
-            setup();
+                public List<Extracted> call() {
+                    List<Extracted> ents = c == null ? null : c.get(text);
+                    if (ents == null) {
+                        ents = locate(text, extract(text));
+                        if (c != null) {
+                            c.put(text, ents);
+                        }
+                    }
+                    return ents;
+                }
+            }));
         }
+        ArrayList<List<Extracted>> entities = new ArrayList<List<Extracted>>(texts.size());
+        try {
+            for (Future<List<Extracted>> f : results) {
+                try {
+                    entities.add(f.get());
+                } catch (ExecutionException ex) {
+                    logger.log(Level.SEVERE, "Entity extraction failed", ex.getCause());
+                    entities.add(new ArrayList<Extracted>());
+                }
+            }
+        } finally {
+            //only does something if we got interrupted
+            for (Future<List<Extracted>> f : results) {
+                f.cancel(true);
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Get the number of texts extracted so far.
+     * @return number of extractions
+     */
+    public static long getDocumentsExtracted() {
+        return documentsExtracted.get();
+    }
+
+    /**
+     * Get the number of characters extracted so far.
+     * @return total characters
+     */
+    public static long getCharactersExtracted() {
+        return charactersExtracted.get();
+    }
 
-        List<Entity> ents = e.extractEntities(s);
+    /**
+     * Get the extraction throughput, characters per second of extractor
+     * time. With several extractors running the wall clock rate is higher.
+     * @return characters per second, 0 before the first extraction
+     */
+    public static double getCharactersPerSecond() {
+        long nanos = extractionNanos.get();
+        return nanos == 0 ? 0 : charactersExtracted.get() * 1e9 / nanos;
+    }
+
+    /**
+     * Runs one extraction on a borrowed extractor.
+     */
+    private static List<Entity> extract(String s) {
+        EntityExtractor e = borrow();
+        long start = System.nanoTime();
+        try {
+            return e.extractEntities(s);
+        } finally {
+            extractionNanos.addAndGet(System.nanoTime() - start);
+            documentsExtracted.incrementAndGet();
+            charactersExtracted.addAndGet(s.length());
+            idle.add(e);
+        }
+    }
 
+    /**
+     * Finds where the entities are in the text. The extractor returns them
+     * in the order they appear so each one is looked for after the last.
+     */
+    private static List<Extracted> locate(String text, List<Entity> ents) {
+        ArrayList<Extracted> found = new ArrayList<Extracted>(ents.size());
+        int from = 0;
         for (Entity ent : ents) {
-            //System.out.println(ent.getText());
-            entityList.add(ent.getText());
+            String t = ent.getText();
+            int start = text.indexOf(t, from);
+            if (start < 0) {
+                start = text.indexOf(t);
+            }
+            if (start < 0) {
+                found.add(new Extracted(t, -1, -1));
+            } else {
+                found.add(new Extracted(t, start, start + t.length()));
+                from = start + t.length();
+            }
         }
+        return found;
+    }
 
-        return entityList;
+    /**
+     * Takes an idle extractor, makes one if the pool isn't full yet or
+     * waits for one.
+     */
+    private static EntityExtractor borrow() {
+        EntityExtractor e = idle.poll();
+        if (e != null) {
+            return e;
+        }
+        synchronized (EntityExtractorWrapper.class) {
+            if (created < poolSize) {
+                return newExtractor();
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return idle.take();
+                } catch (InterruptedException ex) {
+                    //keep waiting, an extractor is always given back
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Makes a new extractor, hold the class lock.
+     */
+    private static EntityExtractor newExtractor() {
+        EntityExtractor e = new EntityExtractor();
+        e.loadKnownAltRecognizers();
+        created++;
+        return e;
+    }
+
+    /**
+     * Get the threads for extracting lists of texts.
+     */
+    private synchronized static ExecutorService workers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Entity Extraction");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return workers;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,245 @@
+package starspire.controllers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import starspire.StarSpireApp;
+
+/**
+ * Disk cache of the entities extracted from texts, so the same text is
+ * never sent to the extractor twice, even across runs.
+ *
+ * About the cache:
+ * - Entries are keyed by the SHA-1 of the text (UTF-8), one small file per
+ *   text holding its entities and their offsets.
+ * - Entries live in a folder named after the extractor configuration
+ *   (see EntityExtractorWrapper.getConfiguration), changing the extractor
+ *   starts an empty cache. Folders of other configurations are deleted.
+ * - The cache is capped in bytes. Reading an entry marks it as used (file
+ *   modification time), the least recently used entries are deleted when
+ *   the cap is reached.
+ * - Everything is local, errors are logged and treated as misses.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class ExtractionCache {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static String EXTENSION = ".ents";
+    /**
+     * Default folder, in the user's home.
+     */
+    public final static File DEFAULT_ROOT = new File(System.getProperty("user.home"),
+            ".starspire" + File.separator + "entities");
+    private final File dir;
+    private final long maxBytes;
+    /**
+     * Size of every entry, least recently used first.
+     */
+    private final LinkedHashMap<String, Long> entries;
+    private long bytes = 0;
+
+    /**
+     * Opens (or creates) the cache.
+     * @param root folder holding the cache
+     * @param configuration extractor configuration the entries are valid for
+     * @param maxBytes size cap
+     * @throws IOException the folder can't be created
+     */
+    public ExtractionCache(File root, String configuration, long maxBytes) throws IOException {
+        this.maxBytes = maxBytes;
+        String version = hash(configuration);
+        dir = new File(root, version);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        //entries of other extractor configurations can't be used anymore
+        File[] others = root.listFiles();
+        if (others != null) {
+            for (File f : others) {
+                if (f.isDirectory() && f.getName().matches("[0-9a-f]{40}")
+                        && !f.getName().equals(version)) {
+                    deleteAll(f);
+                }
+            }
+        }
+        entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+
+                public int compare(File a, File b) {
+                    long d = a.lastModified() - b.lastModified();
+                    return d < 0 ? -1 : (d > 0 ? 1 : 0);
+                }
+            });
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(EXTENSION)) {
+                    entries.put(name.substring(0, name.length() - EXTENSION.length()), f.length());
+                    bytes += f.length();
+                } else {
+                    //left over from a write that didn't finish
+                    f.delete();
+                }
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Gets the entities of a text if they're cached.
+     * @param text text that was extracted
+     * @return its entities, null if it isn't cached
+     */
+    public List<EntityExtractorWrapper.Extracted> get(String text) {
+        String key = hash(text);
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+        File f = file(key);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                int count = in.readInt();
+                ArrayList<EntityExtractorWrapper.Extracted> ents =
+                        new ArrayList<EntityExtractorWrapper.Extracted>(count);
+                for (int i = 0; i < count; i++) {
+                    String t = in.readUTF();
+                    int start = in.readInt();
+                    ents.add(new EntityExtractorWrapper.Extracted(t, start, in.readInt()));
+                }
+                f.setLastModified(System.currentTimeMillis());
+                return ents;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Dropping unreadable entity cache entry " + f, ex);
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Caches the entities of a text.
+     * @param text text that was extracted
+     * @param ents its entities
+     */
+    public void put(String text, List<EntityExtractorWrapper.Extracted> ents) {
+        String key = hash(text);
+        File f = file(key);
+        try {
+            File temp = File.createTempFile(key + "-", ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(ents.size());
+                for (EntityExtractorWrapper.Extracted e : ents) {
+                    out.writeUTF(e.getText());
+                    out.writeInt(e.getStart());
+                    out.writeInt(e.getEnd());
+                }
+            } finally {
+                out.close();
+            }
+            synchronized (this) {
+                f.delete();
+                if (!temp.renameTo(f)) {
+                    temp.delete();
+                    throw new IOException("Could not move " + temp + " to " + f);
+                }
+                Long old = entries.put(key, f.length());
+                bytes += f.length() - (old == null ? 0 : old);
+                evict();
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not cache entities", ex);
+        }
+    }
+
+    /**
+     * Get the size of the cache on disk.
+     * @return bytes used
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits.
+     */
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            file(e.getKey()).delete();
+            bytes -= e.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops an entry.
+     */
+    private synchronized void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            bytes -= size;
+        }
+        file(key).delete();
+    }
+
+    private File file(String key) {
+        return new File(dir, key + EXTENSION);
+    }
+
+    /**
+     * SHA-1 of a string as hex.
+     */
+    private static String hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(UTF8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            //every JVM has SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Deletes a folder and what's in it.
+     */
+    private static void deleteAll(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File c : files) {
+                deleteAll(c);
+            }
+        }
+        f.delete();
+    }
+}
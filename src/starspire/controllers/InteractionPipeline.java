@@ -0,0 +1,297 @@
+package starspire.controllers;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import starspire.StarSpireApp;
+
+/**
+ * The interaction pipeline runs the slow part of user interactions
+ * (highlighting, linking, searching, notes...) away from the Swing EDT.
+ *
+ * About the pipeline:
+ * - Interactions are queued on a single background thread, so only one of
+ *   them is ever working towards the models at a time.
+ * - Parsing, web fetches, entity extraction and ranking happen on that thread.
+ * - Model changes are handed to the EDT as finished deltas and applied there
+ *   in order (apply), the task waits for each one.
+ * - Queued and running interactions can be cancelled, and report progress
+ *   through property change events ("progress", "state" and "interaction").
+ *   A cancelled task is only over once perform returns, nothing restarts
+ *   while it can still change the models.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class InteractionPipeline {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    /**
+     * Property fired when an interaction starts or the queue empties.
+     * The new value is the interaction name, or null once idle.
+     */
+    public static final String INTERACTION_PROPERTY = "interaction";
+    private final ExecutorService writer;
+    private final CopyOnWriteArrayList<Task> pending;
+    private final PropertyChangeSupport support;
+
+    /**
+     * One interaction. The background half goes in perform(), anything
+     * touching the models or the views must go through apply.
+     */
+    public static abstract class Task extends SwingWorker<Void, Void> {
+
+        private final String name;
+        private InteractionPipeline owner;
+        /**
+         * Set when perform starts, or when the task was cancelled before it
+         * could and done cleaned up instead. Guarded by the task.
+         */
+        private boolean started = false;
+        private boolean skipped = false;
+
+        /**
+         * Constructor
+         * @param name short description shown while the task runs
+         */
+        protected Task(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Get the name of this interaction.
+         * @return task name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Does the background work of the interaction.
+         * Runs on the pipeline thread, never on the EDT.
+         * @throws Exception anything that went wrong, it will be logged
+         */
+        protected abstract void perform() throws Exception;
+
+        /**
+         * Called on the EDT once the task is over, whether it finished,
+         * failed or got cancelled: after perform returned, or right away if
+         * it was cancelled before it started. Restart things here.
+         */
+        protected void finish() {
+        }
+
+        /**
+         * Applies a model delta on the EDT and waits for it to be done.
+         * Use this when the following steps depend on the delta.
+         * @param delta model changes to run on the EDT
+         * @throws InterruptedException task was cancelled while waiting
+         * @throws InvocationTargetException delta threw an exception
+         */
+        public void apply(Runnable delta) throws InterruptedException, InvocationTargetException {
+            checkCancelled();
+            if (SwingUtilities.isEventDispatchThread()) {
+                delta.run();
+            } else {
+                SwingUtilities.invokeAndWait(delta);
+            }
+        }
+
+        /**
+         * Report how far along the task is.
+         * @param percent progress from 0 to 100
+         */
+        public void step(int percent) {
+            setProgress(Math.max(0, Math.min(100, percent)));
+        }
+
+        /**
+         * Bail out if the task was cancelled.
+         * Call this between steps of long running work.
+         * @throws CancellationException when the task was cancelled
+         */
+        public void checkCancelled() {
+            if (isCancelled()) {
+                throw new CancellationException(name + " cancelled");
+            }
+        }
+
+        @Override
+        protected final Void doInBackground() throws Exception {
+            if (!start()) {
+                //cancelled on its way here, done already cleaned up
+                return null;
+            }
+            try {
+                if (owner != null) {
+                    owner.fireInteraction(this);
+                }
+                perform();
+            } finally {
+                //done runs as soon as the task is cancelled, this is when
+                //it really stopped
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    public void run() {
+                        end();
+                    }
+                });
+            }
+            return null;
+        }
+
+        /**
+         * Logs how the task ended. Only cleans up for tasks cancelled
+         * before they started, the others clean up once perform returns.
+         */
+        @Override
+        protected final void done() {
+            try {
+                get();
+            } catch (CancellationException ex) {
+                System.out.println(name + " was cancelled.");
+            } catch (InterruptedException ex) {
+                logger.log(Level.FINE, name + " interrupted", ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof CancellationException) {
+                    System.out.println(name + " was cancelled.");
+                } else {
+                    logger.log(Level.SEVERE, name + " failed", cause);
+                }
+            }
+            if (skip()) {
+                end();
+            }
+        }
+
+        private synchronized boolean start() {
+            if (skipped) {
+                return false;
+            }
+            started = true;
+            return true;
+        }
+
+        private synchronized boolean skip() {
+            if (started) {
+                return false;
+            }
+            skipped = true;
+            return true;
+        }
+
+        /**
+         * Bookkeeping and finish once the task is over (EDT).
+         */
+        private void end() {
+            if (owner != null) {
+                owner.taskDone(this);
+            }
+            finish();
+        }
+    }
+
+    /**
+     * Default constructor, sets up the single writer thread.
+     */
+    public InteractionPipeline() {
+        pending = new CopyOnWriteArrayList<Task>();
+        support = new PropertyChangeSupport(this);
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Interaction Pipeline");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queue an interaction, it will run after the ones already queued.
+     * @param task interaction to run
+     */
+    public void submit(Task task) {
+        task.owner = this;
+        task.addPropertyChangeListener(new PropertyChangeListener() {
+
+            public void propertyChange(PropertyChangeEvent evt) {
+                support.firePropertyChange(new PropertyChangeEvent(evt.getSource(),
+                        evt.getPropertyName(), evt.getOldValue(), evt.getNewValue()));
+            }
+        });
+        pending.add(task);
+        writer.execute(task);
+    }
+
+    /**
+     * Cancel the running interaction and everything queued behind it.
+     */
+    public void cancelAll() {
+        for (Task t : pending) {
+            t.cancel(true);
+        }
+    }
+
+    /**
+     * Cancels everything and stops the writer thread, for closing projects.
+     */
+    public void shutdown() {
+        cancelAll();
+        writer.shutdownNow();
+    }
+
+    /**
+     * Listen to the pipeline progress, state and interaction events.
+     * @param l listener to add
+     */
+    public void addPropertyChangeListener(PropertyChangeListener l) {
+        support.addPropertyChangeListener(l);
+    }
+
+    /**
+     * Stop listening to the pipeline.
+     * @param l listener to remove
+     */
+    public void removePropertyChangeListener(PropertyChangeListener l) {
+        support.removePropertyChangeListener(l);
+    }
+
+    /**
+     * Let listeners know which interaction is running.
+     * @param task task that just started
+     */
+    private void fireInteraction(final Task task) {
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                //a quick task may already be over by now
+                if (pending.contains(task)) {
+                    support.firePropertyChange(INTERACTION_PROPERTY, null, task.getName());
+                }
+            }
+        });
+    }
+
+    /**
+     * Bookkeeping for when a task is done (EDT).
+     * @param task task that's over
+     */
+    private void taskDone(Task task) {
+        pending.remove(task);
+        if (pending.isEmpty()) {
+            support.firePropertyChange(INTERACTION_PROPERTY, task.getName(), null);
+        }
+    }
+}
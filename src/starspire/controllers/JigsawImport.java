@@ -0,0 +1,174 @@
+package starspire.controllers;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import starspire.StarSpireApp;
+import starspire.models.DataModel;
+import starspire.models.Document;
+import starspire.models.SymbolTable;
+
+/**
+ * Turns the document records the Jigsaw SAX handler reads into hidden
+ * documents, using all the cores.
+ *
+ * About the import:
+ * - The SAX thread only assembles records (title, text, entity strings)
+ *   and submits them.
+ * - A pool of workers cleans up each record's text and checks its
+ *   entities (in the text and not a stop word).
+ * - Finished documents are added to the data model in batches, in the
+ *   order they were read, see DataModel.addHiddenDocuments. The SAX thread
+ *   commits a batch whenever too many records are waiting, finish commits
+ *   the rest.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class JigsawImport {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    /**
+     * Documents added to the model at once.
+     */
+    private final static int BATCH_SIZE = 256;
+    /**
+     * This document is shown as well as hidden, the import always did that.
+     */
+    private final static String SHOWN_DOCUMENT = "20040705_83";
+    //newline constant for parsing
+    private final static String NEWLINE = System.getProperty("line.separator");
+    private final static String NEWLINE_REPLACEMENT = "     ";
+    private final DataModel data;
+    private final Parser parser;
+    private final ExecutorService workers;
+    private final LinkedList<Future<Imported>> pending;
+    private int documentCount = 0;
+    private boolean finished = false;
+
+    /**
+     * A checked document record and the entities to link it to. The
+     * Document itself is made when committing, document ids are handed out
+     * one thread at a time.
+     */
+    private static class Imported {
+
+        private final String title;
+        private final String content;
+        private final List<String> entities;
+
+        Imported(String title, String content, List<String> entities) {
+            this.title = title;
+            this.content = content;
+            this.entities = entities;
+        }
+    }
+
+    /**
+     * Constructor, starts the workers.
+     * @param d DataModel to add documents and entities to
+     */
+    public JigsawImport(DataModel d) {
+        data = d;
+        //read only once set up, the workers share it
+        parser = new Parser();
+        pending = new LinkedList<Future<Imported>>();
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Jigsaw Import");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Queues a document record (SAX thread).
+     * @param title document id
+     * @param text document text
+     * @param entities entity strings listed for the document
+     */
+    public void submit(final String title, final CharSequence text, final List<String> entities) {
+        final String content = text.toString();
+        pending.add(workers.submit(new Callable<Imported>() {
+
+            public Imported call() {
+                return check(title, content, entities);
+            }
+        }));
+        if (pending.size() >= 2 * BATCH_SIZE) {
+            commit(BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Commits everything left and stops the workers. Safe to call twice.
+     * @return number of documents imported
+     */
+    public int finish() {
+        if (!finished) {
+            finished = true;
+            commit(pending.size());
+            workers.shutdown();
+        }
+        return documentCount;
+    }
+
+    /**
+     * Cleans up the text and finds which of the entities to keep (worker).
+     */
+    private Imported check(String title, String content, List<String> entities) {
+        content = content.replace(NEWLINE, NEWLINE_REPLACEMENT);
+        ArrayList<String> keep = new ArrayList<String>(entities.size());
+        HashSet<String> seen = new HashSet<String>();
+        for (String ent : entities) {
+            //add only the entities that are actually in the text of the document
+            if (content.contains(ent) && !parser.isStopWord(ent)) {
+                String key = SymbolTable.normalize(ent);
+                if (seen.add(key)) {
+                    keep.add(ent);
+                }
+            }
+        }
+        return new Imported(title, content, keep);
+    }
+
+    /**
+     * Waits for the oldest records and adds them to the model.
+     * @param count number of records to commit
+     */
+    private void commit(int count) {
+        ArrayList<Document> docs = new ArrayList<Document>(count);
+        ArrayList<List<String>> entities = new ArrayList<List<String>>(count);
+        for (int i = 0; i < count && !pending.isEmpty(); i++) {
+            try {
+                Imported im = pending.removeFirst().get();
+                docs.add(new Document(im.content, im.title));
+                entities.add(im.entities);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                logger.log(Level.WARNING, "Jigsaw import interrupted", ex);
+                break;
+            } catch (ExecutionException ex) {
+                logger.log(Level.SEVERE, "Jigsaw document skipped", ex.getCause());
+            }
+        }
+        data.addHiddenDocuments(docs, entities);
+        for (Document doc : docs) {
+            if (SHOWN_DOCUMENT.equals(doc.getName())) {
+                data.addDocument(doc);
+            }
+        }
+        documentCount += docs.size();
+    }
+}
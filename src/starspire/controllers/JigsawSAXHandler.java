@@ -1,7 +1,5 @@
 package starspire.controllers;
 
-import starspire.models.Entity;
-import starspire.models.Document;
 import starspire.models.DataModel;
 import java.util.ArrayList;
 import org.xml.sax.SAXException;
@@ -10,12 +8,13 @@ import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * This is the parsing handler for extracting jigsaw files.
+ * It only collects each document's id, text and entity strings, the
+ * checking and adding to the model is done by a JigsawImport.
+ * Call finish once parsing is done.
  * @author Patrick Fiaux, Alex Andert, Lauren Bradel
  */
 public class JigsawSAXHandler extends DefaultHandler {
 
-    private final static int STEP = 5;
-    private final static boolean USE_ENTITIES = true;
     private boolean bdocid = false;
     private boolean bdocdate = false;
     private boolean bdocsource = false;
@@ -23,15 +22,11 @@ public class JigsawSAXHandler extends DefaultHandler {
     private boolean bdocentity = false;
     private boolean bdocyear = false;
     private String docTitle = "default";
-    private String docContent = "default";
+    private StringBuilder docContent = new StringBuilder("default");
     private String docYear = "";
     private ArrayList<String> entityStringList = new ArrayList<String>();
     private Parser parser;
-    private DataModel data;
-    private int documentCount;
-    private int skip;
-    //newline constant for parsing
-    private String newline = System.getProperty("line.separator");
+    private JigsawImport importer;
 
     /**
      * Default Constructor
@@ -39,10 +34,17 @@ public class JigsawSAXHandler extends DefaultHandler {
      */
     public JigsawSAXHandler(DataModel d) {
         super();
-        data = d;
         parser = new Parser();
-        documentCount = 0;
-        skip = STEP;
+        importer = new JigsawImport(d);
+    }
+
+    /**
+     * Adds the documents still being checked to the model, call once the
+     * parsing is over (even if it failed).
+     * @return number of documents imported
+     */
+    public int finish() {
+        return importer.finish();
     }
 
     /**
@@ -71,7 +73,7 @@ public class JigsawSAXHandler extends DefaultHandler {
             bdocsource = true;
         } else if (qName.equalsIgnoreCase("docText")) {
             bdoctext = true;
-            docContent = "";
+            docContent = new StringBuilder();
         } else if (qName.equalsIgnoreCase("year")) {
             bdocyear = true;
         } else {
@@ -81,8 +83,8 @@ public class JigsawSAXHandler extends DefaultHandler {
     }
 
     /**
-     * callback at closing tags. Here if it's a document we take all the stuff
-     * we got so for and stick it in the model.
+     * callback at closing tags. Here if it's a document we hand what we got
+     * so far to the importer.
      * @param uri
      * @param localName
      * @param qName
@@ -91,59 +93,15 @@ public class JigsawSAXHandler extends DefaultHandler {
     @Override
     public void endElement(String uri, String localName,
             String qName) throws SAXException {
-        //Parser parse = parser;//new Parser();
-
         if (qName.equalsIgnoreCase("docText")) {
             bdoctext = false;
-            //System.out.println("content: " + docContent);
         } else if (qName.equalsIgnoreCase("document")) {
-
             //if (docYear.contains("2011") || docYear.contains("2010")) {
-            if (true) { //just use them all
-                //Document doc = data.addDocument(docContent, docTitle);
-                
-                Document doc = new Document(docContent, docTitle);
-                documentCount++;
-                if (documentCount >= skip) {
-                    skip += STEP;
-                    System.out.print(".");
-                }
-
-                //add all the entities
-                for (String ent : entityStringList) {
-                    if (USE_ENTITIES) {
-                        //add only the entities that are actually in the text of the document
-                        //System.out.print("Jigsaw import linking " + entityStringList.size() + " entities.");
-                        if (docContent.contains(ent) && !parser.isStopWord(ent)) {
-                            Entity e = data.getEntity(ent);
-                            if (!doc.hasEntity(e)) {
-                                //adds Entity  to list in Doc, Doc to list in Entity
-                                //TODO: if already in list, does nothing right now. Should add weight?
-                                //System.out.println("linking");
-                                doc.addEntity(e);
-                                
-                                
-                                //data.link(e, doc);
-                                System.out.print(".");
-                            }
-                        } else {
-                            //this documentContent does not contain the entity, do nothing?
-                        }
-                    }
-                }
-                data.addHiddenDocument(doc);
-                
-                if(doc.getName().compareTo("20040705_83") == 0) {
-                	data.addDocument(doc);
-                	
-                }
-
-                	//data.removeDocument(doc);
-                System.out.println("next doc!");
-                entityStringList.clear(); //reset for next set of entities
-            }
+            //just use them all
+            importer.submit(docTitle, docContent, entityStringList);
+            //the importer keeps the list, start a new one for the next document
+            entityStringList = new ArrayList<String>();
         }
-        
     }
 
     /**
@@ -157,19 +115,11 @@ public class JigsawSAXHandler extends DefaultHandler {
     @Override
     public void characters(char ch[], int start, int length) throws SAXException {
         if (bdocid) {
-            //System.out.println("docTitle: " + new String(ch, start, length));
             docTitle = new String(ch, start, length);
-            System.out.println("Jigsaw import found doc: " + docTitle);
             bdocid = false;
         } else if (bdoctext) {
-            //System.out.println("docContent: " + new String(ch, start, length));
-            //docContent += newline;
-            //docContent += "";
-            String tempContent = new String(ch, start, length);
-            tempContent = tempContent.replaceAll(newline, "     ");
-            //tempContent = tempContent.replaceAll(newline, "");
-            //tempContent = tempContent.replaceAll(newline, " newlinechar ");
-            docContent += tempContent;
+            //newlines are replaced by the importer, a chunk can end mid newline
+            docContent.append(ch, start, length);
         } else if (bdocdate) {
             //just skip this field
             bdocdate = false;
@@ -185,7 +135,6 @@ public class JigsawSAXHandler extends DefaultHandler {
 
             //remove ending punctuation from jigsaw files
             ent = parser.removeStartEndPunctuation(ent);
-            //System.out.println("Jigsaw import found entity: " + ent);
             entityStringList.add(ent);
             bdocentity = false;
         }
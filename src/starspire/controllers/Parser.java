@@ -1,59 +1,159 @@
 package starspire.controllers;
 
-import java.io.*;
 import java.util.*;
 
 /**
  * Parser is what we use to handle all the extraction of entities from raw input (strings).
  *
+ * About the parser:
+ * - The stop words and punctuation are set up once and shared by every
+ *   Parser, they never change so parsers can be used from any thread and
+ *   making one costs nothing.
+ * - Stop words are kept case folded (the way equalsIgnoreCase compares)
+ *   in a hash table along with their plurals, lookups don't allocate.
+ * - Punctuation is a bitmask over the ASCII characters.
+ * - Tokenizer walks a text and gives the offsets of every token that
+ *   isn't a stop word, with the start and end punctuation trimmed. Tokens
+ *   are only made into strings when asked for.
+ *
  * @author Patrick Fiaux, Alex Endert
  */
 public class Parser {
 
-    private ArrayList<String> stopwords;
-    private ArrayList<Character> punct;
     private final int WORD_MIN_LENGTH = 6;
-
     /**
-     * Default Constructor
+     * Case folded stop words and their plurals, open addressing.
      */
-    public Parser() {
-        setup();
+    private static final String[] STOP_TABLE;
+    /**
+     * Punctuation trimmed from the start and end of tokens, bit c for
+     * character c.
+     */
+    private static final long PUNCT_LOW;
+    private static final long PUNCT_HIGH;
+
+    static {
+        ArrayList<String> words = new ArrayList<String>();
+        for (String s : ParserStopWords.stopWords) {
+            words.add(s);
+            //check for plurals
+            words.add(s + "s");
+        }
+        int capacity = Integer.highestOneBit(words.size() * 3) << 1;
+        String[] table = new String[capacity];
+        for (String w : words) {
+            String folded = fold(w);
+            int i = hash(folded, 0, folded.length()) & (capacity - 1);
+            while (table[i] != null && !table[i].equals(folded)) {
+                i = (i + 1) & (capacity - 1);
+            }
+            table[i] = folded;
+        }
+        STOP_TABLE = table;
+
+        long low = 0;
+        long high = 0;
+        for (char c : ",.:;?!)>][{(<}*\"`'".toCharArray()) {
+            if (c < 64) {
+                low |= 1L << c;
+            } else {
+                high |= 1L << (c - 64);
+            }
+        }
+        PUNCT_LOW = low;
+        PUNCT_HIGH = high;
     }
 
     /**
-     * Helper for the construction of the Parser
+     * Walks the tokens of a text, see Parser. Splits on the same white
+     * space StringTokenizer does.
      */
-    private void setup() {
-        /*
-         * Set up the stopWords from the local file
+    public static class Tokenizer {
+
+        private final CharSequence text;
+        private final int limit;
+        private int pos;
+        private int start = -1;
+        private int end = -1;
+
+        /**
+         * Constructor
+         * @param text text to tokenize
+         */
+        public Tokenizer(CharSequence text) {
+            this(text, 0, text.length());
+        }
+
+        /**
+         * Constructor for part of a text.
+         * @param text text to tokenize
+         * @param from where to start
+         * @param to where to stop (exclusive)
+         */
+        public Tokenizer(CharSequence text, int from, int to) {
+            this.text = text;
+            this.pos = from;
+            this.limit = to;
+        }
+
+        /**
+         * Moves to the next token that isn't a stop word.
+         * @return false once there are no more tokens
          */
-        File f;
-        String word;
-        stopwords = new ArrayList<String>(Arrays.asList(ParserStopWords.stopWords));
+        public boolean next() {
+            while (pos < limit) {
+                while (pos < limit && isDelimiter(text.charAt(pos))) {
+                    pos++;
+                }
+                if (pos >= limit) {
+                    break;
+                }
+                int s = pos;
+                while (pos < limit && !isDelimiter(text.charAt(pos))) {
+                    pos++;
+                }
+                if (!isStopWord(text, s, pos)) {
+                    //check for punctuation at the start and end
+                    int e = trimEnd(text, s, pos);
+                    start = trimStart(text, s, e);
+                    end = e;
+                    return true;
+                }
+            }
+            start = -1;
+            end = -1;
+            return false;
+        }
+
+        /**
+         * Get where the current token starts in the text.
+         * @return start offset
+         */
+        public int start() {
+            return start;
+        }
 
-        /*
-         * Set up the punctuation list
+        /**
+         * Get where the current token ends in the text (exclusive).
+         * @return end offset
          */
-        punct = new ArrayList<Character>();
-        punct.add(',');
-        punct.add('.');
-        punct.add(':');
-        punct.add(';');
-        punct.add('?');
-        punct.add('!');
-        punct.add(')');
-        punct.add('>');
-        punct.add(']');
-        punct.add('[');
-        punct.add('{');
-        punct.add('(');
-        punct.add('<');
-        punct.add('}');
-        punct.add('*');
-        punct.add('"');
-        punct.add('`');
-        punct.add('\'');
+        public int end() {
+            return end;
+        }
+
+        /**
+         * Get the current token.
+         * @return token text
+         */
+        public String token() {
+            return text.subSequence(start, end).toString();
+        }
+    }
+
+    /**
+     * Default Constructor
+     */
+    public Parser() {
     }
 
     /**
@@ -64,23 +164,9 @@ public class Parser {
      * @return String The string without the punctuation at the end.
      */
     public String removeStartEndPunctuation(String input) {
-        StringBuilder sb = new StringBuilder();
-        String returnString;
-
-
-        returnString = input;
-        // remove ending punctuation
-        if (returnString.length() > 1) {
-            while (returnString.length() > 1 && punct.contains(returnString.charAt(returnString.length() - 1))) {
-                //last character in the string is not a letter, remove it
-                returnString = returnString.substring(0, returnString.length() - 1);
-            }
-            // remove starting punctuation
-            while (returnString.length() > 1 && punct.contains(returnString.charAt(0))) {
-                returnString = returnString.substring(1, returnString.length());
-            }
-        }
-        return returnString;
+        int end = trimEnd(input, 0, input.length());
+        int start = trimStart(input, 0, end);
+        return input.substring(start, end);
     }
 
     /**
@@ -89,16 +175,28 @@ public class Parser {
      * @return true if a stop word, false if not
      */
     public boolean isStopWord(String word) {
-        boolean isStopWord = false;
-        for (String s : stopwords) {
-            if (s.equalsIgnoreCase(word)) {
-                isStopWord = true;
-            } else if (word.equalsIgnoreCase(s + "s")) { //check for plurals
-                isStopWord = true;
+        return isStopWord(word, 0, word.length());
+    }
+
+    /**
+     * Checks to see if part of a text is a stop word (or the plural of one),
+     * ignoring case.
+     * @param text text holding the word
+     * @param start start of the word
+     * @param end end of the word (exclusive)
+     * @return true if a stop word, false if not
+     */
+    public static boolean isStopWord(CharSequence text, int start, int end) {
+        int mask = STOP_TABLE.length - 1;
+        int i = hash(text, start, end) & mask;
+        String s;
+        while ((s = STOP_TABLE[i]) != null) {
+            if (foldedEquals(s, text, start, end)) {
+                return true;
             }
+            i = (i + 1) & mask;
         }
-
-        return isStopWord;
+        return false;
     }
 
     /**
@@ -107,19 +205,87 @@ public class Parser {
      * @return returns a list of tokens
      */
     public ArrayList<String> parseString(String toParse) {
-        StringTokenizer st = new StringTokenizer(toParse);
         ArrayList<String> list = new ArrayList<String>();
+        Tokenizer st = new Tokenizer(toParse);
+        while (st.next()) {
+            //add the entity (String) to the list
+            list.add(st.token());
+        }
+        return list;
+    }
 
-        while (st.hasMoreTokens()) {
-            String current = st.nextToken();
-            if (!this.isStopWord(current)) {
-                //this is an entity, do something with it
-                //check for punctuation at the start and end
-                current = removeStartEndPunctuation(current);
-                //add the entity (String) to the list
-                list.add(current);
+    /**
+     * Finds if a character is punctuation to trim.
+     */
+    private static boolean isPunctuation(char c) {
+        if (c < 64) {
+            return (PUNCT_LOW & (1L << c)) != 0;
+        }
+        return c < 128 && (PUNCT_HIGH & (1L << (c - 64))) != 0;
+    }
+
+    /**
+     * Same white space as the default StringTokenizer.
+     */
+    private static boolean isDelimiter(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Drops punctuation from the end, keeps at least one character.
+     */
+    private static int trimEnd(CharSequence text, int start, int end) {
+        while (end - start > 1 && isPunctuation(text.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Drops punctuation from the start, keeps at least one character.
+     */
+    private static int trimStart(CharSequence text, int start, int end) {
+        while (end - start > 1 && isPunctuation(text.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Folds a character the way equalsIgnoreCase compares them.
+     */
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static String fold(String s) {
+        char[] chars = new char[s.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = fold(s.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Hash of the folded characters.
+     */
+    private static int hash(CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + fold(text.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean foldedEquals(String folded, CharSequence text, int start, int end) {
+        if (folded.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < folded.length(); i++) {
+            if (folded.charAt(i) != fold(text.charAt(start + i))) {
+                return false;
             }
         }
-        return list;
+        return true;
     }
 }
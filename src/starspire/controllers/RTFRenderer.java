@@ -0,0 +1,302 @@
+package starspire.controllers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import starspire.models.Entity;
+import starspire.models.Search;
+
+/**
+ * Turns document text into RTF with the entities highlighted and the search
+ * terms in bold.
+ *
+ * About the renderer:
+ * - Entity and search spans are found in a single pass over the text, the
+ *   markup is then written in a second pass. The text itself is never copied
+ *   around by replaceAll any more.
+ * - Every entity found in the text gets its own slot in the colour table.
+ *   The body only refers to slots, so it can be cached per document.
+ * - When only strengths change the cached body is reused and just the colour
+ *   table is written again. Changes to the text, the entities or the searches
+ *   redo the layout.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class RTFRenderer {
+
+    private final static String HEADER = "{\\rtf1\\ansi\n"
+            + "{\\fonttbl\\f0\\fswiss\\fcharset0 Helvetica;}\n"; /* define font # */
+    /**
+     * Fixed colours, slots 1 to 5. Entity slots come after them.
+     */
+    private final static String BASE_COLORS = ";\\red255\\green0\\blue0;"
+            + "\\red252\\green193\\blue91;\\red250\\green219\\blue135;"
+            + "\\red252\\green235\\blue169;\\red255\\green255\\blue255;";
+    private final static int FIRST_ENTITY_SLOT = 6;
+    private final static String STRONG_COLOR = "\\red250\\green219\\blue135;";
+    private final static String MEDIUM_COLOR = "\\red252\\green235\\blue169;";
+    private final static String WEAK_COLOR = "\\red255\\green255\\blue255;";
+    private final static String FONT = "\\f0\\fs24"; /* set font # and font size */
+    private final static String FOOTER = " \n\n}";
+    private final static int DEFAULT_BODY_CAPACITY = 128;
+    private final Map<Object, Layout> layouts;
+
+    /**
+     * Where the spans of a text ended up, what the cache holds for a document.
+     */
+    private static class Layout {
+
+        private final String text;
+        private final String[] entityNames;
+        private final String[] searchTerms;
+        /**
+         * Text with the markup, slots instead of colours.
+         */
+        private final String body;
+        /**
+         * For each entity slot the index of its entity in entityNames.
+         */
+        private final int[] slots;
+
+        Layout(String text, String[] entityNames, String[] searchTerms, String body, int[] slots) {
+            this.text = text;
+            this.entityNames = entityNames;
+            this.searchTerms = searchTerms;
+            this.body = body;
+            this.slots = slots;
+        }
+
+        /**
+         * Finds if this layout is still good for the given input.
+         */
+        boolean matches(String t, String[] names, String[] terms) {
+            return (text == t || text.equals(t))
+                    && Arrays.equals(entityNames, names)
+                    && Arrays.equals(searchTerms, terms);
+        }
+    }
+
+    /**
+     * Default constructor, with an empty cache.
+     */
+    public RTFRenderer() {
+        //documents that are gone drop out of the cache on their own
+        layouts = Collections.synchronizedMap(new WeakHashMap<Object, Layout>());
+    }
+
+    /**
+     * Renders some text to RTF.
+     * @param key what the text belongs to (a document), null to skip the cache
+     * @param plain text to convert
+     * @param entities entities to highlight
+     * @param searches searches to put in bold
+     * @param maxStrength strongest entity strength, used to pick colours
+     * @return RTF version of the text
+     */
+    public String render(Object key, String plain, ArrayList<Entity> entities,
+            ArrayList<Search> searches, double maxStrength) {
+        if (plain == null) {
+            plain = "";
+        }
+        String[] names = new String[entities.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = entities.get(i).getName();
+        }
+        String[] terms = new String[searches.size()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = searches.get(i).getSearchTerm();
+        }
+
+        Layout layout = key == null ? null : layouts.get(key);
+        if (layout == null || !layout.matches(plain, names, terms)) {
+            layout = layout(plain, names, terms);
+            if (key != null) {
+                layouts.put(key, layout);
+            }
+        }
+
+        StringBuilder rtf = new StringBuilder(layout.body.length()
+                + HEADER.length() + 32 * layout.slots.length + 256);
+        rtf.append(HEADER);
+        rtf.append("{\\colortbl").append(BASE_COLORS);
+        for (int slot : layout.slots) {
+            rtf.append(slotColor(entities.get(slot).getStrength(), maxStrength));
+        }
+        rtf.append("}\n");
+        rtf.append(FONT);
+        rtf.append(layout.body);
+        rtf.append(FOOTER);
+        return rtf.toString();
+    }
+
+    /**
+     * Forget the layout of something, for when it's removed.
+     * @param key what the text belonged to
+     */
+    public void forget(Object key) {
+        layouts.remove(key);
+    }
+
+    /**
+     * Colour of an entity based on how strong it is compared to the strongest.
+     * @param strength entity strength
+     * @param maxStrength strongest entity strength
+     * @return colour table entry
+     */
+    private static String slotColor(double strength, double maxStrength) {
+        if (strength < 1.0) {
+            return WEAK_COLOR;
+        }
+        if (strength > maxStrength * .80) {
+            return STRONG_COLOR;
+        } else if (strength > maxStrength * .40) {
+            return MEDIUM_COLOR;
+        }
+        return WEAK_COLOR;
+    }
+
+    /**
+     * Finds the spans in the text and writes the body markup.
+     * @param plain text
+     * @param names entity names, matched as is
+     * @param terms search terms, matched ignoring case
+     * @return the layout
+     */
+    private static Layout layout(String plain, String[] names, String[] terms) {
+        int length = plain.length();
+        //entity index covering each char (-1 for none) and bold chars
+        int[] entityAt = new int[length];
+        Arrays.fill(entityAt, -1);
+        boolean[] bold = new boolean[length];
+
+        Map<Character, ArrayList<Integer>> entityStarts = byFirstChar(names, false);
+        Map<Character, ArrayList<Integer>> searchStarts = byFirstChar(terms, true);
+
+        int entityEnd = 0;
+        for (int i = 0; i < length; i++) {
+            char c = plain.charAt(i);
+            ArrayList<Integer> candidates = searchStarts.get(Character.toLowerCase(c));
+            if (candidates != null) {
+                for (int t : candidates) {
+                    String term = terms[t];
+                    if (plain.regionMatches(true, i, term, 0, term.length())) {
+                        Arrays.fill(bold, i, i + term.length(), true);
+                        break;
+                    }
+                }
+            }
+            if (i < entityEnd) {
+                continue;
+            }
+            candidates = entityStarts.get(c);
+            if (candidates != null) {
+                //longest names come first
+                for (int e : candidates) {
+                    String name = names[e];
+                    if (plain.regionMatches(i, name, 0, name.length())) {
+                        entityEnd = i + name.length();
+                        Arrays.fill(entityAt, i, entityEnd, e);
+                        break;
+                    }
+                }
+            }
+        }
+
+        //write the runs, each change of style is a new group
+        HashMap<Integer, Integer> slotOf = new HashMap<Integer, Integer>();
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        StringBuilder body = new StringBuilder(Math.max(DEFAULT_BODY_CAPACITY, length + length / 8));
+        int i = 0;
+        while (i < length) {
+            int e = entityAt[i];
+            boolean b = bold[i];
+            int end = i + 1;
+            while (end < length && entityAt[end] == e && bold[end] == b) {
+                end++;
+            }
+            if (e < 0 && !b) {
+                escape(plain, i, end, body);
+            } else {
+                body.append('{');
+                if (b) {
+                    body.append("\\b");
+                }
+                if (e >= 0) {
+                    Integer slot = slotOf.get(e);
+                    if (slot == null) {
+                        slot = FIRST_ENTITY_SLOT + slots.size();
+                        slotOf.put(e, slot);
+                        slots.add(e);
+                    }
+                    body.append("\\ul\\highlight").append(slot);
+                }
+                body.append(' ');
+                escape(plain, i, end, body);
+                body.append('}');
+            }
+            i = end;
+        }
+
+        int[] slotEntities = new int[slots.size()];
+        for (int s = 0; s < slotEntities.length; s++) {
+            slotEntities[s] = slots.get(s);
+        }
+        return new Layout(plain, names, terms, body.toString(), slotEntities);
+    }
+
+    /**
+     * Groups strings by their first char so the text can be scanned once.
+     * @param strings strings to group
+     * @param ignoreCase true to key on the lower case first char
+     * @return indexes of the strings for each first char, longest first
+     */
+    private static Map<Character, ArrayList<Integer>> byFirstChar(final String[] strings, boolean ignoreCase) {
+        HashMap<Character, ArrayList<Integer>> map = new HashMap<Character, ArrayList<Integer>>();
+        for (int i = 0; i < strings.length; i++) {
+            if (strings[i] == null || strings[i].length() == 0) {
+                continue;
+            }
+            char c = strings[i].charAt(0);
+            if (ignoreCase) {
+                c = Character.toLowerCase(c);
+            }
+            ArrayList<Integer> list = map.get(c);
+            if (list == null) {
+                list = new ArrayList<Integer>(2);
+                map.put(c, list);
+            }
+            list.add(i);
+        }
+        Comparator<Integer> longestFirst = new Comparator<Integer>() {
+
+            public int compare(Integer a, Integer b) {
+                return strings[b].length() - strings[a].length();
+            }
+        };
+        for (ArrayList<Integer> list : map.values()) {
+            Collections.sort(list, longestFirst);
+        }
+        return map;
+    }
+
+    /**
+     * Appends text, escaping the chars RTF uses for markup.
+     * @param s source text
+     * @param start first char
+     * @param end char after the last
+     * @param out where to write
+     */
+    private static void escape(String s, int start, int end, StringBuilder out) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '\\' || c == '{' || c == '}') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+    }
+}
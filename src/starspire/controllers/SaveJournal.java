@@ -0,0 +1,516 @@
+package starspire.controllers;
+
+import starspire.models.DataListener;
+import starspire.models.DataModel;
+import starspire.models.Document;
+import starspire.models.Edge;
+import starspire.models.Entity;
+import starspire.models.GraphListener;
+import starspire.models.Highlight;
+import starspire.models.Node;
+import starspire.models.Search;
+import starspire.models.WorkspaceChanges;
+import starspire.StarSpireApp;
+import java.awt.Dimension;
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.*;
+
+/**
+ * Write-ahead journal used by autosave. Instead of writing the whole
+ * workspace every time, autosave appends the records that changed to a
+ * journal next to the save file.
+ *
+ * About the journal:
+ * - Model events only mark a record as changed. flush writes one line per
+ *   changed record, so a node moved a thousand times by the layout between
+ *   two autosaves is written once.
+ * - A line is a whole record in the save format,
+ *   {"op":"put","type":"node","record":{...}}, a removal,
+ *   {"op":"del","type":"node","id":3}, or for a document that was already
+ *   journaled or saved only the fields that changed,
+ *   {"op":"set","type":"document","record":{"ID":3,"notes":...}}. The
+ *   content of a document is only written when it's added.
+ * - Documents, searches and entities are copied under the data model's
+ *   lock before they're written (see DataModel.copyForSave).
+ * - Compaction: the journal is moved aside as the next generation
+ *   (file.journal.1, .2...), a full snapshot is written to the save file
+ *   and the generations it holds are deleted. If that fails they're still
+ *   there for the next load, a save still being written never drops the
+ *   generation of a later one.
+ * - Recovery reads the generations in order then the current journal and
+ *   lays them over the records of the save file while it loads (see
+ *   WorkspaceChanges). Replaying a record the save file already has
+ *   changes nothing.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class SaveJournal implements DataListener, GraphListener {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    private final static String EXTENSION = ".journal";
+    /**
+     * Journals smaller than this are never worth compacting.
+     */
+    private final static long MIN_COMPACT_SIZE = 1024 * 1024;
+    private final static String DOCUMENT = WorkspaceChanges.DOCUMENT;
+    private final static String SEARCH = WorkspaceChanges.SEARCH;
+    private final static String ENTITY = WorkspaceChanges.ENTITY;
+    private final static String NODE = WorkspaceChanges.NODE;
+    private final static String EDGE = WorkspaceChanges.EDGE;
+    /*
+     * Document fields a set line can hold.
+     */
+    private final static int NAME = 1;
+    private final static int NOTES = 2;
+    private final static int HIGHLIGHTS = 4;
+    private final DataModel data;
+    private final File saveFile;
+    private final File journalFile;
+    private Writer out;
+    private long written;
+    /**
+     * Generation the journal becomes at the next rotation.
+     */
+    private int generation;
+    /**
+     * Records changed since the last flush, in the order they first changed.
+     */
+    private final LinkedHashMap<String, Change> pending = new LinkedHashMap<String, Change>();
+
+    /**
+     * A record waiting to be written, no model means it was removed.
+     * Fields other than 0 means only those fields of the document changed.
+     */
+    private static class Change {
+
+        private final String type;
+        private final int id;
+        private final Object model;
+        private int fields;
+
+        Change(String type, int id, Object model, int fields) {
+            this.type = type;
+            this.id = id;
+            this.model = model;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Opens the journal of a save file, appending to it if it's there.
+     * @param f save file the journal goes with
+     * @param data data model the journaled documents, searches and
+     * entities are part of
+     * @throws IOException could not open the journal
+     */
+    public SaveJournal(File f, DataModel data) throws IOException {
+        this.data = data;
+        saveFile = f;
+        journalFile = journalFile(f);
+        File[] old = generations(f);
+        generation = old.length == 0 ? 1 : generationOf(old[old.length - 1]) + 1;
+        open();
+    }
+
+    /**
+     * Finds if a save file has journal entries to replay.
+     * @param f save file
+     * @return true if there is a journal
+     */
+    public static boolean exists(File f) {
+        return journalFile(f).exists() || generations(f).length > 0;
+    }
+
+    /**
+     * Deletes the journal of a save file, for when a full save was written
+     * without one.
+     * @param f save file
+     */
+    public static void delete(File f) {
+        journalFile(f).delete();
+        for (File g : generations(f)) {
+            g.delete();
+        }
+    }
+
+    /**
+     * Writes the records that changed since the last flush.
+     * @throws IOException could not write to the journal
+     * @throws JSONException a record could not be written
+     */
+    public synchronized void flush() throws IOException, JSONException {
+        for (Change c : pending.values()) {
+            StringWriter line = new StringWriter();
+            JSONWriter w = new JSONWriter(line);
+            w.object();
+            if (c.model == null) {
+                w.key("op").value("del");
+                w.key("type").value(c.type);
+                w.key("id").value(c.id);
+            } else if (c.fields != 0) {
+                w.key("op").value("set");
+                w.key("type").value(c.type);
+                w.key("record");
+                writeFields(w, data.copyForSave((Document) c.model), c.fields);
+            } else {
+                w.key("op").value("put");
+                w.key("type").value(c.type);
+                w.key("record");
+                writeRecord(w, c.model);
+            }
+            w.endObject();
+            line.write('\n');
+            out.write(line.toString());
+            written += line.getBuffer().length();
+        }
+        pending.clear();
+        out.flush();
+    }
+
+    /**
+     * Finds if the journal grew big enough to be folded into a snapshot,
+     * that is bigger than the snapshot itself.
+     * @return true if it should be compacted
+     */
+    public synchronized boolean needsCompaction() {
+        return written > Math.max(MIN_COMPACT_SIZE, saveFile.length());
+    }
+
+    /**
+     * First step of compaction (and of a full save): flushes and moves the
+     * journal aside as a new generation, a new one is started for the
+     * changes to come. Call dropRotated with the generation once the
+     * snapshot is written.
+     * @return generation the journal became
+     * @throws IOException could not move the journal
+     * @throws JSONException a record could not be written
+     */
+    public synchronized int rotate() throws IOException, JSONException {
+        flush();
+        out.close();
+        int g = generation;
+        if (journalFile.exists() && !journalFile.renameTo(generationFile(saveFile, g))) {
+            open();
+            throw new IOException("Could not move " + journalFile);
+        }
+        generation++;
+        open();
+        return g;
+    }
+
+    /**
+     * Last step of compaction, the snapshot taken after a rotation is
+     * written so that generation and the ones before aren't needed any
+     * more. Later generations stay for their own save.
+     * @param g generation rotate gave before the snapshot was taken
+     */
+    public synchronized void dropRotated(int g) {
+        for (File f : generations(saveFile)) {
+            if (generationOf(f) <= g) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes the journal, the file stays for the next load.
+     */
+    public synchronized void close() {
+        try {
+            flush();
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Failed to flush the save journal", ex);
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Failed to close the save journal", ex);
+        }
+    }
+
+    /**
+     * Reads the journal of a save file, the generations moved aside in
+     * order then the current one. The changes are laid over the save file as it loads, see
+     * WorkspaceFormat.open.
+     * @param f save file
+     * @return journaled changes
+     * @throws IOException could not read the journal
+     */
+    public static WorkspaceChanges read(File f) throws IOException {
+        WorkspaceChanges changes = new WorkspaceChanges();
+        for (File g : generations(f)) {
+            readFile(g, changes);
+        }
+        readFile(journalFile(f), changes);
+        logger.log(Level.INFO, "Read {0} journal records", changes.size());
+        return changes;
+    }
+
+    /**
+     * Reads the lines of a journal file into changes.
+     * A line cut short by a crash ends the reading of that file.
+     * @param journal journal file, skipped if it doesn't exist
+     * @param changes changes to add to
+     */
+    private static void readFile(File journal, WorkspaceChanges changes) throws IOException {
+        if (!journal.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new FileReader(journal));
+        try {
+            String l;
+            while ((l = in.readLine()) != null) {
+                if (l.trim().length() == 0) {
+                    continue;
+                }
+                try {
+                    JSONObject line = new JSONObject(l);
+                    String op = line.getString("op");
+                    if (op.equals("put")) {
+                        changes.put(line.getString("type"), line.getJSONObject("record"));
+                    } else if (op.equals("set")) {
+                        changes.set(line.getString("type"), line.getJSONObject("record"));
+                    } else {
+                        changes.remove(line.getString("type"), line.getInt("id"));
+                    }
+                } catch (JSONException ex) {
+                    logger.log(Level.WARNING, "Journal " + journal + " ends with a bad line, rest skipped", ex);
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a model the way the save file does, data models from a copy.
+     */
+    private void writeRecord(JSONWriter w, Object model) throws JSONException {
+        if (model instanceof Document) {
+            data.copyForSave((Document) model).writeJSON(w);
+        } else if (model instanceof Search) {
+            data.copyForSave((Search) model).writeJSON(w);
+        } else if (model instanceof Entity) {
+            data.copyForSave((Entity) model).writeJSON(w);
+        } else if (model instanceof Node) {
+            ((Node) model).writeJSON(w);
+        } else {
+            ((Edge) model).writeJSON(w);
+        }
+    }
+
+    /**
+     * Writes some fields of a document, with its id.
+     * @param d copy of the document
+     * @param fields NAME, NOTES and HIGHLIGHTS flags
+     */
+    private static void writeFields(JSONWriter w, Document d, int fields) throws JSONException {
+        w.object();
+        w.key("ID").value(d.getId());
+        if ((fields & NAME) != 0 && d.getName() != null) {
+            w.key("name").value(d.getName());
+        }
+        if ((fields & NOTES) != 0 && d.getNotes() != null) {
+            w.key("notes").value(d.getNotes());
+        }
+        if ((fields & HIGHLIGHTS) != 0) {
+            w.key("highlights").array();
+            Iterator<Highlight> it = d.highlightIterator();
+            while (it.hasNext()) {
+                it.next().writeJSON(w);
+            }
+            w.endArray();
+        }
+        w.endObject();
+    }
+
+    /**
+     * Opens the journal for appending, what's already in it counts towards
+     * compaction.
+     */
+    private void open() throws IOException {
+        out = new BufferedWriter(new FileWriter(journalFile, true));
+        written = journalFile.length();
+    }
+
+    private static File journalFile(File f) {
+        return new File(f.getPath() + EXTENSION);
+    }
+
+    private static File generationFile(File f, int g) {
+        return new File(f.getPath() + EXTENSION + "." + g);
+    }
+
+    /**
+     * Finds the journal generations of a save file.
+     * @return generation files, oldest first
+     */
+    private static File[] generations(File f) {
+        File dir = f.getAbsoluteFile().getParentFile();
+        final String prefix = f.getName() + EXTENSION + ".";
+        File[] found = dir == null ? null : dir.listFiles(new FileFilter() {
+
+            public boolean accept(File g) {
+                return g.getName().startsWith(prefix) && generationOf(g) > 0;
+            }
+        });
+        if (found == null) {
+            return new File[0];
+        }
+        Arrays.sort(found, new Comparator<File>() {
+
+            public int compare(File a, File b) {
+                return generationOf(a) - generationOf(b);
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Gets the generation of a journal generation file.
+     * @return generation, 0 if the name doesn't end in one
+     */
+    private static int generationOf(File g) {
+        String name = g.getName();
+        try {
+            return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private synchronized void changed(String type, int id, Object model) {
+        pending.put(type + id, new Change(type, id, model, 0));
+    }
+
+    /**
+     * Marks fields of a document as changed, unless the whole document is
+     * going to be written anyway.
+     */
+    private synchronized void fieldsChanged(Document doc, int fields) {
+        Change c = pending.get(DOCUMENT + doc.getId());
+        if (c == null) {
+            pending.put(DOCUMENT + doc.getId(), new Change(DOCUMENT, doc.getId(), doc, fields));
+        } else if (c.fields != 0) {
+            c.fields |= fields;
+        }
+    }
+
+    /*
+     * Data events
+     */
+    public void documentAdded(Document doc) {
+        changed(DOCUMENT, doc.getId(), doc);
+    }
+
+    public void documentModified(Document doc, int type) {
+        switch (type) {
+            case DataListener.HIGHLIGHT:
+                fieldsChanged(doc, HIGHLIGHTS);
+                break;
+            case DataListener.NOTE:
+            case DataListener.ADDEDNOTE:
+            case DataListener.REMOVEDNOTE:
+                fieldsChanged(doc, NOTES);
+                break;
+            case DataListener.OTHER:
+                //renamed, or shown/hidden which isn't saved
+                fieldsChanged(doc, NAME);
+                break;
+            default:
+                //links and searches are saved with the entities
+        }
+    }
+
+    public void documentRemoved(Document doc) {
+        changed(DOCUMENT, doc.getId(), null);
+    }
+
+    public void entityAdded(Entity ent) {
+        changed(ENTITY, ent.getID(), ent);
+    }
+
+    public void entityModified(Entity ent, int type) {
+        changed(ENTITY, ent.getID(), ent);
+    }
+
+    public void entityDocumentAdded(Entity ent, Document doc) {
+        changed(ENTITY, ent.getID(), ent);
+    }
+
+    public void entityDocumentRemoved(Entity ent, Document doc) {
+        changed(ENTITY, ent.getID(), ent);
+    }
+
+    public void entityRemoved(Entity ent) {
+        changed(ENTITY, ent.getID(), null);
+    }
+
+    public void searchAdded(Search s) {
+        changed(SEARCH, s.getId(), s);
+    }
+
+    public void searchRemoved(Search s) {
+        changed(SEARCH, s.getId(), null);
+    }
+
+    public void entitySearchAdded(Entity ent, Search s) {
+        changed(ENTITY, ent.getID(), ent);
+    }
+
+    public void entitySearchRemoved(Entity ent, Search s) {
+        changed(ENTITY, ent.getID(), ent);
+    }
+
+    /*
+     * Graph events
+     */
+    public void nodeAdded(Node n) {
+        changed(NODE, n.getID(), n);
+    }
+
+    public void nodeModified(Node n, NodeModType t) {
+        changed(NODE, n.getID(), n);
+    }
+
+    public void nodeMoved(Node n) {
+        changed(NODE, n.getID(), n);
+    }
+
+    public void nodeRemoved(Node n) {
+        changed(NODE, n.getID(), null);
+    }
+
+    public void nodeSelected(Node n) {
+    }
+
+    public void nodeOpened(Node n) {
+        changed(NODE, n.getID(), n);
+    }
+
+    public void nodeClosed(Node n) {
+        changed(NODE, n.getID(), n);
+    }
+
+    public void edgeAdded(Edge e) {
+        changed(EDGE, e.getID(), e);
+    }
+
+    public void edgeModified(Edge e) {
+        changed(EDGE, e.getID(), e);
+    }
+
+    public void edgeRemoved(Edge e) {
+        changed(EDGE, e.getID(), null);
+    }
+
+    public void graphResized(Dimension d) {
+    }
+}
@@ -0,0 +1,197 @@
+package starspire.controllers;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import starspire.StarSpireApp;
+import starspire.models.WorkspaceFormat;
+import starspire.models.WorkspaceSnapshot;
+
+/**
+ * Writes workspace saves on a background thread so saving never holds up
+ * the EDT or the interaction pipeline.
+ *
+ * About the service:
+ * - The caller takes a WorkspaceSnapshot, that's the only part done on
+ *   its thread. Serializing and writing happen on the save thread.
+ * - Files are written to a temporary file and renamed over the old save
+ *   (see WorkspaceFormat.save), a failed save leaves the old one alone.
+ * - Requests that come in while one is already waiting replace it, only
+ *   the newest snapshot gets written.
+ * - Progress is reported through property change events on the EDT, the
+ *   same "progress" and "interaction" events the interaction pipeline
+ *   fires, so the progress bar shows saves too.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class SaveService {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    private final static String SAVE_NAME = "Saving";
+    /**
+     * How long closing waits for the last save.
+     */
+    private final static long SHUTDOWN_WAIT_SECONDS = 60;
+    private final ExecutorService writer;
+    private final AtomicReference<Job> waiting;
+    private final PropertyChangeSupport support;
+
+    /**
+     * A save waiting to be written.
+     */
+    private static class Job {
+
+        private final File file;
+        private final WorkspaceSnapshot snapshot;
+        private final Runnable done;
+
+        Job(File file, WorkspaceSnapshot snapshot, Runnable done) {
+            this.file = file;
+            this.snapshot = snapshot;
+            this.done = done;
+        }
+    }
+
+    /**
+     * Default constructor, sets up the save thread.
+     */
+    public SaveService() {
+        waiting = new AtomicReference<Job>();
+        support = new PropertyChangeSupport(this);
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Save Service");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queue a save. If a save is already waiting it's replaced by this one.
+     * @param f file to write
+     * @param snapshot workspace to write
+     * @param done run on the save thread once the file is written, can be null
+     */
+    public void save(File f, WorkspaceSnapshot snapshot, Runnable done) {
+        if (waiting.getAndSet(new Job(f, snapshot, done)) != null) {
+            //the waiting job was replaced, it's already queued
+            return;
+        }
+        writer.execute(new Runnable() {
+
+            public void run() {
+                Job job = waiting.getAndSet(null);
+                if (job != null) {
+                    write(job);
+                }
+            }
+        });
+    }
+
+    /**
+     * Blocks until the saves queued so far are written.
+     */
+    public void waitForSaves() {
+        try {
+            writer.submit(new Runnable() {
+
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        } catch (RejectedExecutionException ex) {
+            //already shut down, nothing left to wait for
+        }
+    }
+
+    /**
+     * Writes what was queued then stops the save thread, for closing
+     * projects. Waits for the last save to be on disk.
+     */
+    public void shutdown() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                logger.log(Level.SEVERE, "Save still running after {0}s", SHUTDOWN_WAIT_SECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Listen to the save progress and "interaction" events.
+     * @param l listener to add
+     */
+    public void addPropertyChangeListener(PropertyChangeListener l) {
+        support.addPropertyChangeListener(l);
+    }
+
+    /**
+     * Stop listening to saves.
+     * @param l listener to remove
+     */
+    public void removePropertyChangeListener(PropertyChangeListener l) {
+        support.removePropertyChangeListener(l);
+    }
+
+    /**
+     * Writes one save (save thread).
+     * @param job save to write
+     */
+    private void write(final Job job) {
+        fire(InteractionPipeline.INTERACTION_PROPERTY, null, SAVE_NAME);
+        job.snapshot.addPropertyChangeListener(new PropertyChangeListener() {
+
+            public void propertyChange(PropertyChangeEvent evt) {
+                fire(evt.getPropertyName(), evt.getOldValue(), evt.getNewValue());
+            }
+        });
+        try {
+            WorkspaceFormat.save(job.file, job.snapshot);
+            if (job.done != null) {
+                job.done.run();
+            }
+        } catch (final Exception ex) {
+            logger.log(Level.SEVERE, "Error writing file to disk", ex);
+            SwingUtilities.invokeLater(new Runnable() {
+
+                public void run() {
+                    JOptionPane.showMessageDialog(null, ex, "Error writing file to disk",
+                            JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        } finally {
+            fire(InteractionPipeline.INTERACTION_PROPERTY, SAVE_NAME, null);
+        }
+    }
+
+    /**
+     * Fires an event on the EDT.
+     */
+    private void fire(final String property, final Object oldValue, final Object newValue) {
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                support.firePropertyChange(property, oldValue, newValue);
+            }
+        });
+    }
+}
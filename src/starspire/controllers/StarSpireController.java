@@ -4,6 +4,7 @@ import starspire.views.DocumentViewer;
 import starspire.views.EntityViewer;
 import starspire.views.NodeView;
 import starspire.views.GraphView;
+import starspire.models.CoOccurrence;
 import starspire.models.Entity;
 import starspire.models.Edge;
 import starspire.models.GraphListener;
@@ -16,13 +17,20 @@ import starspire.models.DataModel;
 import starspire.models.GraphModel;
 import starspire.models.SearchNode;
 import starspire.models.Search;
+import starspire.models.SearchEngine;
+import starspire.models.SymbolTable;
 import starspire.models.GraphLayout;
 import starspire.models.DocumentNode;
+import starspire.models.Workspace;
+import starspire.models.WorkspaceFormat;
+import starspire.models.WorkspaceSnapshot;
 import starspire.StarSpireApp;
 import starspire.StarSpireUtility;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -55,7 +63,6 @@ public class StarSpireController implements ComponentListener, DataListener {
     private final static int JSON_FORMAT_INDENT = 2;
     private final static int DEFAULT_WIDTH = 900;
     private final static int DEFAULT_HEIGHT = 650;
-    private final static int DEFAULT_RTF_STRING_CAPACITY = 128;
     private final static int SELECTION_TOLERENCE = 5;
     private final static int OVERLAP_TOLERENCE = -15;
     private final static double PRUNING_THRESHOLD = .001;
@@ -68,6 +75,10 @@ public class StarSpireController implements ComponentListener, DataListener {
      * exists, it's up weighted by adding this. Why adding? good question..
      */
     private final static double EDGE_UP_WEIGHT_ADDER = 0.1;
+    /**
+     * Number of changes before autosave flushes the journal.
+     */
+    private final static int AUTOSAVE_CHANGES = 100;
 
     private static enum EntityUpdate {
 
@@ -92,6 +103,7 @@ public class StarSpireController implements ComponentListener, DataListener {
     private DocumentViewer docViewer;
     private EntityViewer entViewer;
     private SoftDataLogger softdata = null;
+    private SaveJournal journal = null;
     private SearchNode currentSearchNode;
     /*
      * Actions
@@ -112,66 +124,10 @@ public class StarSpireController implements ComponentListener, DataListener {
     private boolean mssiOn = true;
     private boolean bingOn = true;
     private boolean IEEEOn = true;
-
-    /**
-     * This private class is used to do the highlight background work...
-     * if we don't do it this way it can freeze the gui...
-     */
-    private class HighlightWorker extends SwingWorker<Void, Integer> {
-
-        private int start, end;
-        private Document doc;
-        //add enum for type
-
-        public HighlightWorker(Document d, int s, int e) {
-            start = s;
-            end = e;
-            doc = d;
-        }
-
-        @Override
-        protected Void doInBackground() {
-            System.out.println(Thread.currentThread().getName()
-                    + " generating entities for highlight.");
-            //get the entities of the highlighted text
-            String textHighlighted = doc.getContent(start, end);
-            Parser localParser = new Parser();
-            ArrayList<String> terms = localParser.parseString(textHighlighted);
-
-            ArrayList<String> extractedEntites = EntityExtractorWrapper.extractEntities(textHighlighted);
-
-            //these are the extracted entities
-            for (String s : extractedEntites) {
-                if (hasEntity(s)) {
-                    //this entity exists, upweight it
-                    //done in the loop below
-                } else {
-                    //this entity does not exist, create it
-                    addEntity(s, true);
-                    //upweighting done in the loop below
-                    //increaseEntityStrength(data.getEntity(s), EntityUpdate.HIGHLIGHT);
-                }
-            }
-
-            //these are the terms that are highlighted, upweight them
-            ArrayList<Entity> entsToUpweight = new ArrayList<Entity>();
-            for (String s : terms) {
-                if (hasEntity(s)) {
-                    //this is an entity, it has been highlighted, upweight it
-                    //increaseEntityStrength(data.getEntity(s), DataListener.HIGHLIGHT);
-                    entsToUpweight.add(data.getEntity(s));
-                }
-            }
-            if(mssiOn) {
-                retrieveDocuments(entsToUpweight, DataListener.HIGHLIGHT);
-            }
-
-            //add the highlight to the Document, and fire the event
-            data.addDocumentHighlight(doc, start, end);
-            graphLayout.start();
-            return null;
-        }
-    }
+    private InteractionPipeline interactions;
+    private SaveService saves;
+    private final RTFRenderer rtfRenderer = new RTFRenderer();
+    private final RTFRenderer notesRenderer = new RTFRenderer();
 
     /**
      * NodeViewAction
@@ -364,7 +320,7 @@ public class StarSpireController implements ComponentListener, DataListener {
             while(docEnts.hasNext()) {
                 int entCount = 0;
                 Entity e = docEnts.next();
-                String entName = e.getName().toLowerCase();
+                String entName = SymbolTable.name(e.getSymbol());
                 Pattern p = Pattern.compile(entName.toLowerCase());
                  Matcher m = p.matcher(content);
                  while(m.find()) {
@@ -393,7 +349,7 @@ public class StarSpireController implements ComponentListener, DataListener {
         
         while(ents.hasNext()) {
             Entity ent = ents.next();
-            String entName = ent.getName().toLowerCase();
+            String entName = SymbolTable.name(ent.getSymbol());
             int count = 0;
             Iterator<Document> docs = data.hiddenDocsIterator();
             while(docs.hasNext()) {
@@ -563,6 +519,33 @@ public class StarSpireController implements ComponentListener, DataListener {
         }
     }
 
+    /**
+     * This action cancels the interactions (retrievals, searches...) that
+     * are running or waiting in the background.
+     */
+    public class CancelInteractionsAction extends AbstractAction {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor
+         */
+        public CancelInteractionsAction(String name, Icon ico, int KeyEventCode) {
+            super(name);
+            if (KeyEventCode >= 0) {
+                putValue("KeyEventCode", KeyEventCode);
+            }
+        }
+
+        /**
+         * Cancel everything in the interaction pipeline
+         * @param e item clicked
+         */
+        public void actionPerformed(ActionEvent e) {
+            cancelInteractions();
+        }
+    }
+
     /**
      * Default constructor makes a new document.
      */
@@ -597,33 +580,22 @@ public class StarSpireController implements ComponentListener, DataListener {
      * Load file constructor, this constructor loads it's data from a file.
      * Fails if file doesn't exist of if not in correct format or something
      *
-     * @param f File to open as a ForceSpire JSON save
-     * @throws FileNotFoundException The given file was not found
+     * @param f File to open as a ForceSpire save, JSON or binary
+     * @throws IOException The given file was not found or couldn't be read
      * @throws JSONException JSON exception... try again?
      */
-    public StarSpireController(File f) throws FileNotFoundException, JSONException {
-        JSONObject forceSpireDoc, forceSpire, jsonData, jsonGraph, jsonLayout;
+    public StarSpireController(File f) throws IOException, JSONException {
+        Workspace reader;
         int w, h;
 
         System.out.println("Loading a ForceSpire file...");
 
-        forceSpireDoc = load(f);
-
-        forceSpire = forceSpireDoc.getJSONObject("ForceSpire");
-        System.out.print("\tproject data...");
-        jsonData = forceSpire.getJSONObject("DataModel");
-        System.out.println("done");
-        System.out.print("\tgraph data...");
-        jsonGraph = forceSpire.getJSONObject("GraphModel");
-        System.out.println("done");
-        System.out.print("\tlayout manager...");
-        jsonLayout = forceSpire.getJSONObject("GraphLayout");
-        System.out.println("done");
-        try {
-            w = forceSpire.getInt("Width");
-            h = forceSpire.getInt("Height");
-        } catch (JSONException e) {
-            logger.log(Level.SEVERE, "Error loading JSON size", e);
+        reader = load(f);
+
+        w = reader.getWidth();
+        h = reader.getHeight();
+        if (w < 0 || h < 0) {
+            logger.log(Level.SEVERE, "Error loading JSON size");
             System.err.println("Width and Height missing from saved file!"
                     + " Reverting to default values");
             w = DEFAULT_WIDTH;
@@ -631,21 +603,24 @@ public class StarSpireController implements ComponentListener, DataListener {
         }
         System.out.println("\tLoaded Size from file " + w + " by " + h);
 
-        setup(jsonGraph, jsonData, jsonLayout, w, h, 0);
+        setup(reader.getGraphModel(), reader.getDataModel(), reader.getLayout(), w, h, 0);
         saveLocation = f; //make sure we keep the file
+        if (SaveJournal.exists(f)) {
+            needSave = 1;
+        }
         System.out.println("...done loading.");
     }
 
     /**
      * This makes sure all constructors work consistently.
-     * @param jsonGraph Optional graph data
-     * @param jsonData Optional data data
+     * @param loadedGraph Optional graph loaded from a file
+     * @param loadedData Optional data loaded from a file
      * @param jsonLayout Optional graph
      * @param nwidth size of layout
      * @param nheight size of layout
      * @throws JSONException Oops looks like json file wasn't in the correct format
      */
-    private void setup(JSONObject jsonGraph, JSONObject jsonData, JSONObject jsonLayout, int nwidth, int nheight, int dcount) throws JSONException {
+    private void setup(GraphModel loadedGraph, DataModel loadedData, JSONObject jsonLayout, int nwidth, int nheight, int dcount) throws JSONException {
         /*
          * Set up the stuff
          */
@@ -658,12 +633,12 @@ public class StarSpireController implements ComponentListener, DataListener {
          * Set up models
          * only load data from json if not null.
          */
-        if (jsonData == null && jsonGraph == null) {
+        if (loadedData == null && loadedGraph == null) {
             data = new DataModel(dcount);
             graph = new GraphModel();
         } else {
-            data = new DataModel(jsonData);
-            graph = new GraphModel(jsonGraph, data);
+            data = loadedData;
+            graph = loadedGraph;
         }
 
         /*
@@ -686,6 +661,8 @@ public class StarSpireController implements ComponentListener, DataListener {
                 new LogUserDataAction("Log Soft Data", null, KeyEvent.VK_UNDEFINED));
         functions.add(
                 new SearchAction("Search", null, KeyEvent.VK_F));
+        functions.add(
+                new CancelInteractionsAction("Cancel Retrieval", null, KeyEvent.VK_UNDEFINED));
 
         documents = new ArrayList<AbstractAction>();
         documents.add(
@@ -714,6 +691,20 @@ public class StarSpireController implements ComponentListener, DataListener {
         graphLayout.setForceSpireController(this);
         graph.setGraphSize(new Dimension(width, height));
 
+        interactions = new InteractionPipeline();
+        interactions.addPropertyChangeListener(new PropertyChangeListener() {
+
+            public void propertyChange(PropertyChangeEvent evt) {
+                if (InteractionPipeline.INTERACTION_PROPERTY.equals(evt.getPropertyName())
+                        && evt.getNewValue() == null) {
+                    //pipeline went idle, let the layout catch up
+                    graphLayout.start();
+                }
+            }
+        });
+
+        saves = new SaveService();
+
         currentSearchNode = null;
 
         saveLocation = null;
@@ -723,20 +714,25 @@ public class StarSpireController implements ComponentListener, DataListener {
     }
 
     /**
-     * This method loads a JSON file into a JSON object. It's really a helper
-     * for the open file constructor.
-     * @param f JSON save file to open.
-     * @return JSONObject containing file data for the whole document/project
-     * @throws FileNotFoundException The given file was not found
+     * This method reads a save file into models. It's really a helper
+     * for the open file constructor. JSON and binary saves are both
+     * streamed (see WorkspaceFormat), changes autosave journaled and never
+     * made it into a full save are merged while reading.
+     * @param f save file to open.
+     * @return workspace holding the loaded models
+     * @throws IOException The given file was not found or couldn't be read
      * @throws JSONException JSON exception... try again?
      */
-    private JSONObject load(File f) throws FileNotFoundException, JSONException {
-        FileReader reader = new FileReader(f);
-        JSONTokener tokener = new JSONTokener(reader);
-        JSONObject forceSpireDoc = new JSONObject(tokener);
+    private Workspace load(File f) throws IOException, JSONException {
+        Workspace reader;
+        if (SaveJournal.exists(f)) {
+            System.out.println("\tReplaying save journal");
+            reader = WorkspaceFormat.open(f, SaveJournal.read(f));
+        } else {
+            reader = WorkspaceFormat.open(f);
+        }
         needSave = 0; // no need to save we just loaded.
-
-        return forceSpireDoc;
+        return reader;
     }
 
     /**
@@ -760,6 +756,8 @@ public class StarSpireController implements ComponentListener, DataListener {
     /**
      * If canSave() is true (just to double check)
      * It will save to the file save location.
+     * Only the snapshot is taken here, the file is written in the background
+     * by the save service.
      */
     public void save() {
         /*
@@ -768,13 +766,8 @@ public class StarSpireController implements ComponentListener, DataListener {
         if (canSave()) {
             System.out.print("Saving...");
             try {
-                //get the json
-                JSONObject forceSpireRoot = getJSONObject();
-
-                //save to file
-                FileWriter writer = new FileWriter(saveLocation);
-                writer.write(forceSpireRoot.toString(JSON_FORMAT_INDENT));
-                writer.close();
+                //queue the snapshot for the save thread
+                writeSnapshot();
 
                 needSave = 0;
 
@@ -800,6 +793,51 @@ public class StarSpireController implements ComponentListener, DataListener {
         //System.out.println("done.");
     }
 
+    /**
+     * Copies the project for saving, see WorkspaceSnapshot.
+     * @return snapshot of the models, size and layout
+     * @throws JSONException something in the models couldn't be copied
+     */
+    private WorkspaceSnapshot snapshot() throws JSONException {
+        return WorkspaceSnapshot.take(data, graph, mainPanel.getSize().width,
+                mainPanel.getSize().height, graphLayout.getJSONOjbect());
+    }
+
+    /**
+     * Queues a full save of the project to the save location, binary if
+     * the file ends in .ssw and JSON otherwise. The save is written by the
+     * save service, the journal entries it holds are dropped once it's on
+     * disk.
+     * @throws IOException could not move the journal aside
+     * @throws JSONException something in the models couldn't be copied
+     */
+    private void writeSnapshot() throws IOException, JSONException {
+        final SaveJournal j = journal;
+        Runnable done = null;
+        if (j != null) {
+            //changes from now on go in a new journal, the save only drops
+            //the generations it holds
+            final int generation = j.rotate();
+            done = new Runnable() {
+
+                public void run() {
+                    j.dropRotated(generation);
+                }
+            };
+        } else {
+            //the save has everything, an old journal would replay on top
+            SaveJournal.delete(saveLocation);
+        }
+        saves.save(saveLocation, snapshot(), done);
+    }
+
+    /**
+     * Blocks until the saves queued so far are on disk, for quitting.
+     */
+    public void waitForSaves() {
+        saves.waitForSaves();
+    }
+
     /**
      * Save as works when save doesn't, it takes in a file and sets it as the
      * new current file location to use for save.
@@ -808,28 +846,92 @@ public class StarSpireController implements ComponentListener, DataListener {
      */
     public void saveAs(File f) {
         if (f != null) {
+            stopJournal();
             saveLocation = f;
             save();
+            if (autoSave) {
+                startJournal();
+            }
+        }
+    }
+
+    /**
+     * Turns autosave on or off. When it's on changes are journaled next to
+     * the save file (see SaveJournal) and folded into it in the background.
+     * @param on true to autosave
+     */
+    public void setAutoSave(boolean on) {
+        autoSave = on;
+        if (on && canSave()) {
+            if (needSave()) {
+                //the journal starts from a full save
+                save();
+            }
+            startJournal();
+        } else if (!on) {
+            stopJournal();
+        }
+    }
+
+    /**
+     * Finds if autosave is on.
+     * @return true if autosave is on
+     */
+    public boolean isAutoSave() {
+        return autoSave;
+    }
+
+    /**
+     * Starts journaling changes for autosave.
+     */
+    private void startJournal() {
+        if (journal != null || !canSave()) {
+            return;
+        }
+        try {
+            journal = new SaveJournal(saveLocation, data);
+            data.addDataListener(journal);
+            graph.addListener(journal);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, ex, "Error opening save journal",
+                    JOptionPane.ERROR_MESSAGE);
+            logger.log(Level.SEVERE, "Error opening save journal", ex);
+        }
+    }
+
+    /**
+     * Stops journaling, what was journaled stays until the next full save.
+     */
+    private void stopJournal() {
+        if (journal != null) {
+            data.removeDataListener(journal);
+            graph.removeListener(journal);
+            journal.close();
+            journal = null;
         }
     }
 
+
+    /**
+     * Autosave, appends what changed to the journal once enough changes
+     * piled up. The cost follows the changes, not the workspace size.
+     */
     public void doAutoSave() {
-        if (canSave() && autoSave && (needSave > 100)) {
+        if (canSave() && autoSave && journal != null && (needSave > AUTOSAVE_CHANGES)) {
             System.out.print("AutoSaving...");
             try {
-                //get the json
-                JSONObject forceSpireRoot = getJSONObject();
-
                 //get the time and date
                 //Calendar cal = Calendar.getInstance();
                 //Date now = calendar.getTime();
 
-                //save to file
-                FileWriter writer = new FileWriter(saveLocation);
-                writer.write(forceSpireRoot.toString(JSON_FORMAT_INDENT));
-                writer.close();
+                //only the changed records go to the journal
+                journal.flush();
 
                 needSave = 0;
+                if (journal.needsCompaction()) {
+                    //fold it into a full save, in the background
+                    writeSnapshot();
+                }
 
                 //print it out for debug
                 //System.out.println(forceSpireRoot.toString(JSON_FORMAT_INDENT));
@@ -859,69 +961,35 @@ public class StarSpireController implements ComponentListener, DataListener {
      * @param start start position of the highlight
      * @param end end position
      */
-    public void addDocumentHighlight(Document d, int start, int end) {
-        /*
-        graphLayout.stop();
-        SwingWorker worker = new HighlightWorker(d, start, end);
-        worker.execute();
-         *
-         */
-
-//        System.out.println(Thread.currentThread().getName()
-//                + " generating entities for highlight.");
-        graphLayout.stop();
-        //get the entities of the highlighted text
-        String textHighlighted = d.getContent(start + 1, end + 1);
-        //System.out.println("highlighted text: "+textHighlighted);
-        Parser localParser = new Parser();
-        ArrayList<String> terms = localParser.parseString(textHighlighted);
-        System.out.println("i highlighted: " + textHighlighted);
-
-
-        /*
-        ArrayList<String> extractedEntites = EntityExtractorWrapper.extractEntities(textHighlighted);
-        
-        //these are the extracted entities
-        for (String s : extractedEntites) {
-        if (hasEntity(s)) {
-        //this entity exists, upweight it
-        //done in the loop below
-        } else {
-        //this entity does not exist, create it
-        addEntity(s, true);
-        //upweighting done in the loop below
-        //increaseEntityStrength(data.getEntity(s), EntityUpdate.HIGHLIGHT);
-        }
-        }
-         * 
-         */
-        
-        ArrayList<Entity> entsToUpweight = new ArrayList<Entity>();
-        for(int i = 0; i < terms.size(); i++) {
-        	entsToUpweight.add(data.getEntity(terms.get(i)));
-        	System.out.println("upweighting: " + data.getEntity(terms.get(i)));
-        	
-        }
-
-        //these are the terms that are highlighted, upweight them
-        for (String s : terms) {
-            //System.out.println("highlight checking: "+s);
-            if (hasEntity(s)) {
-                //this is an entity, it has been highlighted, upweight it
-                //increaseEntityStrength(data.getEntity(s), DataListener.HIGHLIGHT);
-            } else {
-                //this term has been highlighted, but is not an entity, let's make it one!
-                addEntity(s, true);
-                //increaseEntityStrength(data.getEntity(s), DataListener.HIGHLIGHT);
+    public void addDocumentHighlight(final Document d, final int start, final int end) {
+        submitInteraction(new InteractionPipeline.Task("Highlight") {
+
+            @Override
+            protected void perform() throws Exception {
+                //get the entities of the highlighted text, from the document's tokens
+                final ArrayList<String> terms = data.getTerms(d, start + 1, end + 1);
+                System.out.println("i highlighted: " + terms);
+
+                //these are the terms that are highlighted, upweight them
+                //getEntity makes the term an entity if it isn't one yet
+                final ArrayList<Entity> entsToUpweight = new ArrayList<Entity>();
+                apply(new Runnable() {
+
+                    public void run() {
+                        for (String s : terms) {
+                            Entity e = data.getEntity(s);
+                            entsToUpweight.add(e);
+                            System.out.println("upweighting: " + e);
+                        }
+                        //add the highlight to the Document, and fire the event
+                        data.addDocumentHighlight(d, start, end);
+                    }
+                });
+                if (mssiOn) {
+                    retrieveDocuments(this, entsToUpweight, DataListener.HIGHLIGHT, 1);
+                }
             }
-        }
-        if(mssiOn) {
-            retrieveDocuments(entsToUpweight, DataListener.HIGHLIGHT);
-        }
-
-        //add the highlight to the Document, and fire the event
-        data.addDocumentHighlight(d, start, end);
-        graphLayout.start();
+        });
     }
 
     /**
@@ -971,8 +1039,12 @@ public class StarSpireController implements ComponentListener, DataListener {
      * It will stop the thread dead this way it can be closed.
      */
     public void close() {
+        interactions.shutdown();
         nodeAction.closeNodeView();
         graphLayout.stop();
+        stopJournal();
+        saves.shutdown();
+        data.close();
         if (softdata != null) {
             softdata.closeLog();
         }
@@ -1197,71 +1269,8 @@ public class StarSpireController implements ComponentListener, DataListener {
      * @return RTF converted string with documents highlighted
      */
     public String getRTFEnhancedText(String plain, Iterator<Entity> entities, Iterator<Search> searches) {
-        //open rtf tag
-
-        StringBuilder rtf = new StringBuilder(DEFAULT_RTF_STRING_CAPACITY);
-        rtf.append("{\\rtf1\\ansi\n");
-        rtf.append("{\\fonttbl\\f0\\fswiss\\fcharset0 Helvetica;}\n"); /* define font # */
-        //rtf.append("{\\fonttbl\\f0\\fswiss\\fcharset0;}\n"); /* define font # */
-        rtf.append("{\\colortbl;\\red255\\green0\\blue0;\\red252\\green193\\blue91;\\red250\\green219\\blue135;\\red252\\green235\\blue169;\\red255\\green255\\blue255;}\n");
-        rtf.append("\\f0\\fs24"); /* set font # and font size */
-        //plain = plain.replaceAll(Pattern.quote("newlinechar"), Matcher.quoteReplacement("{\\par}"));
-
-     
-        String plainWithEntities = plain;
-        Iterator<Search> ss = searches;
-        
-        double maxEstrength = data.getMaxEntityStrength();
-
-        while(ss.hasNext()) {
-            Search s = ss.next();
-            //plainWithEntities = plainWithEntities.replaceAll("(?i)" + Pattern.quote(s.getSearchTerm()), Matcher.quoteReplacement("{\\cf1 " + s.getSearchTerm() + "}"));
-            //plainWithEntities = plainWithEntities.replaceAll("(?i)" + Pattern.quote(s.getSearchTerm()), "{\\cf1" + "$1 }");
-            plainWithEntities = plainWithEntities.replaceAll("(?i)" + "("+Pattern.quote(s.getSearchTerm())+")", Matcher.quoteReplacement("{\\b ") +  "$1}");
-         }
-        
-        
-        //add highlights for entities in text.
-        while (entities.hasNext()) {
-            Entity e = entities.next();
-            double strength = e.getStrength();
-            //highlight colors start at 3
-            String highN = "6";
-            if(strength > maxEstrength * .80) {
-                highN = "3";
-            }
-            else if(strength > maxEstrength * .40) {
-                highN = "4";
-            }
-            else if(strength > maxEstrength * .25) {
-                highN = "5";
-            }
-            
-            if(strength < 1.0) {
-                highN = "6";
-            }
-            
-            plainWithEntities = plainWithEntities.replaceAll(Pattern.quote(e.getName()), Matcher.quoteReplacement("{\\ul\\highlight" + highN + " " + e.getName() + "}"));
-        }
-        
-       /* while(searches.hasNext()) {
-            Search s = searches.next();
-            Color sc = Color.getHSBColor(s.getHue() / 360.0f, 100.0f, 100.0f);
-            plainWithEntities = plainWithEntities.replaceAll(Pattern.quote(s.getSearchTerm()), Matcher.quoteReplacement("{\\uldb " + s.getSearchTerm() + "}"));
-
-            
-        }
-            */   
-        
-        // \strike, \strike0 to turn it off
-
-        //add that to the rtf text.
-        rtf.append(plainWithEntities);
-
-        //close rtf tag
-        rtf.append(" \n\n}");
-
-        return rtf.toString();
+        return rtfRenderer.render(null, plain, toList(entities), toList(searches),
+                data.getMaxEntityStrength());
     }
 
     /**
@@ -1271,18 +1280,43 @@ public class StarSpireController implements ComponentListener, DataListener {
      * @return formated note with entities underlined.
      */
     public String getNotesRTF(Document doc) {
-        return getRTFEnhancedText(doc.getNotes(), doc.iterator(), data.searchIterator());
+        return notesRenderer.render(doc, doc.getNotes(), toList(doc.iterator()),
+                toList(data.searchIterator()), data.getMaxEntityStrength());
     }
 
     /**
      * Returns the RTF formated text for the document.
-     * This simply calls the RTF helper with a string and a list of entities from
-     * the document.
+     * The span layout is cached per document so strength changes only
+     * rebuild the colours (see RTFRenderer).
      * @param doc document to return the content in RTF format for.
      * @return document's content in RTF format with entities underlined.
      */
     public String getDocumentRTF(Document doc) {
-        return getRTFEnhancedText(doc.getContent(), doc.iterator(), data.searchIterator());
+        return rtfRenderer.render(doc, doc.getContent(), toList(doc.iterator()),
+                toList(data.searchIterator()), data.getMaxEntityStrength());
+    }
+
+    /**
+     * Copies what's left in an iterator to a list.
+     * @param iter iterator to drain
+     * @return list of the elements
+     */
+    private static <T> ArrayList<T> toList(Iterator<T> iter) {
+        ArrayList<T> list = new ArrayList<T>();
+        while (iter.hasNext()) {
+            list.add(iter.next());
+        }
+        return list;
+    }
+
+    /**
+     * Streams the same structure as getJSONObject to a writer
+     * (see save_format_draft.json), one record at a time.
+     * @param w JSON writer to use, nothing must have been written yet
+     * @throws JSONException something went wrong
+     */
+    public void writeJSON(JSONWriter w) throws JSONException {
+        WorkspaceFormat.writeJSON(w, snapshot());
     }
 
     /**
@@ -1333,18 +1367,8 @@ public class StarSpireController implements ComponentListener, DataListener {
 
         //get all the entities the need to be linked
         //if they match, we are going to recommend upweighting them?!!
-        Iterator<Entity> doc1Ents = docs.get(0).iterator();
-        //Iterator<Entity> doc2Ents = docs.get(1).iterator();
-
-        ArrayList<Entity> matchingEntities = new ArrayList<Entity>();
-
-        while (doc1Ents.hasNext()) {
-            Entity e1 = doc1Ents.next();
-            if (docs.get(1).hasEntity(e1)) {
-                matchingEntities.add(e1);
-                //System.out.println(e1.toString() + " matches");
-            }
-        }
+        ArrayList<Entity> matchingEntities = new ArrayList<Entity>(
+                CoOccurrence.sharedEntities(docs.get(0), docs.get(1)));
 
         fullDocLink.setEntitiesUpweight(matchingEntities);
 
@@ -1375,6 +1399,7 @@ public class StarSpireController implements ComponentListener, DataListener {
             retrieveDocuments(entsToUpweight, DataListener.LINK);
         }
 
+        //the retrieval holds its own copy of the entities
         finalDocLink.clear();
         return finalDocLink;
     }
@@ -1388,10 +1413,10 @@ public class StarSpireController implements ComponentListener, DataListener {
         increaseDocWeight(d, amount, true);
     }
     
-    public void increaseDocWeight(Document d, double amount, boolean retrieve) {
+    public void increaseDocWeight(final Document d, final double amount, boolean retrieve) {
         stopLayout();
         Iterator<Entity> ents = d.getEntityIterator();
-        ArrayList<Entity> entsToUpweight = new ArrayList<Entity>();
+        final ArrayList<Entity> entsToUpweight = new ArrayList<Entity>();
 
         while(ents.hasNext()) {
             Entity e = ents.next();
@@ -1402,7 +1427,20 @@ public class StarSpireController implements ComponentListener, DataListener {
         }
         
         if(retrieve && amount != 0.5) { //this value comes from GraphView where a node is opened - we don't want to search then!!
-            retrieveDocuments(entsToUpweight, DataListener.OTHER, amount, retrieve);
+            submitInteraction(new InteractionPipeline.Task("Find Similar") {
+
+                @Override
+                protected void perform() throws Exception {
+                    retrieveDocuments(this, entsToUpweight, DataListener.OTHER, amount);
+                    apply(new Runnable() {
+
+                        public void run() {
+                            data.updateDocument(d, DataListener.INCREASED);
+                        }
+                    });
+                }
+            });
+            return;
         }
         
         data.updateDocument(d, DataListener.INCREASED);
@@ -1778,22 +1816,51 @@ public class StarSpireController implements ComponentListener, DataListener {
         data.setDocumentName(document, text);
     }
     
+    /**
+     * Queue a retrieval for the given entities in the interaction pipeline.
+     * @param ent entities the user showed interest in
+     * @param type interaction that caused the retrieval (DataListener.type)
+     */
     private void retrieveDocuments(ArrayList<Entity> ent, int type) {
         double amount = 1;
         retrieveDocuments(ent, type, amount);
     }
     
-    private void retrieveDocuments(ArrayList<Entity> ent, int type, double amount) {
-        retrieveDocuments(ent, type, amount, true);
-    }    
-    private void retrieveDocuments(ArrayList<Entity> ent, int type, double amount, boolean retrieve) {
-        
-        boolean canPrune = true;
-        
-        while(canPrune) {
-            //see if any documents fall below a threshold and get rid of them
-            canPrune = pruneDocuments();
-        }
+    private void retrieveDocuments(final ArrayList<Entity> ent, final int type, final double amount) {
+        submitInteraction(new InteractionPipeline.Task("Retrieve Documents") {
+
+            @Override
+            protected void perform() throws Exception {
+                retrieveDocuments(this, ent, type, amount);
+            }
+        });
+    }
+
+    /**
+     * Does a retrieval as part of an interaction task. Pruning, adding documents
+     * and upweighting entities are applied on the EDT, fetching, extraction and
+     * ranking run on the pipeline thread.
+     * @param task interaction doing the retrieval
+     * @param ent entities the user showed interest in
+     * @param type interaction that caused the retrieval (DataListener.type)
+     * @param amount how much to upweight the entities
+     * @throws Exception if the task was cancelled or a step failed
+     */
+    private void retrieveDocuments(InteractionPipeline.Task task, final ArrayList<Entity> ent,
+            final int type, final double amount) throws Exception {
+
+        task.apply(new Runnable() {
+
+            public void run() {
+                boolean canPrune = true;
+
+                while(canPrune) {
+                    //see if any documents fall below a threshold and get rid of them
+                    canPrune = pruneDocuments();
+                }
+            }
+        });
+        task.step(10);
         
         if (bingOn || IEEEOn) {
             WebHandler wh = new WebHandler();
@@ -1804,61 +1871,100 @@ public class StarSpireController implements ComponentListener, DataListener {
                 entString = entString.concat(e.getName() + " ");
             }
 
+            //each source is shown as soon as it comes back
             if (bingOn) {
+                final java.util.List<Document> fetched = wh.fetchBingDocuments(entString);
+                task.apply(new Runnable() {
 
-                wh.retrieveBingArticles(data, entString);
+                    public void run() {
+                        for (Document d : fetched) {
+                            data.addDocument(d);
+                        }
+                    }
+                });
             }
+            task.step(25);
             if (IEEEOn) {
-                wh.retrieveIEEEArticles(data, entString);
+                final java.util.List<Document> fetched = wh.fetchIEEEDocuments(entString);
+                task.apply(new Runnable() {
+
+                    public void run() {
+                        for (Document d : fetched) {
+                            data.addDocument(d);
+                        }
+                    }
+                });
             }
         }
-        this.generateNewEntities();
+        task.step(40);
+        this.generateNewEntities(task);
+        task.step(70);
         
     	int docAddLimit = 10;
-        double threshold = data.getTotalStrength() * REG_THRESHOLD;
+        final double threshold;
         if(type == DataListener.SEARCH) {
             docAddLimit = 20;
             threshold = data.getTotalStrength() * SEARCH_THRESHOLD;
+        } else {
+            threshold = data.getTotalStrength() * REG_THRESHOLD;
         }
         
         
-    	ArrayList<Document> docsToAdd = new ArrayList<Document>();
-    	Iterator<Document> hiddenDocs = data.hiddenDocsIterator();
-    	while (hiddenDocs.hasNext()) {
-            Document current = hiddenDocs.next();
-            boolean matchFound = false;
-            for(int i = 0; i < ent.size(); i++) {
-            	if(!matchFound) {
-	            	if (current.getContent().toUpperCase().contains(ent.get(i).getName().toUpperCase())) {
-	            		matchFound = true;
-	            		docsToAdd.add(current);
-	            	}
-            	}
+        /*
+         * Candidates come from the search engine. A search ranks the hidden
+         * documents for its query (the entity's name) by BM25, other
+         * interactions take the hidden documents with any of the entities
+         * and rank them by entity strength. Names of only stop words or
+         * punctuation aren't in the index, DataModel.findDocuments scans
+         * for them.
+         * Note these are reverse sorted, the best is last.
+         */
+        final Document[] docsToSort;
+        if (type == DataListener.SEARCH) {
+            String name = ent.get(0).getName();
+            java.util.List<Document> best = new ArrayList<Document>();
+            if (new Parser.Tokenizer(name).next()) {
+                for (SearchEngine.Result r : data.rankDocuments(name, docAddLimit, SearchEngine.HIDDEN)) {
+                    best.add(r.getDocument());
+                }
+            } else {
+                java.util.List<Document> found = data.findDocuments(name, SearchEngine.HIDDEN);
+                best = found.subList(0, Math.min(docAddLimit, found.size()));
             }
-    	}
-    	System.out.println("Found " + docsToAdd.size() + " potential matches");
-    	
-    	Document[] docsToSort = new Document[docsToAdd.size()];
-        
-        for(int i = 0; i < docsToAdd.size(); i++) {
-            docsToSort[i] = docsToAdd.get(i);
-        }
-        
-        //note these are reverse sorted
-        for(int i = 1; i < docsToSort.length; i++) {
-            Document docKey = docsToSort[i];
-            
-            double totalWeight = docsToSort[i].getTotalEntityStrength();
-            
-            //double tfidf = ent.getTFIDFdoc(docsToSort[i]);
-            int j = i - 1;
-            while(j >= 0 && docsToSort[j].getTotalEntityStrength() > totalWeight) {
-                docsToSort[j + 1] = docsToSort[j];
-                j--;
+            docsToSort = new Document[best.size()];
+            for (int i = 0; i < docsToSort.length; i++) {
+                docsToSort[docsToSort.length - 1 - i] = best.get(i);
+            }
+        } else {
+            StringBuilder query = new StringBuilder();
+            LinkedHashSet<Document> docsToAdd = new LinkedHashSet<Document>();
+            java.util.List<Document> scanned = new ArrayList<Document>();
+            for (Entity e : ent) {
+                if (!new Parser.Tokenizer(e.getName()).next()) {
+                    scanned.addAll(data.findDocuments(e.getName(), SearchEngine.HIDDEN));
+                    continue;
+                }
+                if (query.length() > 0) {
+                    query.append(" OR ");
+                }
+                query.append('"').append(e.getName().replace('"', ' ')).append('"');
+            }
+            if (query.length() > 0) {
+                docsToAdd.addAll(data.searchDocuments(query.toString(), SearchEngine.HIDDEN));
             }
-            docsToSort[j + 1] = docKey;
+            docsToAdd.addAll(scanned);
+            docsToSort = docsToAdd.toArray(new Document[docsToAdd.size()]);
+            //stable, documents of the same strength stay in order
+            Arrays.sort(docsToSort, new Comparator<Document>() {
+
+                public int compare(Document a, Document b) {
+                    return Double.compare(a.getTotalEntityStrength(), b.getTotalEntityStrength());
+                }
+            });
         }
-        
+        task.checkCancelled();
+        System.out.println("Found " + docsToSort.length + " potential matches");
+
         //System.out.println("results sorted");
         
         System.out.println(docsToSort.length);
@@ -1867,47 +1973,86 @@ public class StarSpireController implements ComponentListener, DataListener {
         if(docAddLimit > docsToSort.length) {
         	docAddLimit = docsToSort.length;
         }
-        for(int i = docsToSort.length - 1; i > docsToSort.length - docAddLimit - 1; i--) {
-            Document d = docsToSort[i];
-            double docStrength = d.getTotalEntityStrength();
-			         
-            if(docStrength >= threshold) {
-			            
-                data.addDocument(d);
-                Iterator<Entity> entities = d.iterator();
-                while(entities.hasNext()) {
-                    Entity e = entities.next();
-                    data.getEntity(e.getName()).addDocument(d);
-                    this.entityDocumentAdded(e, d);
+        final int addLimit = docAddLimit;
+        task.step(85);
+        task.apply(new Runnable() {
+
+            public void run() {
+                for(int i = docsToSort.length - 1; i > docsToSort.length - addLimit - 1; i--) {
+                    Document d = docsToSort[i];
+                    double docStrength = d.getTotalEntityStrength();
+
+                    if(docStrength >= threshold) {
+
+                        data.addDocument(d);
+                        Iterator<Entity> entities = d.iterator();
+                        while(entities.hasNext()) {
+                            Entity e = entities.next();
+                            data.getEntity(e.getName()).addDocument(d);
+                            entityDocumentAdded(e, d);
+                        }
+                    }
+                    else {
+                        System.out.println(d.getName() + " doc rejected - not relevant enough");
+                    }
                 }
+
+                System.out.println(addLimit + " added to workspace");
+
+                if(addLimit > 0) {
+                    //docs were added, update the recency. otherwise don't
+                    updateRecency();
+                }
+
+
+                for(Entity e : ent) {
+                    setEntityStrength(e, (e.getStrength() + 1.0 * amount), type);
+                }
+
+                Iterator<Search> searches = data.searchIterator();
+                while(searches.hasNext()) {
+                    Search s = searches.next();
+                    searchHighlight(s);
+                }
+                mainPanel.tryRefresh();
             }
-            else {
-                System.out.println(d.getName() + " doc rejected - not relevant enough");
-            }
-        }
-        
-        System.out.println(docAddLimit + " added to workspace");
-        
-        if(docAddLimit > 0) {
-            //docs were added, update the recency. otherwise don't
-            updateRecency();
-        }
-        
-        
-        for(Entity e : ent) {
-            setEntityStrength(e, (e.getStrength() + 1.0 * amount), type);
-        }
-          
-        docsToAdd.clear();
-        //System.out.println("done");
-        
-        Iterator<Search> searches = data.searchIterator();
-        while(searches.hasNext()) {
-            Search s = searches.next();
-            searchHighlight(s);
-        }
-        mainPanel.tryRefresh();
-    	
+        });
+        task.step(100);
+    }
+
+    /**
+     * Queue an interaction. The layout is stopped while interactions run
+     * and restarted once the pipeline is idle.
+     * @param task interaction to queue
+     */
+    private void submitInteraction(InteractionPipeline.Task task) {
+        graphLayout.stop();
+        interactions.submit(task);
+    }
+
+    /**
+     * Cancel the interactions running or waiting in the background.
+     */
+    public void cancelInteractions() {
+        interactions.cancelAll();
+    }
+
+    /**
+     * Listen to the progress of background interactions and saves.
+     * @param l listener for "progress", "state" and "interaction" events
+     */
+    public void addInteractionListener(PropertyChangeListener l) {
+        interactions.addPropertyChangeListener(l);
+        saves.addPropertyChangeListener(l);
+    }
+
+    /**
+     * Stop listening to background interactions.
+     * @param l listener to remove
+     */
+    public void removeInteractionListener(PropertyChangeListener l) {
+        interactions.removePropertyChangeListener(l);
+        saves.removePropertyChangeListener(l);
     }
     
     private void updateRecency() {
@@ -2116,35 +2261,6 @@ public class StarSpireController implements ComponentListener, DataListener {
         }
     }
 
-    /**
-     * Parse the list of documents for entities that are currently in the model.
-     * NOTE: This will not create new entities, only parse documents that have been
-     * added to the model for entities that are currently in the model.
-     */
-    private void parseDocumentsForCurrentEntities() {
-        //System.out.print("parsing new docuemnts for entities");
-        Iterator<Document> docs = data.documentIterator();
-        int doccount = 1;
-        Parser parser = new Parser();
-        while (docs.hasNext()) {
-            Document doc = docs.next();
-            //System.out.println("("+doccount+")");
-            doccount++;
-            //Parse each document for entities
-            String toParse = doc.getContent();
-            ArrayList<String> stringList = parser.parseString(toParse);
-
-            for (String s : stringList) {
-                if (data.hasEntity(s)) {
-                    //adds Entity to list in Doc, Doc to list in Entity
-                    //System.out.println("linking with entity: " + s);
-                    data.link(data.getEntity(s), doc);
-                }
-            }
-        }
-        //System.out.println("done.");
-    }
-
     /**
      * This takes a jigsaw file and parses the xml. It adds all the documents
      * and entities to the current model.
@@ -2160,10 +2276,11 @@ public class StarSpireController implements ComponentListener, DataListener {
         /*
          * Read the info from the .jig files
          */
+        JigsawSAXHandler handler = null;
         try {
             SAXParserFactory factory = SAXParserFactory.newInstance();
             SAXParser saxParser = factory.newSAXParser();
-            JigsawSAXHandler handler = new JigsawSAXHandler(data);
+            handler = new JigsawSAXHandler(data);
             InputStream inputStream = new FileInputStream(file);
             Reader reader = new InputStreamReader(inputStream, "UTF-8");
             InputSource is = new InputSource(reader);
@@ -2179,6 +2296,11 @@ public class StarSpireController implements ComponentListener, DataListener {
                     JOptionPane.ERROR_MESSAGE);
             logger.log(Level.SEVERE, "", ex);
             //System.err.print(ex.getStackTrace());
+        } finally {
+            //commit whatever was read, even if the file broke half way
+            if (handler != null) {
+                handler.finish();
+            }
         }
         System.out.println(data.getDocumentCount() + " documents in StarSPIRE");
         System.out.println(data.getHiddenDocCount() + " documents loaded");
@@ -2239,124 +2361,121 @@ public class StarSpireController implements ComponentListener, DataListener {
      * entities, or if only current entities should be applied to new docs
      * @param files array of files to load up.
      */
-    private void addDocumentsFromFile(File[] files) {
-        /*
-         * stop the layout to avoid concurrent problems
-         */
-        graphLayout.stop();
+    private void addDocumentsFromFile(final File[] files) {
+        submitInteraction(new InteractionPipeline.Task("Import Documents") {
 
-        try {
-            /*
-             * Read the info from the .txt files
-             */
-            int numOfDocs = 0;
-            /*
-             * Add a Document for each file
-             */
-            long start = System.currentTimeMillis();
-            System.out.print("loading documents");
-            for (File file : files) {
-                StringBuilder sb = new StringBuilder();
-                Scanner scanner = new Scanner(new FileInputStream(file));
-                try {
-                    while (scanner.hasNextLine()) {
-                        sb.append(scanner.nextLine());
-                    }
-                } finally {
-                    scanner.close();
-                }
-                String s = "\n" + sb.toString();
-                System.out.println(s.substring(0, 20));
-                data.addDocument(s, file.getName());
-                Document d = new Document(sb.toString(), file.getName());
-                
-                if (numOfDocs % 1000 == 0) {
-                    System.out.print(".");
-                }
-                //System.out.println("Created Document: " + file.getName());
-                numOfDocs++;
+            @Override
+            protected void perform() throws Exception {
+                long start = System.currentTimeMillis();
+                java.util.List<Document> added = new TextImport(data).run(files, this);
+                long end = System.currentTimeMillis();
+                System.out.println("Loaded documents in: " + (end - start) + " milliseconds.");
+                System.out.println("Imported " + added.size() + " files.");
+                generateNewEntities(this);
             }
-            long end = System.currentTimeMillis();
-            System.out.println("done");
-            System.out.println("Loaded documents in: " + (end - start) + " milliseconds.");
-            System.out.println("Imported " + numOfDocs + " files.");
-            /*
-             * Parse each Document for Entities
-             */
-            parseDocumentsForCurrentEntities();
-
-        } catch (Exception ex) {
-            JOptionPane.showMessageDialog(null, ex, "File Folder import exception!",
-                    JOptionPane.ERROR_MESSAGE);
-            logger.log(Level.SEVERE, "File Folder import exception", ex);
-            //System.err.print(ex);
-        }
-        
-        this.generateNewEntities();
-
-        /*
-         * Start the layout again AFTER all the loading is done.
-         */
-        startLayout();
 
+            @Override
+            protected void finish() {
+                /*
+                 * Start the layout again AFTER all the loading is done.
+                 */
+                startLayout();
+            }
+        });
     }
 
     /**
      * This generates entities using CPA's entity extractor when a new set
      * text documents are imported in to ForceSPIRE.
+     * The extraction runs in the interaction pipeline.
      */
     private void generateNewEntities() {
-        if (this != null) {
-            graphLayout.stop();
+        submitInteraction(new InteractionPipeline.Task("Generate Entities") {
 
-            long start = System.currentTimeMillis();
-            System.out.print("Thread " + Thread.currentThread().getName()
-                    + "Generating entities");
-            Iterator<Document> docs = data.documentIterator();
-            int doccount = 0;
-            int entcount = 0;
-            //TODO initial size should be some kind of config variable
-            //HashSet<String> uniqueKeys = new HashSet<String>(60000);
-            Parser parser = new Parser();
-            String toParse = "";
-            while (docs.hasNext()) {
-                Document doc = docs.next();
-                //System.out.println("("+doccount+")");
-                doccount++;
-                //Parse each document for entities
-                toParse += doc.getContent() + "\n\n";
+            @Override
+            protected void perform() throws Exception {
+                generateNewEntities(this);
+            }
+        });
+    }
+
+    /**
+     * Generates entities as part of an interaction task. Only the documents
+     * added (or changed) since the last extraction are sent to the
+     * extractor, the ones already done are skipped. The extraction runs on
+     * the pipeline thread and the new entities are added on the EDT.
+     * @param task interaction doing the extraction
+     * @throws Exception if the task was cancelled or adding failed
+     */
+    private void generateNewEntities(InteractionPipeline.Task task) throws Exception {
+        long start = System.currentTimeMillis();
+        System.out.print("Thread " + Thread.currentThread().getName()
+                + "Generating entities");
+        Iterator<Document> docs = data.documentIterator();
+        //documents to extract from and the content version that was read
+        ArrayList<Document> extracted = new ArrayList<Document>();
+        ArrayList<Integer> versions = new ArrayList<Integer>();
+        ArrayList<String> texts = new ArrayList<String>();
+        Parser parser = new Parser();
+        while (docs.hasNext()) {
+            Document doc = docs.next();
+            if (doc.isExtracted()) {
+                continue;
             }
+            //version first, if the content changes while reading it's done again next time
+            versions.add(doc.getContentVersion());
+            extracted.add(doc);
+            texts.add(doc.getContent());
+        }
+        if (extracted.isEmpty()) {
+            logger.log(Level.INFO, "Nothing new to extract entities from");
+            return;
+        }
 
-            ArrayList<String> stringList = EntityExtractorWrapper.extractEntities(toParse);
-            System.out.println("Number of entities found: " + stringList.size());
+        //one text per document, extracted on all the extractors of the pool
+        java.util.List<java.util.List<EntityExtractorWrapper.Extracted>> found =
+                EntityExtractorWrapper.extractEntities(texts);
+        task.checkCancelled();
 
-            for (String s : stringList) {
-                if (!data.hasEntity(s) && !parser.isStopWord(s)) {
-                    //uniqueKeys.add(s);
+        final ArrayList<String> newEntities = new ArrayList<String>();
+        HashSet<String> seen = new HashSet<String>();
+        int count = 0;
+        for (java.util.List<EntityExtractorWrapper.Extracted> docEntities : found) {
+            count += docEntities.size();
+            for (EntityExtractorWrapper.Extracted ext : docEntities) {
+                String s = ext.getText();
+                if (!data.hasEntity(s) && !parser.isStopWord(s) && seen.add(SymbolTable.normalize(s))) {
                     //these are all entities, add them
-                    addEntity(s, false);
-                    //Entity e = data.getEntity(s);
-                    //adds Entity to list in Doc, Doc to list in Entity
-                    //TODO: if already in list, does nothing right now. Should add weight?
-                    //data.link(e, doc);
-                    //System.out.println("Found " + entcount + " " + e.getName());
-                    entcount++;
-//                        if (entcount % 1000 == 0) {
-//                            System.out.print(".");
-//                        }
+                    newEntities.add(s);
                 } else {
                     //System.out.println(s+" is already an entity, or stopword!");
                 }
-                System.out.print(".");
             }
+        }
+        System.out.println("Number of entities found: " + count);
 
-            long end = System.currentTimeMillis();
-            System.out.println("Thread " + Thread.currentThread().getName()
-                    + " Entities extracted in " + (end - start) + " miliseconds");
-            System.out.println("Found " + entcount + " unique, new entities");
-            System.out.println("       from " + doccount + " documents.");
-            graphLayout.start();
+        task.apply(new Runnable() {
+
+            public void run() {
+                for (String s : newEntities) {
+                    //could have been added by the user in the mean time
+                    if (!data.hasEntity(s)) {
+                        addEntity(s, false);
+                    }
+                }
+            }
+        });
+        for (int i = 0; i < extracted.size(); i++) {
+            extracted.get(i).setExtracted(versions.get(i));
         }
+
+        long end = System.currentTimeMillis();
+        System.out.println("Thread " + Thread.currentThread().getName()
+                + " Entities extracted in " + (end - start) + " miliseconds");
+        System.out.println("Found " + newEntities.size() + " unique, new entities");
+        System.out.println("       from " + extracted.size() + " new documents.");
+        logger.log(Level.INFO, "Extractor throughput: {0} characters/s",
+                (long) EntityExtractorWrapper.getCharactersPerSecond());
     }
 
     private void generateTFIDFWeights() {
@@ -2499,7 +2618,7 @@ public class StarSpireController implements ComponentListener, DataListener {
         Point point = new Point(a.getLocation());
         SwingUtilities.convertPointFromScreen(point, mainPanel);
         SearchNode sn = (SearchNode) graph.addNode(point,s);
-        s = search(sn, query);
+        search(sn, query);
         sn.setEnabledSearchButton(false);
         
         
@@ -2507,136 +2626,92 @@ public class StarSpireController implements ComponentListener, DataListener {
 
     /**
      * Searches the content of all documents for the search string.
-     * If the search term is not currently and entity, an entity is created from the query
+     * The query goes to the search engine (words, "phrases", OR, -word, see
+     * SearchEngine), the best hidden documents for it are added.
+     * If the search term is not currently and entity, an entity is created from the query.
+     * The search runs in the interaction pipeline, results show up as they come in.
+     * @param s search node the search was typed in
      * @param query String to search for
-     * @return number of search hits (# of documents in which the string was found)
      */
-    public Search search(SearchNode s, String query) {
-        graphLayout.stop();
-        Iterator<Document> docs = data.documentIterator();
-        Iterator<Document> hiddenDocs = data.hiddenDocsIterator();
-        //ArrayList<Document> results = new ArrayList<Document>();
-        int hits = 0;
+    public void search(final SearchNode s, final String query) {
         currentSearchNode = s;
-        Search r = null;
-        boolean newTerm = false;
-        
-        if(!data.hasEntity(query)) {
-        	newTerm = true;
-        	data.addEntity(query, true);
-        }
+        submitInteraction(new InteractionPipeline.Task("Search") {
 
-        /*
-         * We updating a search box clear first.
-         */
-        if (s.getSearch() != null) {
-            this.clearSearchHighlight(s.getSearch());
-        }
+            private int hits = 0;
+            private int docCount;
+            private boolean newTerm = false;
 
+            @Override
+            protected void perform() throws Exception {
+                apply(new Runnable() {
 
-        
-        /*
-         * make search dynamically load a list of it's documents (not saved?)
-         * use document list to highlight...
-         */
-        while (docs.hasNext()) {
-            Document current = docs.next();
-            if (current.getContent().toUpperCase().contains(query.toUpperCase())) {
-                hits++;
-                //results.add(current);
-                this.documentModified(current, DataListener.SEARCH);
-                //this.getGraphView().repaint();
-                //this.getGraphView().documentModified(current, DataListener.SEARCH);
-                Node n = findNode(current);
-                if(n.isOpen()) {
-                    data.updateDocument(current, DataListener.SEARCH);
-                    //this.graph.setNodeOpen(n, true);
-                    //this.data.fireDocumentChange(current, EventType.MODIFIED, DataListener.SEARCH);
-                }
-            }
-        }
-        
-        int docCount = data.getDocumentCount();
-        
-        ArrayList<Entity> entToUpweight = new ArrayList<Entity>();
-        entToUpweight.add(data.getEntity(query));
-        retrieveDocuments(entToUpweight, DataListener.SEARCH);
-        hits += data.getDocumentCount() - docCount;
-        /*
-        boolean docsAdded = false;
-        ArrayList<Document> docsToAdd = new ArrayList<Document>();
-        while (hiddenDocs.hasNext()) {
-            Document current = hiddenDocs.next();
-            if (current.getContent().toUpperCase().contains(query.toUpperCase())) {
-                hits++;
-                //results.add(current);
-                
-                //Add the hidden doc to the visible docs
-                //data.addDocument(current);
-                docsToAdd.add(current);
-                docsAdded = true;
-            }
-        }
-        
-        System.out.println(hits + " hidden docs match the search");
-       // for(int i = 0; i < docsToAdd.size(); i++) {
-         //   data.addDocument(docsToAdd.get(i));
-       // }
-        for(Document d : docsToAdd) {
-            data.addDocument(d);
-            Iterator<Entity> entities = d.iterator();
-            while(entities.hasNext()) {
-                Entity e = entities.next();
-                data.getEntity(e.getName()).addDocument(d);
-                this.entityDocumentAdded(e, d);
-            }
-            
-        }
-        */
+                    public void run() {
+                        if (!data.hasEntity(query)) {
+                            newTerm = true;
+                            data.addEntity(query, true);
+                        }
+
+                        /*
+                         * We updating a search box clear first.
+                         */
+                        if (s.getSearch() != null) {
+                            clearSearchHighlight(s.getSearch());
+                        }
+                    }
+                });
 
-        System.out.println("Hits: " + hits);
-        if (hits > 0) {
-        	if(newTerm) {
-        		data.addEntity(query, false);
-        	}
-            if (data.hasEntity(query)) {
-                /*
-                 * Entity Already exists
-                 */
-                Entity e = data.getEntity(query);
-                r = data.addSearch(query, e, hits);
-                increaseEntityStrength(e, DataListener.SEARCH);
-            } else {
                 /*
-                 * entity does not exist in the dataset yet
+                 * make search dynamically load a list of it's documents (not saved?)
+                 * use document list to highlight...
                  */
-            	data.addEntity(query, true);
-                //addEntity(query, true);
-                Entity e = data.getEntity(query);
-                r = data.addSearch(query, e, hits);
-                increaseEntityStrength(e, DataListener.SEARCH);
-            }
-
-            /*
-             * highlight results
-             */
-            graph.setNodeSearch(s, r);
-            searchHighlight(r);
-        }
-        
-
-        
-        /*
-        if(docsAdded) {
-            data.newDocsAdded();
-        }*/
-        
-        mainPanel.tryRefresh();
+                final java.util.List<Document> matches = data.searchDocuments(query, SearchEngine.VISIBLE);
+                hits = matches.size();
+                step(5);
+
+                //the current matches light up right away
+                apply(new Runnable() {
+
+                    public void run() {
+                        for (Document current : matches) {
+                            documentModified(current, DataListener.SEARCH);
+                            Node n = findNode(current);
+                            if (n != null && n.isOpen()) {
+                                data.updateDocument(current, DataListener.SEARCH);
+                            }
+                        }
+                        docCount = data.getDocumentCount();
+                    }
+                });
 
-        
-        
-        graphLayout.start();
-        return r;
+                ArrayList<Entity> entToUpweight = new ArrayList<Entity>();
+                entToUpweight.add(data.getEntity(query));
+                retrieveDocuments(this, entToUpweight, DataListener.SEARCH, 1);
+
+                apply(new Runnable() {
+
+                    public void run() {
+                        hits += data.getDocumentCount() - docCount;
+                        System.out.println("Hits: " + hits);
+                        if (hits > 0) {
+                            if (newTerm) {
+                                data.addEntity(query, false);
+                            }
+                            //getEntity adds the entity if it's not in the dataset yet
+                            Entity e = data.getEntity(query);
+                            Search r = data.addSearch(query, e, hits);
+                            increaseEntityStrength(e, DataListener.SEARCH);
+
+                            /*
+                             * highlight results
+                             */
+                            graph.setNodeSearch(s, r);
+                            searchHighlight(r);
+                        }
+                        mainPanel.tryRefresh();
+                    }
+                });
+            }
+        });
     }
 
     /**
@@ -2656,16 +2731,9 @@ public class StarSpireController implements ComponentListener, DataListener {
      * Highlight a search's results
      */
     public void searchHighlight(Search s) {
-        Iterator<Document> docs = data.documentIterator();
-        String query = s.getSearchTerm();
-
-        while (docs.hasNext()) {
-            Document current = docs.next();
-            if (current.getContent().toUpperCase().contains(query.toUpperCase())) {
-                findNode(current).setHighlight(s.getHue());
-            }
+        for (Document current : data.searchDocuments(s.getSearchTerm(), SearchEngine.VISIBLE)) {
+            findNode(current).setHighlight(s.getHue());
         }
-        
     }
 
     /**
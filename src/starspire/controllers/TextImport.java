@@ -0,0 +1,251 @@
+package starspire.controllers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import starspire.StarSpireApp;
+import starspire.models.DataModel;
+import starspire.models.Document;
+import starspire.models.SymbolTable;
+
+/**
+ * Imports a set of text files as documents, reading and parsing them on
+ * all the cores. Runs as part of an interaction task.
+ *
+ * About the import:
+ * - Workers read each file through a FileChannel (large files are mapped)
+ *   and decode it: a byte order mark wins, then UTF-8 if the bytes are
+ *   valid UTF-8, windows-1252 otherwise. Newlines are kept.
+ * - The same worker tokenizes the text and finds which entities already in
+ *   the model it mentions.
+ * - Files are added to the model in the order they were given, in batches
+ *   applied on the EDT, with the links to their entities. Only the new
+ *   documents are parsed, the ones already in the model are left alone.
+ * - Only a window of files is read ahead, progress is reported per batch
+ *   and cancelling the task stops the import after the current batch
+ *   (documents already added stay).
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class TextImport {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    /**
+     * Documents added to the model at once.
+     */
+    private final static int BATCH_SIZE = 64;
+    /**
+     * Files being read ahead of the ones added.
+     */
+    private final static int WINDOW = 4 * BATCH_SIZE;
+    /**
+     * Files bigger than this are mapped rather than read.
+     */
+    private final static long MAP_THRESHOLD = 256 * 1024;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static Charset FALLBACK = Charset.isSupported("windows-1252")
+            ? Charset.forName("windows-1252") : Charset.forName("ISO-8859-1");
+    private final DataModel data;
+    private final Parser parser;
+
+    /**
+     * A file read and parsed, waiting to be added.
+     */
+    private static class Loaded {
+
+        private final String name;
+        private final String content;
+        private final List<String> entities;
+
+        Loaded(String name, String content, List<String> entities) {
+            this.name = name;
+            this.content = content;
+            this.entities = entities;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param d DataModel to add the documents to
+     */
+    public TextImport(DataModel d) {
+        data = d;
+        //read only once set up, the workers share it
+        parser = new Parser();
+    }
+
+    /**
+     * Imports the files (pipeline thread).
+     * @param files files to import
+     * @param task interaction running the import, for progress and cancelling
+     * @return the documents added
+     * @throws Exception the task was cancelled or adding to the model failed
+     */
+    public List<Document> run(File[] files, InteractionPipeline.Task task) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Text Import");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        LinkedList<Future<Loaded>> pending = new LinkedList<Future<Loaded>>();
+        ArrayList<Document> added = new ArrayList<Document>(files.length);
+        try {
+            int next = 0;
+            int done = 0;
+            while (done < files.length) {
+                while (next < files.length && pending.size() < WINDOW) {
+                    final File f = files[next++];
+                    pending.add(workers.submit(new Callable<Loaded>() {
+
+                        public Loaded call() throws IOException {
+                            return load(f);
+                        }
+                    }));
+                }
+                final ArrayList<Loaded> batch = new ArrayList<Loaded>(BATCH_SIZE);
+                while (batch.size() < BATCH_SIZE && !pending.isEmpty()) {
+                    task.checkCancelled();
+                    done++;
+                    try {
+                        batch.add(pending.removeFirst().get());
+                    } catch (ExecutionException ex) {
+                        logger.log(Level.SEVERE, "File skipped", ex.getCause());
+                    }
+                }
+                final ArrayList<Document> docs = new ArrayList<Document>(batch.size());
+                task.apply(new Runnable() {
+
+                    public void run() {
+                        for (Loaded l : batch) {
+                            docs.add(add(l));
+                        }
+                    }
+                });
+                added.addAll(docs);
+                task.step(100 * done / files.length);
+            }
+        } finally {
+            for (Future<Loaded> f : pending) {
+                f.cancel(true);
+            }
+            workers.shutdownNow();
+        }
+        return added;
+    }
+
+    /**
+     * Adds a loaded file to the model and links it to its entities (EDT).
+     */
+    private Document add(Loaded l) {
+        Document doc = data.addDocument(l.content, l.name);
+        for (String s : l.entities) {
+            //the user may have deleted it since
+            if (data.hasEntity(s)) {
+                data.link(data.getEntity(s), doc);
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Reads and parses a file (worker).
+     */
+    private Loaded load(File f) throws IOException {
+        String content = decode(read(f));
+        ArrayList<String> entities = new ArrayList<String>();
+        HashSet<String> seen = new HashSet<String>();
+        for (String s : parser.parseString(content)) {
+            if (data.hasEntity(s) && seen.add(SymbolTable.normalize(s))) {
+                entities.add(s);
+            }
+        }
+        return new Loaded(f.getName(), content, entities);
+    }
+
+    /**
+     * Reads a whole file.
+     */
+    private static ByteBuffer read(File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(f + " is too big to import");
+            }
+            if (size > MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && channel.read(buf) >= 0) {
+            }
+            buf.flip();
+            return buf;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decodes file content, see the class comment for how the charset is
+     * picked.
+     */
+    private static String decode(ByteBuffer buf) {
+        Charset bom = byteOrderMark(buf);
+        if (bom != null) {
+            return bom.decode(buf).toString();
+        }
+        try {
+            CharBuffer chars = UTF8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(buf.duplicate());
+            return chars.toString();
+        } catch (CharacterCodingException ex) {
+            return FALLBACK.decode(buf).toString();
+        }
+    }
+
+    /**
+     * Finds the charset of a byte order mark and skips it.
+     * @return the charset, or null if there's no mark
+     */
+    private static Charset byteOrderMark(ByteBuffer buf) {
+        int b0 = buf.remaining() > 0 ? buf.get(buf.position()) & 0xFF : -1;
+        int b1 = buf.remaining() > 1 ? buf.get(buf.position() + 1) & 0xFF : -1;
+        int b2 = buf.remaining() > 2 ? buf.get(buf.position() + 2) & 0xFF : -1;
+        if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+            buf.position(buf.position() + 3);
+            return UTF8;
+        } else if (b0 == 0xFE && b1 == 0xFF) {
+            buf.position(buf.position() + 2);
+            return Charset.forName("UTF-16BE");
+        } else if (b0 == 0xFF && b1 == 0xFE) {
+            buf.position(buf.position() + 2);
+            return Charset.forName("UTF-16LE");
+        }
+        return null;
+    }
+}
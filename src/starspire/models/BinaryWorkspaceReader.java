@@ -0,0 +1,469 @@
+package starspire.models;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.*;
+import starspire.StarSpireApp;
+
+/**
+ * Loads a workspace saved in the binary format (see WorkspaceFormat and
+ * BinaryWorkspaceWriter).
+ *
+ * About the reader:
+ * - The sections always come in the same order (documents, searches,
+ *   entities, nodes, edges) so every record can be linked as soon as it's
+ *   read, nothing has to wait.
+ * - Records are turned into the same small JSONObjects a JSON save holds
+ *   and built with the same constructors, both formats load the same way.
+ * - Every record goes through the WorkspaceChanges given to the reader
+ *   before it's built, the same as WorkspaceReader. Edges are turned back
+ *   into entity ids for that.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class BinaryWorkspaceReader implements Workspace {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    private final DataInputStream in;
+    private final DataModel data;
+    private final GraphModel graph;
+    private final WorkspaceChanges changes;
+    private JSONObject layout = null;
+    private String version = null;
+    private int width = -1;
+    private int height = -1;
+    /*
+     * Id maps used to link records together.
+     */
+    private final HashMap<Integer, Document> documents = new HashMap<Integer, Document>();
+    private final HashMap<Integer, Search> searches = new HashMap<Integer, Search>();
+    private final HashMap<Integer, Node> nodes = new HashMap<Integer, Node>();
+    private final HashMap<Integer, Entity> entities = new HashMap<Integer, Entity>();
+    /**
+     * Entity ids by string table index.
+     */
+    private int[] entityIds = new int[0];
+
+    /**
+     * Constructor
+     * @param in save file to read, buffered if it isn't already
+     */
+    public BinaryWorkspaceReader(InputStream in) {
+        this(in, new WorkspaceChanges());
+    }
+
+    /**
+     * Constructor for reading a save with changes on top.
+     * @param in save file to read, buffered if it isn't already
+     * @param changes changes to apply to the records as they're read
+     */
+    public BinaryWorkspaceReader(InputStream in, WorkspaceChanges changes) {
+        this.in = new DataInputStream(in);
+        data = new DataModel();
+        graph = new GraphModel();
+        this.changes = changes;
+    }
+
+    /**
+     * Reads the whole workspace.
+     * @throws IOException the file couldn't be read or isn't a binary workspace
+     * @throws JSONException a record isn't valid
+     */
+    public void read() throws IOException, JSONException {
+        byte[] magic = new byte[WorkspaceFormat.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, WorkspaceFormat.MAGIC)) {
+            throw new IOException("Not a binary workspace");
+        }
+        int revision = readVarInt();
+        if (revision > WorkspaceFormat.BINARY_REVISION) {
+            throw new IOException("Workspace was saved with a newer binary revision ("
+                    + revision + ")");
+        }
+        version = readString();
+        if (!WorkspaceFormat.FORMAT_VERSION.equals(version)) {
+            logger.log(Level.WARNING, "Loading workspace format {0}", version);
+        }
+        width = readSigned();
+        height = readSigned();
+        String l = readString();
+        if (l == null) {
+            throw new JSONException("JSONObject[\"GraphLayout\"] not found.");
+        }
+        layout = new JSONObject(l);
+
+        String[] names = new String[readCount()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = readString();
+            if (names[i] == null) {
+                throw new IOException("Corrupt workspace, entity " + i + " of the string table has no name");
+            }
+        }
+        readDocuments();
+        readSearches();
+        readEntities(names);
+        readNodes();
+        readEdges();
+        data.indexLoadedDocuments();
+    }
+
+    /**
+     * Get the loaded data model.
+     * @return data model
+     */
+    public DataModel getDataModel() {
+        return data;
+    }
+
+    /**
+     * Get the loaded graph model.
+     * @return graph model
+     */
+    public GraphModel getGraphModel() {
+        return graph;
+    }
+
+    /**
+     * Get the layout settings, they're small so they stay JSON.
+     * @return JSON of the layout
+     */
+    public JSONObject getLayout() {
+        return layout;
+    }
+
+    /**
+     * Get the saved width.
+     * @return width, -1 if nothing was read
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the saved height.
+     * @return height, -1 if nothing was read
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Get the format version from the header.
+     * @return version the file was saved as, null if nothing was read
+     */
+    public String getFormatVersion() {
+        return version;
+    }
+
+    /**
+     * Reads the documents with their content and highlights.
+     */
+    private void readDocuments() throws IOException, JSONException {
+        int count = readCount();
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            JSONObject doc = new JSONObject();
+            id += readSigned();
+            doc.put("ID", id);
+            doc.put("name", readString());
+            doc.put("content", readString());
+            doc.put("notes", readString());
+            JSONArray highlights = new JSONArray();
+            int hcount = readCount();
+            int end = 0;
+            for (int h = 0; h < hcount; h++) {
+                int start = end + readSigned();
+                end = start + readSigned();
+                highlights.put(new JSONArray().put(start).put(end));
+            }
+            doc.put("highlights", highlights);
+            loadDocument(changes.apply(WorkspaceChanges.DOCUMENT, doc));
+        }
+        for (JSONObject doc : changes.added(WorkspaceChanges.DOCUMENT)) {
+            loadDocument(doc);
+        }
+    }
+
+    /**
+     * Builds a document.
+     * @param doc record, null if it was removed
+     */
+    private void loadDocument(JSONObject doc) throws JSONException {
+        if (doc != null) {
+            Document d = new Document(doc);
+            documents.put(d.getId(), d);
+            data.loadDocument(d);
+        }
+    }
+
+    /**
+     * Reads the searches.
+     */
+    private void readSearches() throws IOException, JSONException {
+        int count = readCount();
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            JSONObject search = new JSONObject();
+            id += readSigned();
+            search.put("ID", id);
+            search.put("query", readString());
+            search.put("hue", readSigned());
+            search.put("results", readSigned());
+            loadSearch(changes.apply(WorkspaceChanges.SEARCH, search));
+        }
+        for (JSONObject search : changes.added(WorkspaceChanges.SEARCH)) {
+            loadSearch(search);
+        }
+    }
+
+    /**
+     * Builds a search.
+     * @param search record, null if it was removed
+     */
+    private void loadSearch(JSONObject search) throws JSONException {
+        if (search != null) {
+            Search s = new Search(search);
+            searches.put(s.getId(), s);
+            data.loadSearch(s);
+        }
+    }
+
+    /**
+     * Reads the entities, one per string table entry, and links them to
+     * their documents and searches.
+     * @param names string table
+     */
+    private void readEntities(String[] names) throws IOException, JSONException {
+        int id = 0;
+        entityIds = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            JSONObject ent = new JSONObject();
+            id += readSigned();
+            entityIds[i] = id;
+            ent.put("ID", id);
+            ent.put("name", names[i]);
+            ent.put("softdata", in.readBoolean());
+            ent.put("strength", in.readDouble());
+            ent.put("documents", readIds());
+            ent.put("searches", readIds());
+            loadEntity(changes.apply(WorkspaceChanges.ENTITY, ent));
+        }
+        for (JSONObject ent : changes.added(WorkspaceChanges.ENTITY)) {
+            loadEntity(ent);
+        }
+    }
+
+    /**
+     * Builds an entity.
+     * @param ent record, null if it was removed
+     */
+    private void loadEntity(JSONObject ent) throws JSONException {
+        if (ent != null) {
+            Entity e = new Entity(ent, documents, searches);
+            entities.put(e.getID(), e);
+            data.loadEntity(e);
+        }
+    }
+
+    /**
+     * Reads the nodes and links them to their document or search.
+     */
+    private void readNodes() throws IOException, JSONException {
+        int count = readCount();
+        int id = 0, x = 0, y = 0;
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            JSONObject node = new JSONObject();
+            id += readSigned();
+            x += readSigned();
+            y += readSigned();
+            node.put("ID", id);
+            node.put("X", x);
+            node.put("Y", y);
+            node.put("W", readSigned());
+            node.put("H", readSigned());
+            node.put("weight", in.readDouble());
+            node.put("pinned", in.readBoolean());
+            node.put("open", in.readBoolean());
+            if (type == WorkspaceFormat.DOCUMENT_NODE) {
+                node.put("class", DocumentNode.class.getName());
+                node.put("divider", in.readDouble());
+                node.put("docID", readSigned());
+            } else if (type == WorkspaceFormat.SEARCH_NODE) {
+                node.put("class", SearchNode.class.getName());
+                node.put("searchID", readSigned());
+            } else {
+                throw new IOException("Unknown node type " + type);
+            }
+            loadNode(changes.apply(WorkspaceChanges.NODE, node));
+        }
+        for (JSONObject node : changes.added(WorkspaceChanges.NODE)) {
+            loadNode(node);
+        }
+    }
+
+    /**
+     * Builds a node.
+     * @param node record, null if it was removed
+     */
+    private void loadNode(JSONObject node) throws JSONException {
+        if (node == null) {
+            return;
+        }
+        String nodeClass = node.getString("class");
+        Node n;
+        if (nodeClass.equals(DocumentNode.class.getName())) {
+            int did = node.getInt("docID");
+            Document d = documents.get(did);
+            if (d == null) {
+                data.addDocument("Document Id: " + did + "Could not be linked");
+            }
+            n = new DocumentNode(node, d);
+        } else if (nodeClass.equals(SearchNode.class.getName())) {
+            Search s = searches.get(node.getInt("searchID"));
+            if (s == null) {
+                System.err.println("Node could not be linked to a search!");
+            }
+            n = new SearchNode(node, s);
+        } else {
+            throw new JSONException("Unknown node type.");
+        }
+        nodes.put(n.getID(), n);
+        graph.loadNode(n);
+    }
+
+    /**
+     * Reads the edges and links them to their nodes and entities.
+     */
+    private void readEdges() throws IOException, JSONException {
+        int count = readCount();
+        int id = 0, node1 = 0;
+        for (int i = 0; i < count; i++) {
+            JSONObject edge = new JSONObject();
+            id += readSigned();
+            node1 += readSigned();
+            int node2 = node1 + readSigned();
+            edge.put("ID", id);
+            edge.put("node1", node1);
+            edge.put("node2", node2);
+            edge.put("strength", in.readDouble());
+            JSONArray entIds = new JSONArray();
+            int entCount = readCount();
+            int index = 0;
+            for (int e = 0; e < entCount; e++) {
+                index += readSigned();
+                if (index < 0 || index >= entityIds.length) {
+                    System.err.println("Loading Exception: Entity with index " + index + " not found!");
+                } else {
+                    entIds.put(entityIds[index]);
+                }
+            }
+            edge.put("entIds", entIds);
+            loadEdge(changes.apply(WorkspaceChanges.EDGE, edge));
+        }
+        for (JSONObject edge : changes.added(WorkspaceChanges.EDGE)) {
+            loadEdge(edge);
+        }
+    }
+
+    /**
+     * Builds an edge and links it to its nodes and entities.
+     * @param edge record, null if it was removed
+     */
+    private void loadEdge(JSONObject edge) throws JSONException {
+        if (edge == null) {
+            return;
+        }
+        Node n1 = nodes.get(edge.getInt("node1"));
+        Node n2 = nodes.get(edge.getInt("node2"));
+        if (n1 == null || n2 == null) {
+            logger.log(Level.WARNING, "Edge {0} points to a missing node, skipped", edge.opt("ID"));
+            return;
+        }
+        Edge e = new Edge(edge, n1, n2);
+        JSONArray entIds = edge.getJSONArray("entIds");
+        for (int i = 0; i < entIds.length(); i++) {
+            int id = entIds.getInt(i);
+            Entity ent = entities.get(id);
+            if (ent == null) {
+                System.err.println("Loading Exception: Entity with id " + id + " not found!");
+            } else {
+                e.addEntity(ent);
+            }
+        }
+        n1.addEdge(e);
+        n2.addEdge(e);
+        graph.loadEdge(e);
+    }
+
+    /**
+     * Reads a delta coded list of ids.
+     * @return the ids
+     */
+    private JSONArray readIds() throws IOException {
+        JSONArray ids = new JSONArray();
+        int count = readCount();
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            id += readSigned();
+            ids.put(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Reads a string written with its length first.
+     * @return the string, can be null
+     */
+    private String readString() throws IOException {
+        int length = readCount();
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Reads a count or a length, they can't be negative.
+     * @return the count
+     */
+    private int readCount() throws IOException {
+        int count = readVarInt();
+        if (count < 0) {
+            throw new IOException("Corrupt workspace, bad count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads a zigzag encoded int.
+     * @return value
+     */
+    private int readSigned() throws IOException {
+        int v = readVarInt();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Reads an int written 7 bits at a time, low bits first.
+     * @return value
+     */
+    private int readVarInt() throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Corrupt workspace, varint too long");
+    }
+}
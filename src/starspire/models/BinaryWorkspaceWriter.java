@@ -0,0 +1,278 @@
+package starspire.models;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import starspire.StarSpireApp;
+
+/**
+ * Writes a workspace snapshot in the binary format (see WorkspaceFormat
+ * for the layout of the file).
+ *
+ * About the encoding:
+ * - Ints are varints, the ones that can be negative are zigzag encoded
+ *   first so small negative values stay small.
+ * - Ids, node positions and highlight positions are written as the
+ *   difference with the previous one, they're mostly close together.
+ * - Strings are UTF-8 with their length in front, 0 means null.
+ * - Entity names are written once in a string table, edges point to their
+ *   entities by index in that table instead of repeating ids. Entities
+ *   without a name can't be loaded back, they're left out.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class BinaryWorkspaceWriter {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    private final DataOutputStream out;
+
+    /**
+     * Constructor
+     * @param out where to write, buffered if it isn't already
+     */
+    public BinaryWorkspaceWriter(OutputStream out) {
+        this.out = new DataOutputStream(out);
+    }
+
+    /**
+     * Writes the whole workspace and flushes the stream.
+     * @param s snapshot of the workspace
+     * @throws IOException could not write
+     * @throws JSONException a record is missing something
+     */
+    public void write(WorkspaceSnapshot s) throws IOException, JSONException {
+        out.write(WorkspaceFormat.MAGIC);
+        writeVarInt(WorkspaceFormat.BINARY_REVISION);
+        writeString(WorkspaceFormat.FORMAT_VERSION);
+        writeSigned(s.width);
+        writeSigned(s.height);
+        writeString(s.layout == null ? null : s.layout.toString());
+
+        //string table, an entity is known by its index in it
+        HashMap<Integer, Integer> entityIndex = new HashMap<Integer, Integer>();
+        ArrayList<Entity> named = new ArrayList<Entity>(s.entities.size());
+        for (Entity ent : s.entities) {
+            if (ent.getName() == null) {
+                logger.log(Level.WARNING, "Not saving entity {0}, it has no name", ent.getID());
+                s.recordWritten();
+            } else {
+                named.add(ent);
+            }
+        }
+        writeVarInt(named.size());
+        for (int i = 0; i < named.size(); i++) {
+            Entity ent = named.get(i);
+            writeString(ent.getName());
+            entityIndex.put(ent.getID(), i);
+        }
+
+        writeDocuments(s);
+        writeSearches(s);
+        writeEntities(s, named);
+        writeNodes(s);
+        writeEdges(s, entityIndex);
+        out.flush();
+    }
+
+    /**
+     * Writes the documents with their content and highlights.
+     */
+    private void writeDocuments(WorkspaceSnapshot s) throws IOException {
+        writeVarInt(s.documents.size());
+        int lastId = 0;
+        for (Document d : s.documents) {
+            int id = d.getId();
+            writeSigned(id - lastId);
+            lastId = id;
+            writeString(d.getName());
+            writeString(d.getContent());
+            writeString(d.getNotes());
+            ArrayList<Highlight> highlights = new ArrayList<Highlight>();
+            for (Iterator<Highlight> it = d.highlightIterator(); it.hasNext();) {
+                highlights.add(it.next());
+            }
+            writeVarInt(highlights.size());
+            int lastEnd = 0;
+            for (Highlight h : highlights) {
+                writeSigned(h.start - lastEnd);
+                writeSigned(h.end - h.start);
+                lastEnd = h.end;
+            }
+            s.recordWritten();
+        }
+    }
+
+    /**
+     * Writes the searches.
+     */
+    private void writeSearches(WorkspaceSnapshot s) throws IOException {
+        writeVarInt(s.searches.size());
+        int lastId = 0;
+        for (Search search : s.searches) {
+            int id = search.getId();
+            writeSigned(id - lastId);
+            lastId = id;
+            writeString(search.getSearchTerm());
+            writeSigned(search.getHue());
+            writeSigned(search.getResults());
+            s.recordWritten();
+        }
+    }
+
+    /**
+     * Writes the entities in string table order, names aren't repeated.
+     */
+    private void writeEntities(WorkspaceSnapshot s, List<Entity> named) throws IOException {
+        int lastId = 0;
+        for (Entity e : named) {
+            int id = e.getID();
+            writeSigned(id - lastId);
+            lastId = id;
+            out.writeBoolean(e.isSoftData());
+            out.writeDouble(e.getStrength());
+            int[] ids = new int[e.documents()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = e.getDocument(i).getId();
+            }
+            writeIds(ids);
+            ids = new int[e.searches()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = e.getSearch(i).getId();
+            }
+            writeIds(ids);
+            s.recordWritten();
+        }
+    }
+
+    /**
+     * Writes the nodes, positions relative to the previous node.
+     */
+    private void writeNodes(WorkspaceSnapshot s) throws IOException, JSONException {
+        writeVarInt(s.nodes.size());
+        int lastId = 0, lastX = 0, lastY = 0;
+        for (JSONObject n : s.nodes) {
+            String nodeClass = n.getString("class");
+            boolean doc = nodeClass.equals(DocumentNode.class.getName());
+            if (doc) {
+                out.writeByte(WorkspaceFormat.DOCUMENT_NODE);
+            } else if (nodeClass.equals(SearchNode.class.getName())) {
+                out.writeByte(WorkspaceFormat.SEARCH_NODE);
+            } else {
+                throw new IOException("Unknown node type " + nodeClass);
+            }
+            int id = n.getInt("ID");
+            int x = n.getInt("X");
+            int y = n.getInt("Y");
+            writeSigned(id - lastId);
+            writeSigned(x - lastX);
+            writeSigned(y - lastY);
+            lastId = id;
+            lastX = x;
+            lastY = y;
+            writeSigned(n.getInt("W"));
+            writeSigned(n.getInt("H"));
+            out.writeDouble(n.getDouble("weight"));
+            out.writeBoolean(n.getBoolean("pinned"));
+            out.writeBoolean(n.getBoolean("open"));
+            if (doc) {
+                out.writeDouble(n.getDouble("divider"));
+                writeSigned(n.getInt("docID"));
+            } else {
+                writeSigned(n.getInt("searchID"));
+            }
+            s.recordWritten();
+        }
+    }
+
+    /**
+     * Writes the edges, entities as string table indexes.
+     */
+    private void writeEdges(WorkspaceSnapshot s, HashMap<Integer, Integer> entityIndex)
+            throws IOException, JSONException {
+        writeVarInt(s.edges.size());
+        int lastId = 0, lastNode = 0;
+        for (JSONObject e : s.edges) {
+            int id = e.getInt("ID");
+            int n1 = e.getInt("node1");
+            int n2 = e.getInt("node2");
+            writeSigned(id - lastId);
+            writeSigned(n1 - lastNode);
+            writeSigned(n2 - n1);
+            lastId = id;
+            lastNode = n1;
+            out.writeDouble(e.getDouble("strength"));
+            JSONArray entIds = e.getJSONArray("entIds");
+            int[] indexes = new int[entIds.length()];
+            int count = 0;
+            for (int i = 0; i < entIds.length(); i++) {
+                Integer index = entityIndex.get(entIds.getInt(i));
+                if (index != null) {
+                    indexes[count++] = index;
+                }
+            }
+            writeVarInt(count);
+            int last = 0;
+            for (int i = 0; i < count; i++) {
+                writeSigned(indexes[i] - last);
+                last = indexes[i];
+            }
+            s.recordWritten();
+        }
+    }
+
+    /**
+     * Writes a delta coded list of ids.
+     * @param ids ids in their saved order
+     */
+    private void writeIds(int[] ids) throws IOException {
+        writeVarInt(ids.length);
+        int last = 0;
+        for (int id : ids) {
+            writeSigned(id - last);
+            last = id;
+        }
+    }
+
+    /**
+     * Writes a string, length first.
+     * @param s string, can be null
+     */
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] bytes = s.getBytes("UTF-8");
+        writeVarInt(bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes an int that can be negative.
+     * @param v value
+     */
+    private void writeSigned(int v) throws IOException {
+        writeVarInt((v << 1) ^ (v >> 31));
+    }
+
+    /**
+     * Writes an int 7 bits at a time, low bits first.
+     * @param v value, taken as unsigned
+     */
+    private void writeVarInt(int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+}
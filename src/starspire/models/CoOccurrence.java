@@ -0,0 +1,39 @@
+package starspire.models;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Gets the entities two documents have in common, for linking them. The
+ * entities of one document are looked up in the other (Document.hasEntity
+ * doesn't walk its list).
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class CoOccurrence {
+
+    /**
+     * Only static methods.
+     */
+    private CoOccurrence() {
+    }
+
+    /**
+     * Get the entities two documents share.
+     * @param a first document, the entities come from its list
+     * @param b second document
+     * @return shared entities in the order a has them
+     */
+    public static List<Entity> sharedEntities(Document a, Document b) {
+        ArrayList<Entity> shared = new ArrayList<Entity>();
+        Iterator<Entity> it = a.iterator();
+        while (it.hasNext()) {
+            Entity e = it.next();
+            if (b.hasEntity(e)) {
+                shared.add(e);
+            }
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,166 @@
+package starspire.models;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import starspire.StarSpireApp;
+
+/**
+ * Keeps document content deflated in memory, with a few recently read
+ * bodies kept decompressed.
+ *
+ * About the store:
+ * - Each document is compressed on its own so it can be read (and
+ *   dropped) without touching the others. Records are known by their
+ *   index, removed records leave a null behind.
+ * - The last CACHE_SIZE bodies read are kept in an LRU so a document
+ *   being looked at repeatedly (a display refresh, a re-parse) is only
+ *   inflated once.
+ * - News text deflates to about a third, worth it for the hidden
+ *   documents which are rarely read.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class CompressedDocumentStore extends DocumentStore {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    /**
+     * Number of decompressed bodies kept.
+     */
+    private static final int CACHE_SIZE = 64;
+    private final ArrayList<byte[]> records;
+    private final LinkedHashMap<Long, String> recent;
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final byte[] buffer = new byte[8 * 1024];
+    private long size = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates an empty store.
+     */
+    public CompressedDocumentStore() {
+        records = new ArrayList<byte[]>();
+        recent = new LinkedHashMap<Long, String>(CACHE_SIZE * 2, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        inflater = new Inflater();
+    }
+
+    /**
+     * Compresses content into the store.
+     * @param utf8 content encoded as UTF-8
+     * @return record index
+     */
+    synchronized long append(byte[] utf8) throws IOException {
+        if (closed) {
+            throw new IOException("Document store is closed");
+        }
+        deflater.reset();
+        deflater.setInput(utf8);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 2 + 16);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        byte[] packed = out.toByteArray();
+        records.add(packed);
+        size += packed.length;
+        return records.size() - 1;
+    }
+
+    /**
+     * Reads a body, from the LRU if it was read recently.
+     * @param key record index
+     * @param length length in bytes
+     * @return the content, empty if it couldn't be read
+     */
+    synchronized String read(long key, int length) {
+        if (length == 0) {
+            return "";
+        }
+        String s = recent.get(key);
+        if (s != null) {
+            return s;
+        }
+        byte[] packed = !closed && key < records.size() ? records.get((int) key) : null;
+        if (packed == null) {
+            logger.log(Level.SEVERE, "Document content {0} isn't in the store", key);
+            return "";
+        }
+        byte[] utf8 = new byte[length];
+        try {
+            inflater.reset();
+            inflater.setInput(packed);
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(utf8, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read < length) {
+                throw new IOException("Document content " + key + " is truncated");
+            }
+        } catch (DataFormatException ex) {
+            logger.log(Level.SEVERE, "Error reading document content", ex);
+            return "";
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error reading document content", ex);
+            return "";
+        }
+        s = new String(utf8, UTF8);
+        recent.put(key, s);
+        return s;
+    }
+
+    /**
+     * Drops a record and its cached body.
+     * @param key record index
+     */
+    synchronized void remove(long key) {
+        if (key < records.size()) {
+            byte[] packed = records.set((int) key, null);
+            if (packed != null) {
+                size -= packed.length;
+            }
+        }
+        recent.remove(key);
+    }
+
+    /**
+     * Get the compressed size of the content.
+     * @return size in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Frees the records and the compressor.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        records.clear();
+        recent.clear();
+        deflater.end();
+        inflater.end();
+    }
+}
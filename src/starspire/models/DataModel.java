@@ -3,8 +3,12 @@ package starspire.models;
 import starspire.controllers.EntityExtractorWrapper;
 import starspire.controllers.Parser;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.json.*;
@@ -18,6 +22,23 @@ import org.json.*;
  * - Each entity can be linked to multiple documents.
  * - Multiple entities can be linked to a document.
  *
+ * About threading:
+ * - Entities live in a concurrent map, lookups and creation never block.
+ * - The document, hidden document and search lists are guarded by a
+ *   read/write lock, so rendering, ranking and logging can read in parallel
+ *   while imports and retrieval write.
+ * - Iterators return snapshots so they can be walked while other threads
+ *   modify the model.
+ * - Events are fired after the lock is released so listeners are free to
+ *   call back into the model.
+ *
+ * About memory:
+ * - Document content can live in a DocumentStore rather than on the heap
+ *   (see Document), picked with ContentStorage. By default all of it,
+ *   hidden documents included, goes to a memory mapped file.
+ * - Stores are created with the first document that needs one and
+ *   released by close.
+ *
  * @author Patrick Fiaux, Alex Endert, Lauren Bradel
  */
 public class DataModel {
@@ -26,6 +47,26 @@ public class DataModel {
 
         ADDED, MODIFIED, REMOVED, INCREASED, LINK
     };
+
+    /**
+     * Where document content is kept.
+     */
+    public static enum ContentStorage {
+
+        /**
+         * All content in a memory mapped file.
+         */
+        MAPPED,
+        /**
+         * Hidden document content deflated in memory, shown documents on
+         * the heap.
+         */
+        COMPRESSED,
+        /**
+         * All content on the heap.
+         */
+        HEAP
+    };
     /**
      * Assumes there are this many entities per document and creates
      * the entities collection to be the size of document count times this ratio.
@@ -43,11 +84,31 @@ public class DataModel {
      */
     private static final int DOCUMENT_COUNT_BUFFER = 64 * 8;
     private ArrayList<Document> docs;
-    private ArrayList<Document> hiddenDocs = new ArrayList<Document>();
-    private HashMap<String, Entity> entities;
+    private ArrayList<Document> hiddenDocs;
+    private ConcurrentHashMap<String, Entity> entities;
+    private final TermDictionary terms = new TermDictionary();
+    /**
+     * Ranked search over the visible and hidden documents, told about
+     * every document as it comes in or moves and brought up to date by
+     * the thread that changed them, outside the lock.
+     */
+    private final SearchEngine engine = new SearchEngine(terms);
     private ArrayList<Search> searches;
-    private ArrayList<DataListener> listeners;
-    private double totalStrength; //total amount of "energy" in system.
+    private CopyOnWriteArrayList<DataListener> listeners;
+    private volatile double totalStrength; //total amount of "energy" in system.
+    /**
+     * Guards docs, hiddenDocs, searches and the document/entity links.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static volatile ContentStorage defaultStorage = ContentStorage.MAPPED;
+    private volatile ContentStorage storage = defaultStorage;
+    /**
+     * Content stores, null until a document needs them. If the mapped file
+     * can't be created content stays on the heap.
+     */
+    private MappedDocumentStore mappedStore;
+    private boolean mappedStoreFailed = false;
+    private CompressedDocumentStore compressedStore;
 
     
     private static final boolean SCALE_ON = true;
@@ -99,22 +160,15 @@ public class DataModel {
             JSONObject doc;
             doc = jsonDocs.getJSONObject(i);
             //System.out.println("Loading document: " + doc);
-            docs.add(new Document(doc));
+            Document d = new Document(doc);
+            store(d, false);
+            docs.add(d);
+            engine.add(d, false);
         }
+        engine.applyChanges();
 
         /*
-         * Load Entities
-         */
-        for (int i = 0; i < jsonEnts.length(); i++) {
-            JSONObject ent;
-            ent = jsonEnts.getJSONObject(i);
-            //System.out.println("Loading entity: " + ent);
-            Entity e = new Entity(ent, this);
-            entities.put(e.getName().toLowerCase(), e);
-        }
-
-        /*
-         * Load Searches
+         * Load Searches, before the entities so they can be linked
          */
         //System.out.println(jsonDocs.toString(4));
         for (int i = 0; i < jsonSearches.length(); i++) {
@@ -123,6 +177,19 @@ public class DataModel {
             //System.out.println("Loading document: " + doc);
             searches.add(new Search(search));
         }
+
+        /*
+         * Load Entities
+         */
+        Map<Integer, Document> docIds = documentIndex();
+        Map<Integer, Search> searchIds = searchIndex();
+        for (int i = 0; i < jsonEnts.length(); i++) {
+            JSONObject ent;
+            ent = jsonEnts.getJSONObject(i);
+            //System.out.println("Loading entity: " + ent);
+            Entity e = new Entity(ent, docIds, searchIds);
+            entities.put(key(e), e);
+        }
     }
 
     /**
@@ -132,9 +199,10 @@ public class DataModel {
      */
     private void setup(int document_count) {
         docs = new ArrayList<Document>(document_count + DOCUMENT_COUNT_BUFFER);
-        entities = new HashMap<String, Entity>(document_count * DEFAULT_ENT_TO_DOC_RATIO);
+        hiddenDocs = new ArrayList<Document>();
+        entities = new ConcurrentHashMap<String, Entity>(document_count * DEFAULT_ENT_TO_DOC_RATIO);
         searches = new ArrayList<Search>();
-        listeners = new ArrayList<DataListener>();
+        listeners = new CopyOnWriteArrayList<DataListener>();
         totalStrength = entities.size() * 1.0;    //this is a default value, will change when ents get weights
     }
 
@@ -160,14 +228,19 @@ public class DataModel {
      * @param docId Id of document to find
      * @return null if document not found, document with this id otherwise
      */
-    public synchronized Document lookUpDocument(int docId) {
-        for (int i = 0; i < docs.size(); i++) {
-            Document d = docs.get(i);
-            if (d.getId() == docId) {
-                return d;
+    public Document lookUpDocument(int docId) {
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < docs.size(); i++) {
+                Document d = docs.get(i);
+                if (d.getId() == docId) {
+                    return d;
+                }
             }
+            return null;
+        } finally {
+            lock.readLock().unlock();
         }
-        return null;
     }
 
     /**
@@ -175,14 +248,108 @@ public class DataModel {
      * @param searchID Id of search to find
      * @return null if search not found, search with this id otherwise
      */
-    public synchronized Search lookUpSearch(int searchId) {
-        for (int i = 0; i < searches.size(); i++) {
-            Search s = searches.get(i);
-            if (s.getId() == searchId) {
-                return s;
+    public Search lookUpSearch(int searchId) {
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < searches.size(); i++) {
+                Search s = searches.get(i);
+                if (s.getId() == searchId) {
+                    return s;
+                }
             }
+            return null;
+        } finally {
+            lock.readLock().unlock();
         }
-        return null;
+    }
+
+    /**
+     * Builds a map of the documents by id, for linking a lot of things
+     * at once while loading.
+     * @return documents by id
+     */
+    Map<Integer, Document> documentIndex() {
+        lock.readLock().lock();
+        try {
+            HashMap<Integer, Document> index = new HashMap<Integer, Document>(docs.size() * 2);
+            for (Document d : docs) {
+                index.put(d.getId(), d);
+            }
+            return index;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Builds a map of the searches by id, for linking while loading.
+     * @return searches by id
+     */
+    Map<Integer, Search> searchIndex() {
+        lock.readLock().lock();
+        try {
+            HashMap<Integer, Search> index = new HashMap<Integer, Search>(searches.size() * 2);
+            for (Search s : searches) {
+                index.put(s.getId(), s);
+            }
+            return index;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a document read from a save file. No events, nothing listens yet.
+     * @param d loaded document
+     */
+    void loadDocument(Document d) {
+        store(d, false);
+        lock.writeLock().lock();
+        try {
+            docs.add(d);
+            engine.add(d, false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes the documents read from a save file, call once they're all
+     * loaded.
+     */
+    void indexLoadedDocuments() {
+        engine.applyChanges();
+    }
+
+    /**
+     * Adds a search read from a save file. No events, nothing listens yet.
+     * @param s loaded search
+     */
+    void loadSearch(Search s) {
+        lock.writeLock().lock();
+        try {
+            searches.add(s);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds an entity read from a save file. No events, nothing listens yet.
+     * @param e loaded entity, already linked to its documents and searches
+     */
+    void loadEntity(Entity e) {
+        entities.put(key(e), e);
+    }
+
+    /**
+     * Key of an entity in the entities map, the canonical instance of its
+     * normalized name (see SymbolTable) so the keys aren't extra copies.
+     * @param e entity
+     * @return map key
+     */
+    private static String key(Entity e) {
+        return SymbolTable.name(e.getSymbol());
     }
 
     /**
@@ -190,7 +357,7 @@ public class DataModel {
      * @param entId Id of entity to find
      * @return Entity with id entID or null if not found.
      */
-    public synchronized Entity lookUpEntity(int entId) {
+    public Entity lookUpEntity(int entId) {
         for (Entity e : entities.values()) {
             if (e.getID() == entId) {
                 return e;
@@ -206,7 +373,7 @@ public class DataModel {
      * @param ent Entity for this search
      * @return Search object created/added
      */
-    public synchronized Search addSearch(String query, Entity ent, int results) {
+    public Search addSearch(String query, Entity ent, int results) {
         Search s = new Search(query, ent, results);
         //searchNum++;
 
@@ -215,7 +382,12 @@ public class DataModel {
             searchNum++;
         }
         */
-        searches.add(s);
+        lock.writeLock().lock();
+        try {
+            searches.add(s);
+        } finally {
+            lock.writeLock().unlock();
+        }
         fireSearchChange(s, EventType.ADDED);
         //ent.addSearch(s);
         link(ent, s);
@@ -227,14 +399,14 @@ public class DataModel {
      * Add a blank document to the current model.
      * @return Blank document that was added
      */
-    public synchronized Document addDocument() {
+    public Document addDocument() {
         Document d = new Document();
-        docs.add(d);
+        appendDocument(d);
         fireDocumentChange(d, EventType.ADDED, DataListener.OTHER);
         return d;
     }
     
-    public synchronized void linkDocument(Document d) {
+    public void linkDocument(Document d) {
     	fireDocumentChange(d, EventType.LINK, DataListener.LINK);
     }
 
@@ -243,9 +415,9 @@ public class DataModel {
      * @param content content to give to document
      * @return newly created document
      */
-    public synchronized Document addDocument(String content) {
+    public Document addDocument(String content) {
         Document d = new Document(content);
-        docs.add(d);
+        appendDocument(d);
         fireDocumentChange(d, EventType.ADDED, DataListener.OTHER);
         return d;
     }
@@ -256,22 +428,32 @@ public class DataModel {
      * @param name String to give the name of the document
      * @return newly created document
      */
-    public synchronized Document addDocument(String content, String name) {
+    public Document addDocument(String content, String name) {
         Document d = new Document(content, name);
         
-        docs.add(d);
+        appendDocument(d);
         fireDocumentChange(d, EventType.ADDED, DataListener.OTHER);
         
         
         return d;
     }
     
-    public synchronized Document addDocument(Document doc) {
-        if(hiddenDocs.contains(doc)) {
+    public Document addDocument(Document doc) {
+        //parse outside of the lock, it only touches this document. Documents
+        //shown again keep their tokens unless the content changed
+        if (!doc.isParsed()) {
+            this.parseDocument(doc);
+        }
+        store(doc, false);
+        lock.writeLock().lock();
+        try {
             hiddenDocs.remove(doc);
+            docs.add(doc);
+            engine.add(doc, false);
+        } finally {
+            lock.writeLock().unlock();
         }
-        this.parseDocument(doc);
-        docs.add(doc);
+        engine.applyChanges();
                 
  //       Iterator<Entity> entIt = doc.iterator();
 //
@@ -299,19 +481,168 @@ public class DataModel {
         return doc;
     }
     
-    public synchronized Document addHiddenDocument(Document doc) {
-        hiddenDocs.add(doc);
+    public Document addHiddenDocument(Document doc) {
+        store(doc, true);
+        lock.writeLock().lock();
+        try {
+            hiddenDocs.add(doc);
+            engine.add(doc, true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        engine.applyChanges();
         return doc;
     }
 
+    /**
+     * Adds a batch of hidden documents with the entities they mention, for
+     * imports. The entities are found or made first, the documents are then
+     * linked and added under one write lock, and entity events only fire
+     * once the lock is released.
+     * @param batch documents to add
+     * @param entityNames for each document, the names of its entities
+     */
+    public void addHiddenDocuments(List<Document> batch, List<List<String>> entityNames) {
+        ArrayList<Entity> created = new ArrayList<Entity>();
+        ArrayList<List<Entity>> linked = new ArrayList<List<Entity>>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            store(batch.get(i), true);
+            List<String> names = entityNames.get(i);
+            ArrayList<Entity> ents = new ArrayList<Entity>(names.size());
+            for (String name : names) {
+                Entity e = entities.get(SymbolTable.normalize(name));
+                if (e == null) {
+                    Entity made = new Entity(name);
+                    e = entities.putIfAbsent(key(made), made);
+                    if (e == null) {
+                        e = made;
+                        created.add(made);
+                    }
+                }
+                ents.add(e);
+            }
+            linked.add(ents);
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Document doc = batch.get(i);
+                for (Entity e : linked.get(i)) {
+                    if (!doc.hasEntity(e)) {
+                        doc.addEntity(e);
+                    }
+                }
+            }
+            hiddenDocs.addAll(batch);
+            for (Document doc : batch) {
+                engine.add(doc, true);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        engine.applyChanges();
+        for (Entity e : created) {
+            fireEntityChange(e, EventType.ADDED, DataListener.OTHER);
+        }
+    }
+
+    /**
+     * Helper that appends a document to the visible list under the write lock.
+     * @param d Document to append
+     */
+    private void appendDocument(Document d) {
+        store(d, false);
+        lock.writeLock().lock();
+        try {
+            docs.add(d);
+            engine.add(d, false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        engine.applyChanges();
+    }
+
+    /**
+     * Sets where models created from now on keep document content.
+     * @param s content storage
+     */
+    public static void setDefaultContentStorage(ContentStorage s) {
+        defaultStorage = s;
+    }
+
+    /**
+     * Sets where this model keeps document content. Applies to documents
+     * added or hidden from now on.
+     * @param s content storage
+     */
+    public void setContentStorage(ContentStorage s) {
+        storage = s;
+    }
+
+    /**
+     * Get where this model keeps document content.
+     * @return content storage
+     */
+    public ContentStorage getContentStorage() {
+        return storage;
+    }
+
+    /**
+     * Moves a document's content to the store it belongs in, creating the
+     * store the first time.
+     * @param d Document being added or moved
+     * @param hidden true if the document is going to the hidden documents
+     */
+    private void store(Document d, boolean hidden) {
+        DocumentStore s = null;
+        synchronized (this) {
+            if (storage == ContentStorage.MAPPED) {
+                if (mappedStore == null && !mappedStoreFailed) {
+                    try {
+                        mappedStore = new MappedDocumentStore();
+                    } catch (IOException ex) {
+                        mappedStoreFailed = true;
+                        Logger.getLogger(DataModel.class.getName()).log(Level.SEVERE,
+                                "Could not create the document store, content stays in memory", ex);
+                    }
+                }
+                s = mappedStore;
+            } else if (storage == ContentStorage.COMPRESSED && hidden) {
+                if (compressedStore == null) {
+                    compressedStore = new CompressedDocumentStore();
+                }
+                s = compressedStore;
+            }
+        }
+        d.store(s);
+    }
+
+    /**
+     * Releases the document content stores, call when the model is no
+     * longer used. Content that wasn't held can't be read afterwards.
+     */
+    public synchronized void close() {
+        if (mappedStore != null) {
+            mappedStore.close();
+        }
+        if (compressedStore != null) {
+            compressedStore.close();
+        }
+    }
+
     /**
      * Adds a document highlight to a document
      * @param d Document to highlight
      * @param start character index of highlight start
      * @param end character index of highlight end
      */
-    public synchronized void addDocumentHighlight(Document d, int start, int end) {
-        d.addHighlight(start, end);
+    public void addDocumentHighlight(Document d, int start, int end) {
+        lock.writeLock().lock();
+        try {
+            d.addHighlight(start, end);
+        } finally {
+            lock.writeLock().unlock();
+        }
         fireDocumentChange(d, EventType.MODIFIED, DataListener.HIGHLIGHT);
     }
 
@@ -320,21 +651,32 @@ public class DataModel {
      * @param d Document to remove
      * @return true if it was removed, false if it was not
      */
-    public synchronized boolean removeDocument(Document d) {
-        //add doc to hidden docs list
-        hiddenDocs.add(d);
-        
-        boolean success = docs.remove(d);
-        Iterator<Entity> entIt = d.iterator();
-        while (entIt.hasNext()) {
-            Entity e = entIt.next();
-            e.removeDocument(d);
+    public boolean removeDocument(Document d) {
+        boolean success;
+        lock.writeLock().lock();
+        try {
+            //add doc to hidden docs list
+            hiddenDocs.add(d);
+
+            success = docs.remove(d);
+            if (!docs.contains(d)) {
+                engine.add(d, true);
+            }
+            Iterator<Entity> entIt = d.iterator();
+            while (entIt.hasNext()) {
+                Entity e = entIt.next();
+                e.removeDocument(d);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+        engine.applyChanges();
+        store(d, true);
         fireDocumentChange(d, EventType.REMOVED, DataListener.OTHER);
         return success;
     }
     
-     public synchronized void updateDocument(Document d, int type) {
+     public void updateDocument(Document d, int type) {
         fireDocumentChange(d, EventType.MODIFIED, type);
     }
 
@@ -343,16 +685,19 @@ public class DataModel {
      * @param s Search to remove
      * @return true if it was removed, false if it was not
      */
-    public synchronized boolean removeSearch(Search s) {
-
-
-        //remove the search from the entity
+    public boolean removeSearch(Search s) {
         Entity ent = s.getEntity();
-        ent.removeSearch(s);
+        boolean success;
+        lock.writeLock().lock();
+        try {
+            //remove the search from the entity
+            ent.removeSearch(s);
+            //remove the search from the list of searches
+            success = searches.remove(s);
+        } finally {
+            lock.writeLock().unlock();
+        }
         fireEntitySearchRemoved(ent, s);
-
-        //remove the search from the list of searches
-        boolean success = searches.remove(s);
         fireSearchChange(s, EventType.REMOVED);
 
         return success;
@@ -365,7 +710,12 @@ public class DataModel {
      * @return requested document.
      */
     public Document getDocument(int index) {
-        return docs.get(index);
+        lock.readLock().lock();
+        try {
+            return docs.get(index);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -383,11 +733,25 @@ public class DataModel {
      * @return document count.
      */
     public int getDocumentCount() {
-        return docs.size();
+        lock.readLock().lock();
+        try {
+            return docs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
-    
+
+    /**
+     * Return the number of hidden documents in the model.
+     * @return hidden document count.
+     */
     public int getHiddenDocCount() {
-        return hiddenDocs.size();
+        lock.readLock().lock();
+        try {
+            return hiddenDocs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -400,14 +764,94 @@ public class DataModel {
 
     /**
      * Get an iterator for all the documents.
+     * The iterator walks a snapshot so it is safe while other threads write.
      * @return Document iterator
      */
     public Iterator<Document> documentIterator() {
-        return docs.iterator();
+        return snapshot(docs).iterator();
     }
-    
+
+    /**
+     * Get an iterator for all the hidden documents (snapshot).
+     * @return hidden Document iterator
+     */
     public Iterator<Document> hiddenDocsIterator() {
-        return hiddenDocs.iterator();
+        return snapshot(hiddenDocs).iterator();
+    }
+
+    /**
+     * Copies one of the lock guarded lists under the read lock.
+     * @param list list to copy
+     * @return unmodifiable copy of the list
+     */
+    private <T> List<T> snapshot(ArrayList<T> list) {
+        lock.readLock().lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<T>(list));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the documents, searches and entities under the read lock, the
+     * links can't change while they're copied. Content isn't read, see
+     * Document.saveCopy. See WorkspaceSnapshot.
+     * @param s snapshot to fill
+     */
+    void snapshot(WorkspaceSnapshot s) {
+        lock.readLock().lock();
+        try {
+            for (Document d : docs) {
+                s.documents.add(d.saveCopy());
+            }
+            for (Search search : searches) {
+                s.searches.add(search.saveCopy());
+            }
+            for (Entity e : entities.values()) {
+                s.entities.add(e.saveCopy());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies a document for saving, see Document.saveCopy.
+     * @param d document of this model
+     * @return copy, content in a store isn't read
+     */
+    public Document copyForSave(Document d) {
+        lock.readLock().lock();
+        try {
+            return d.saveCopy();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies a search for saving, see Search.saveCopy.
+     * @param s search of this model
+     * @return copy
+     */
+    public Search copyForSave(Search s) {
+        return s.saveCopy();
+    }
+
+    /**
+     * Copies an entity for saving under the read lock, its links don't
+     * change while they're copied. See Entity.saveCopy.
+     * @param e entity of this model
+     * @return copy
+     */
+    public Entity copyForSave(Entity e) {
+        lock.readLock().lock();
+        try {
+            return e.saveCopy();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -500,7 +944,7 @@ public class DataModel {
      * @return Search Iterator...
      */
     public Iterator<Search> searchIterator() {
-        return searches.iterator();
+        return snapshot(searches).iterator();
     }
 
     /**
@@ -509,45 +953,169 @@ public class DataModel {
      * @return boolean true if exists, false if not
      */
     public boolean hasEntity(String name) {
-        return entities.containsKey(name.toLowerCase());
+        return entities.containsKey(SymbolTable.normalize(name));
     }
 
+    /**
+     * Parses a document and keeps its tokens (see TokenStream) and terms as
+     * ids in the term dictionary.
+     * @param doc document to parse
+     */
     public void parseDocument(Document doc) {
-        Parser parser = new Parser();
-        ArrayList<String> docStringParsed = parser.parseString(doc.getContent());
-        doc.setParsedContent(docStringParsed);
+        int version;
+        TokenStream t;
+        do {
+            version = doc.getContentVersion();
+            t = TokenStream.parse(doc.getContent(), terms);
+        } while (!doc.setTokens(t, version));
+    }
+
+    /**
+     * Gets the terms of the tokens in part of a document, whole tokens even
+     * if the range cuts them. Documents that aren't parsed are parsed.
+     * @param doc document
+     * @param start start of the range
+     * @param end end of the range (exclusive)
+     * @return terms in text order
+     */
+    public ArrayList<String> getTerms(Document doc, int start, int end) {
+        TokenStream t = doc.getTokens();
+        if (t == null) {
+            parseDocument(doc);
+            t = doc.getTokens();
+        }
+        ArrayList<String> list = new ArrayList<String>();
+        for (int i = t.from(start), to = t.to(end); i < to; i++) {
+            list.add(terms.term(t.term(i)));
+        }
+        return list;
+    }
+
+    /**
+     * Finds the visible documents with a word or phrase (ignoring case).
+     * Phrases are matched on consecutive words, see SearchEngine.
+     * @param phrase word or phrase to find
+     * @return documents it's in
+     */
+    public List<Document> findDocuments(String phrase) {
+        return findDocuments(phrase, SearchEngine.VISIBLE);
+    }
+
+    /**
+     * Finds the visible or hidden documents with a word or phrase (ignoring
+     * case). A phrase of only stop words or punctuation isn't in the search
+     * index, the text of the documents is scanned for it instead.
+     * @param phrase word or phrase to find
+     * @param filter SearchEngine.ALL, VISIBLE or HIDDEN
+     * @return documents it's in
+     */
+    public List<Document> findDocuments(String phrase, int filter) {
+        if (!new Parser.Tokenizer(phrase).next()) {
+            //nothing the index knows, only stop words or punctuation
+            ArrayList<Document> candidates = new ArrayList<Document>();
+            if (filter != SearchEngine.HIDDEN) {
+                candidates.addAll(snapshot(docs));
+            }
+            if (filter != SearchEngine.VISIBLE) {
+                candidates.addAll(snapshot(hiddenDocs));
+            }
+            ArrayList<Document> found = new ArrayList<Document>();
+            for (Document d : candidates) {
+                if (d.getContent().toUpperCase().contains(phrase.toUpperCase())) {
+                    found.add(d);
+                }
+            }
+            return found;
+        }
+        return engine.match('"' + phrase.replace('"', ' ') + '"', filter);
+    }
+
+    /**
+     * Finds the documents matching a search query, see SearchEngine for the
+     * syntax.
+     * @param query words, "phrases", OR and -exclusions
+     * @param filter SearchEngine.ALL, VISIBLE or HIDDEN
+     * @return matching documents
+     */
+    public List<Document> searchDocuments(String query, int filter) {
+        return engine.match(query, filter);
+    }
+
+    /**
+     * Counts the documents matching a search query.
+     * @param query words, "phrases", OR and -exclusions
+     * @param filter SearchEngine.ALL, VISIBLE or HIDDEN
+     * @return number of matching documents
+     */
+    public int countDocuments(String query, int filter) {
+        return engine.count(query, filter);
+    }
+
+    /**
+     * Ranks the documents matching a search query (BM25 over all the
+     * documents, visible and hidden).
+     * @param query words, "phrases", OR and -exclusions
+     * @param k how many documents to return
+     * @param filter SearchEngine.ALL, VISIBLE or HIDDEN
+     * @return up to k documents, best first
+     */
+    public List<SearchEngine.Result> rankDocuments(String query, int k, int filter) {
+        return engine.search(query, k, filter);
+    }
+
+    /**
+     * Counts how many times a term is in a document.
+     * @param doc document, 0 if it isn't parsed
+     * @param term term to count
+     * @return number of times it's a token of the document
+     */
+    public int getTermFrequency(Document doc, String term) {
+        TokenStream t = doc.getTokens();
+        int id = terms.lookup(term);
+        return t == null || id < 0 ? 0 : t.frequency(id);
     }
     /**
      * Adds a new entity from a string.
      * Will be called from the views (highlighting or adding entity)
      * @param name String the name of the entity that needs to get added
+     * If there already is an entity with that name (ignoring case) it's
+     * kept, documents already link to it, and it's linked like a new one.
      * @param softdata true if it's a user created entity.
-     * @return Entity the created entity
+     * @return Entity the created entity, or the one that was there
      */
     public Entity addEntity(String name, boolean softdata) {        
         
         long init = System.currentTimeMillis();
         
-        Entity e = new Entity(name, softdata);
-        entities.put(name.toLowerCase(), e);
-        fireEntityChange(e, EventType.ADDED, DataListener.OTHER);
+        Entity made = new Entity(name, softdata);
+        Entity e = entities.putIfAbsent(key(made), made);
+        if (e == null) {
+            e = made;
+            fireEntityChange(e, EventType.ADDED, DataListener.OTHER);
+        } else if (!softdata && e.isSoftData()) {
+            //made by the software now, not just the user
+            e.setSoftData(false);
+            fireEntityChange(e, EventType.MODIFIED, DataListener.OTHER);
+        }
         Parser parser = new Parser();
         
         //System.out.println("Block 0 " + String.valueOf(System.currentTimeMillis()-init));
         
         init = System.currentTimeMillis();
         
-        //find the entity in the documents
-        for (Document doc : docs) {
-            ArrayList<String> docStrings = doc.getParsedContent();
+        //find the entity (one word or several) in the search index
+        if (new Parser.Tokenizer(name).next()) {
+            for (Document doc : findDocuments(name)) {
+                this.link(e, doc);
+            }
+            return e;
+        }
+        //only stop words or punctuation, the index can't find it
+        for (Document doc : snapshot(docs)) {
         //System.out.println("Block 1 " + String.valueOf(System.currentTimeMillis()-init));
-        //System.out.println("Parsed Document Content " + docStrings.get(0));
         
         init = System.currentTimeMillis();
-            //check if the entity is in the document as a separate word (TRUCK)
-            if (docStrings.contains(name)) {
-                this.link(e, doc);
-            } else if (name.length() > 2 && doc.getContent().toUpperCase().indexOf(name.toUpperCase()) != -1) {
+            if (name.length() > 2 && doc.getContent().toUpperCase().indexOf(name.toUpperCase()) != -1) {
                 this.link(e, doc);
             }
         //System.out.println("Block 2 " + String.valueOf(System.currentTimeMillis()-init));
@@ -570,14 +1138,17 @@ public class DataModel {
      * @return Entity The entity in the Entity list in the model.
      */
     public Entity getEntity(String name) {
-        String key = name.toLowerCase();
-        Entity e = entities.get(key);
+        Entity e = entities.get(SymbolTable.normalize(name));
 
         if (e == null) {
-            e = new Entity(name);
-            entities.put(key, e);
-            //System.out.println("Made new entity: " + e.getName());
-            fireEntityChange(e, EventType.ADDED, DataListener.OTHER);
+            Entity created = new Entity(name);
+            e = entities.putIfAbsent(key(created), created);
+            if (e == null) {
+                //this thread won the race, it's the one that announces it
+                e = created;
+                //System.out.println("Made new entity: " + e.getName());
+                fireEntityChange(e, EventType.ADDED, DataListener.OTHER);
+            }
         }
         return e;
     }
@@ -611,15 +1182,23 @@ public class DataModel {
     public void removeEntity(Entity ent) {
 
         //remove the entity from each document's entity list
-        Iterator<Document> docIt = ent.iterator();
-        Document currentDoc;
-        while (docIt.hasNext()) {
-            currentDoc = docIt.next();
-            currentDoc.removeEntity(ent);
+        ArrayList<Document> removedFrom = new ArrayList<Document>();
+        lock.writeLock().lock();
+        try {
+            Iterator<Document> docIt = ent.iterator();
+            while (docIt.hasNext()) {
+                Document currentDoc = docIt.next();
+                currentDoc.removeEntity(ent);
+                removedFrom.add(currentDoc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Document currentDoc : removedFrom) {
             fireEntityDocumentRemoved(ent, currentDoc);
         }
 
-        entities.remove(ent.getName().toLowerCase());
+        entities.remove(key(ent));
 
         fireEntityChange(ent, EventType.REMOVED, DataListener.OTHER);
     }
@@ -811,6 +1390,7 @@ public class DataModel {
     public void quickQuartile() {
         //System.out.println("Quick quartile");
         double maxWeight = 0;
+        List<Document> docs = snapshot(this.docs);
         
         for(int i = 0; i < docs.size(); i++) {
             double tempWeight = docs.get(i).getTotalEntityStrength();
@@ -849,7 +1429,7 @@ public class DataModel {
     private void queryDocuments() {
         //merge sort based on total entity vector
         ArrayList<Document> sortedDocs = new ArrayList<Document>();
-        sortedDocs = merge_sortD(this.docs);
+        sortedDocs = merge_sortD(new ArrayList<Document>(snapshot(this.docs)));
         System.out.println("Documents are sorted");
         
         /*for(int i = 0; i < sortedDocs.size(); i++) {
@@ -1032,17 +1612,26 @@ public class DataModel {
      * @param doc The document to link
      */
     public void link(Entity ent, Document doc) {
-        //everytime a document is added to an entity, fire an event?
-        if (!ent.hasDocument(doc)) {
-            ent.addDocument(doc);   //doc gets added to doc list in entity
-            fireEntityDocumentAdded(ent, doc);
-        } else {
-            //entity is already in the document, upweight the entity?? TODO
-            //multiple occurances of entity in the document
-            //should this only weight the entity more within this doc? global?
+        boolean added = false;
+        lock.writeLock().lock();
+        try {
+            //everytime a document is added to an entity, fire an event?
+            if (!ent.hasDocument(doc)) {
+                ent.addDocument(doc);   //doc gets added to doc list in entity
+                added = true;
+            } else {
+                //entity is already in the document, upweight the entity?? TODO
+                //multiple occurances of entity in the document
+                //should this only weight the entity more within this doc? global?
+            }
+            if (!doc.hasEntity(ent)) {
+                doc.addEntity(ent);     //entity gets added to entity list in doc
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
-        if (!doc.hasEntity(ent)) {
-            doc.addEntity(ent);     //entity gets added to entity list in doc
+        if (added) {
+            fireEntityDocumentAdded(ent, doc);
         }
     }
 
@@ -1054,11 +1643,16 @@ public class DataModel {
      * @param doc  Document gets the entity removed
      */
     public void unlink(Entity ent, Document doc) {
-        if (ent.hasDocument(doc)) {
-            ent.removeDocument(doc);
-        }
-        if (doc.hasEntity(ent)) {
-            doc.removeEntity(ent);
+        lock.writeLock().lock();
+        try {
+            if (ent.hasDocument(doc)) {
+                ent.removeDocument(doc);
+            }
+            if (doc.hasEntity(ent)) {
+                doc.removeEntity(ent);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
         fireEntityDocumentRemoved(ent, doc);
     }
@@ -1113,12 +1707,21 @@ public class DataModel {
      * @param s Search modified
      */
     public void link(Entity ent, Search s) {
-        //everytime a document is added to an entity, fire an event?
-        if (!ent.hasSearch(s)) {
-            ent.addSearch(s);   //doc gets added to doc list in entity
+        boolean added = false;
+        lock.writeLock().lock();
+        try {
+            //everytime a document is added to an entity, fire an event?
+            if (!ent.hasSearch(s)) {
+                ent.addSearch(s);   //doc gets added to doc list in entity
+                added = true;
+            } else {
+                //entity is already added to the search, do nothing?
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (added) {
             fireEntitySearchAdded(ent, s);
-        } else {
-            //entity is already added to the search, do nothing?
         }
     }
 
@@ -1128,8 +1731,13 @@ public class DataModel {
      * @param s Search modified
      */
     public void unlink(Entity ent, Search s) {
-        if (ent.hasSearch(s)) {
-            ent.removeSearch(s);
+        lock.writeLock().lock();
+        try {
+            if (ent.hasSearch(s)) {
+                ent.removeSearch(s);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
         //TODO: delete the search here?
         fireEntitySearchRemoved(ent, s);
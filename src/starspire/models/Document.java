@@ -1,27 +1,67 @@
 package starspire.models;
 
 import java.awt.Color;
+import java.io.IOException;
 import org.json.*;
 import java.util.*;
 import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import starspire.StarSpireApp;
 
 /**
  * The model represents an element loaded into Force/StarSpire, usually a small
  * text document.
  *
+ * About the content:
+ * - Once the document is added to a data model its content can move to one
+ *   of the model's DocumentStores (see DataModel.ContentStorage) and is read
+ *   back on every getContent, only the record key and lengths stay on the
+ *   heap.
+ * - Views that show the content all the time hold it (holdContent) while
+ *   they're open so it's read once, releaseContent lets it go again.
+ *
  * @author Patrick Fiaux, Alex Endert, Lauren Bradel
  */
 public class Document {
 
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
     private static int NEXT_SERIAL_ID = 0;
     private int id;
     private String name;
-    private String content;
-    private ArrayList<String> parsedContent;
+    /**
+     * Content on the heap, null when it's only in the store.
+     */
+    private volatile String content;
+    private DocumentStore store;
+    private long contentKey;
+    private int contentBytes;
+    private int contentLength;
+    private int holds = 0;
+    /**
+     * Document this one is a save copy of (see saveCopy), null otherwise.
+     */
+    private Document original;
+    /**
+     * Bumped every time the content changes, entity extraction remembers
+     * which version it ran on.
+     */
+    private int contentVersion = 0;
+    private int extractedVersion = -1;
+    /**
+     * The parsed tokens with their offsets, null until the data model
+     * parses the document.
+     */
+    private volatile TokenStream tokens;
+    /**
+     * Content version the tokens were parsed from.
+     */
+    private int tokensVersion = -1;
     private String notes;
     private String url;
     private ArrayList<Highlight> highlights;
     private ArrayList<Entity> entities; //should we have this AND Entity has list of Documents?
+    private IntSet entitySymbols; //symbols of entities, for hasEntity and CoOccurrence
     private boolean isVisible;
     private double totalStrength;
     private int rank;
@@ -35,7 +75,6 @@ public class Document {
     public Document() {
         isMSSI = false;
         setup(++NEXT_SERIAL_ID, "ID" + NEXT_SERIAL_ID, "", "", "", null);
-        parsedContent = new ArrayList<String>();
     }
 
     /**
@@ -104,6 +143,23 @@ public class Document {
         }
     }
 
+    /**
+     * Save copy constructor, see saveCopy.
+     * @param d document to copy, locked by the caller
+     */
+    private Document(Document d) {
+        setup(d.id, d.name, d.content, d.notes, d.url, null);
+        for (Highlight h : d.highlights) {
+            highlights.add(new Highlight(h.start, h.end, h.hc));
+        }
+        store = d.store;
+        contentKey = d.contentKey;
+        contentBytes = d.contentBytes;
+        contentLength = d.contentLength;
+        contentVersion = d.contentVersion;
+        original = d;
+    }
+
     /**
      * Helper for constructor.
      * @param nid id to use
@@ -116,6 +172,7 @@ public class Document {
         content = c;
         url = u;
         entities = new ArrayList<Entity>();
+        entitySymbols = new IntSet();
         highlights = new ArrayList<Highlight>();
         if (h != null) {
             highlights.addAll(h);
@@ -138,7 +195,7 @@ public class Document {
 
         nodeJSON.put("ID", id);
         nodeJSON.put("name", name);
-        nodeJSON.put("content", content);
+        nodeJSON.put("content", getContent());
         nodeJSON.put("notes", notes);
         JSONArray h = new JSONArray();
         for (Highlight s : highlights) {
@@ -149,12 +206,50 @@ public class Document {
         return nodeJSON;
     }
 
+    /**
+     * Copies the saved fields, for a WorkspaceSnapshot. Content in a store
+     * isn't read, the copy keeps its key and reads it when it's written.
+     * The caller holds the data model's read lock.
+     * @return copy with no entities, not part of any model
+     */
+    synchronized Document saveCopy() {
+        return new Document(this);
+    }
+
+    /**
+     * Writes the same representation as getJSONObject straight to a writer,
+     * without building the object first. Used for saving.
+     * @param w writer positioned where the document goes
+     * @throws JSONException something went wrong
+     */
+    public void writeJSON(JSONWriter w) throws JSONException {
+        w.object();
+        w.key("ID").value(id);
+        if (name != null) {
+            w.key("name").value(name);
+        }
+        String c = getContent();
+        if (c != null) {
+            w.key("content").value(c);
+        }
+        if (notes != null) {
+            w.key("notes").value(notes);
+        }
+        w.key("highlights").array();
+        for (Highlight s : highlights) {
+            s.writeJSON(w);
+        }
+        w.endArray();
+        w.endObject();
+    }
+
     /**
      * This adds an entity to the entity list for Entity
      * @param e The entity to add to the list.
      */
     public void addEntity(Entity e) {
         entities.add(e);
+        entitySymbols.add(e.getSymbol());
     }
 
     /**
@@ -163,12 +258,7 @@ public class Document {
      * @return boolean True if it exists, False if not
      */
     public boolean hasEntity(Entity ent) {
-        for (Entity e : entities) {
-            if (e.getName().equalsIgnoreCase(ent.getName())) {
-                return true;
-            }
-        }
-        return false;
+        return entitySymbols.contains(ent.getSymbol());
     }
 
     /**
@@ -176,9 +266,24 @@ public class Document {
      * @param ent The entity to remove.
      */
     protected void removeEntity(Entity ent) {
-        if (this.hasEntity(ent)) {
-            //System.out.println("removing ent from doc");
-            entities.remove(entities.indexOf(ent));
+        int symbol = ent.getSymbol();
+        if (!entitySymbols.contains(symbol)) {
+            return;
+        }
+        //System.out.println("removing ent from doc");
+        boolean removed = false, more = false;
+        for (Iterator<Entity> it = entities.iterator(); it.hasNext();) {
+            if (it.next().getSymbol() == symbol) {
+                if (removed) {
+                    more = true;
+                    break;
+                }
+                it.remove();
+                removed = true;
+            }
+        }
+        if (!more) {
+            entitySymbols.remove(symbol);
         }
     }
 
@@ -211,7 +316,11 @@ public class Document {
      * @return String containing the document's content
      */
     public String getContent() {
-        return content;
+        String c = content;
+        if (c != null) {
+            return c;
+        }
+        return readContent();
     }
 
     /**
@@ -221,26 +330,207 @@ public class Document {
      * @return
      */
     public String getContent(int start, int end) {
+        String c = content;
+        if (c == null) {
+            synchronized (this) {
+                c = content;
+                if (c == null && store != null && contentBytes == contentLength) {
+                    //ascii, characters are bytes so read just the substring
+                    end = Math.min(contentLength, end);
+                    start = Math.max(0, start);
+                    return store.readAscii(contentKey, contentBytes, start, Math.max(start, end));
+                }
+            }
+            c = getContent();
+        }
         /* make sure that you don't go out of bounds */
-        end = Math.min(content.length(), end);
+        end = Math.min(c.length(), end);
         start = Math.max(0, start);
-        return content.substring(start, end);
+        return c.substring(start, end);
     }
 
     /**
      * Sets the content of this document
      * @param s New document content
      */
-    protected void setContent(String s) {
+    protected synchronized void setContent(String s) {
+        DocumentStore old = store;
+        if (old != null) {
+            old.remove(contentKey);
+        }
         content = s;
+        store = null;
+        contentVersion++;
+        //offsets are for the old content
+        tokens = null;
+        if (old != null) {
+            store(old);
+        }
     }
 
-    public ArrayList<String> getParsedContent() {
-        return parsedContent;
+    /**
+     * Moves the content to a store, it's read back from there from now on
+     * unless it's held. Content already in another store is moved.
+     * @param s store to use, null to keep the content on the heap
+     */
+    synchronized void store(DocumentStore s) {
+        if (s == store) {
+            return;
+        }
+        if (store != null) {
+            String c = readContent();
+            store.remove(contentKey);
+            store = null;
+            content = c;
+        }
+        if (s == null || content == null) {
+            return;
+        }
+        byte[] utf8 = content.getBytes(DocumentStore.UTF8);
+        try {
+            contentKey = s.append(utf8);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Could not store document content, keeping it in memory", ex);
+            return;
+        }
+        store = s;
+        contentBytes = utf8.length;
+        contentLength = content.length();
+        if (holds == 0) {
+            content = null;
+        }
     }
 
-    public void setParsedContent(ArrayList<String> parsedContent) {
-        this.parsedContent = parsedContent;
+    /**
+     * Keeps the content on the heap until releaseContent, for views that
+     * show it. Holds are counted.
+     */
+    public synchronized void holdContent() {
+        if (holds++ == 0 && content == null) {
+            content = readContent();
+        }
+    }
+
+    /**
+     * Lets go of the content held by holdContent, it goes back to being
+     * read from the store once nothing holds it.
+     */
+    public synchronized void releaseContent() {
+        if (holds > 0 && --holds == 0 && store != null) {
+            content = null;
+        }
+    }
+
+    /**
+     * Reads the content from the store.
+     * @return content
+     */
+    private synchronized String readContent() {
+        if (content != null) {
+            return content;
+        }
+        if (store == null) {
+            return null;
+        }
+        if (original != null) {
+            return original.readCopied(store, contentKey, contentBytes);
+        }
+        return store.read(contentKey, contentBytes);
+    }
+
+    /**
+     * Reads the content a save copy was made with. If the content moved to
+     * another store since, the record is gone and it's read from where it
+     * is now instead.
+     * @param s store when the copy was made
+     * @param key key when the copy was made
+     * @param bytes length when the copy was made
+     * @return content
+     */
+    private synchronized String readCopied(DocumentStore s, long key, int bytes) {
+        if (s == store && key == contentKey) {
+            return s.read(key, bytes);
+        }
+        return readContent();
+    }
+
+    /**
+     * Checks if a term is one of the parsed terms of the content.
+     * @param termId id of the term in the model's TermDictionary
+     * @return true if the document has the term, false if it doesn't or
+     * hasn't been parsed
+     */
+    public boolean hasTerm(int termId) {
+        TokenStream t = tokens;
+        return t != null && termId >= 0 && t.hasTerm(termId);
+    }
+
+    /**
+     * Get the parsed tokens of the content, with their term ids and offsets.
+     * @return token stream, null if the document hasn't been parsed
+     */
+    public TokenStream getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Sets the parsed tokens, unless the content changed since they were
+     * parsed. Their term set is found right away, on the parsing thread,
+     * for hasTerm.
+     * @param t token stream of the content
+     * @param version content version that was parsed
+     * @return true if they were set, false if the content changed
+     */
+    boolean setTokens(TokenStream t, int version) {
+        t.termSet();
+        synchronized (this) {
+            if (version != contentVersion) {
+                return false;
+            }
+            tokens = t;
+            tokensVersion = version;
+            return true;
+        }
+    }
+
+    /**
+     * Finds if the current content was parsed.
+     * @return true if the tokens are of this version of the content
+     */
+    public synchronized boolean isParsed() {
+        return tokens != null && tokensVersion == contentVersion;
+    }
+
+    /**
+     * Get the content version the tokens were parsed from.
+     * @return content version, -1 if the document was never parsed
+     */
+    public synchronized int getTokensVersion() {
+        return tokensVersion;
+    }
+
+    /**
+     * Get the version of the content, it changes every time the content does.
+     * @return content version
+     */
+    public synchronized int getContentVersion() {
+        return contentVersion;
+    }
+
+    /**
+     * Finds if entities were extracted from the current content.
+     * @return true if extraction ran on this version of the content
+     */
+    public synchronized boolean isExtracted() {
+        return extractedVersion == contentVersion;
+    }
+
+    /**
+     * Records that entities were extracted from a version of the content.
+     * @param version content version the extraction read
+     */
+    public synchronized void setExtracted(int version) {
+        extractedVersion = version;
     }
     /**
      * Returns the notes for this node.
@@ -400,13 +690,17 @@ public class Document {
         if (o != null) {
             if (o.getClass() == this.getClass()) {
                 Document e = (Document) o;
+                if (e == this) {
+                    //skip reading the content back from the store
+                    return true;
+                }
                 if (e.id != this.id) {
                     return false;
                 }
                 if (!e.name.equals(this.name)) {
                     return false;
                 }
-                if (!e.content.equals(this.content)) {
+                if (!e.getContent().equals(this.getContent())) {
                     return false;
                 }
                 return true;
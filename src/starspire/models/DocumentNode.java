@@ -68,6 +68,18 @@ public class DocumentNode extends Node {
         setup(divider, d);
     }
 
+    /**
+     * JSONObject constructor for a node whose document was already found.
+     * Used by the streaming loader.
+     * @param node JSONObject containing node's parameters including SID.
+     * @param d document of this node
+     * @throws JSONException JSON object not in the correct format.
+     */
+    DocumentNode(JSONObject node, Document d) throws JSONException {
+        super(node);
+        setup(node.getDouble("divider"), d);
+    }
+
     /**
      * Setup constructor helper.
      * @param nID id of the node
@@ -103,6 +115,19 @@ public class DocumentNode extends Node {
         return nodeJSON;
     }
 
+    /**
+     * Adds the document node keys to the streamed representation.
+     * @param w writer inside the node object
+     * @throws JSONException something went wrong
+     */
+    @Override
+    protected void writeJSONFields(JSONWriter w) throws JSONException {
+        super.writeJSONFields(w);
+        w.key("class").value(this.getClass().getName());
+        w.key("divider").value(dividerLoc);
+        w.key("docID").value(doc.getId());
+    }
+
 
     /**
      * Return the preferred divider location as a percentage
@@ -0,0 +1,71 @@
+package starspire.models;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Somewhere to keep document content other than a String on the heap, see
+ * Document.getContent.
+ *
+ * About stores:
+ * - Content goes in as UTF-8 and comes back as a String, each record is
+ *   known by the key append returned and its byte length.
+ * - MappedDocumentStore keeps everything in a memory mapped file,
+ *   CompressedDocumentStore keeps it deflated in memory.
+ * - Stores are thread safe.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public abstract class DocumentStore {
+
+    /**
+     * Encoding of the stored content.
+     */
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Adds content to the store.
+     * @param utf8 content encoded as UTF-8
+     * @return key to read it back with
+     * @throws IOException the content couldn't be stored
+     */
+    abstract long append(byte[] utf8) throws IOException;
+
+    /**
+     * Reads content back from the store.
+     * @param key key append returned
+     * @param length length in bytes
+     * @return the content, empty if it couldn't be read
+     */
+    abstract String read(long key, int length);
+
+    /**
+     * Reads part of a record that's only ascii (one byte per character).
+     * By default reads the whole record.
+     * @param key key append returned
+     * @param length length in bytes
+     * @param start first character
+     * @param end character after the last
+     * @return the substring
+     */
+    String readAscii(long key, int length, int start, int end) {
+        return read(key, length).substring(start, end);
+    }
+
+    /**
+     * Drops a record, its document moved elsewhere.
+     * @param key key append returned
+     */
+    abstract void remove(long key);
+
+    /**
+     * Get how much space the store uses.
+     * @return size in bytes
+     */
+    public abstract long size();
+
+    /**
+     * Releases the store, nothing can be read afterwards.
+     */
+    public abstract void close();
+}
@@ -5,6 +5,7 @@ import java.awt.Color;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 
 /**
  * An edge represents a link between 2 nodes.
@@ -30,6 +31,11 @@ public class Edge {
     private Color edgeColor;
     private double tension;
     private ArrayList<Entity> entities;
+    /**
+     * Entity names sorted by strength, built on demand for the labels and
+     * dropped when the entities or their strengths change.
+     */
+    private volatile String[] sortedNames;
 
     /**
      * Default constructor with 2 edges. Sets strength to 1.
@@ -113,6 +119,26 @@ public class Edge {
         return edge;
     }
 
+    /**
+     * Writes the same representation as getJSONObject straight to a writer,
+     * without building the object first. Used for saving.
+     * @param w writer positioned where the edge goes
+     * @throws JSONException something went wrong
+     */
+    public void writeJSON(JSONWriter w) throws JSONException {
+        w.object();
+        w.key("ID").value(ID);
+        w.key("node1").value(node1.getID());
+        w.key("node2").value(node2.getID());
+        w.key("strength").value(strength);
+        w.key("entIds").array();
+        for (Entity e : entities) {
+            w.value(e.getID());
+        }
+        w.endArray();
+        w.endObject();
+    }
+
     /**
      * Returns the unique id of this edge.
      * @return edge id
@@ -230,6 +256,14 @@ public class Edge {
         return entities.size();
     }
 
+    /**
+     * Iterator over the entities of this edge, used for saving.
+     * @return entity iterator
+     */
+    Iterator<Entity> entityIterator() {
+        return entities.iterator();
+    }
+
 
     /**
      * Removes an entity from this edge.
@@ -265,8 +299,11 @@ public class Edge {
      * Calculates the edge strength based on:
      * 1) The number of entities in the edge
      * 2) The weight of each entity in the edge
+     * Adding or removing entities and entity strength changes all end up
+     * here, so it also drops the sorted entity names.
      */
     public void calculateEdgeStrength() {
+        sortedNames = null;
         double newStrength = 0;
 
         for(Entity e : entities) {
@@ -299,14 +336,16 @@ public class Edge {
 
     /**
      * This returns an array of the entities. It uses the toString() on entites.
-     * The list is sorted by the entity strengths
+     * The list is sorted by the entity strengths. It's cached until the
+     * entities or their strengths change so callers must not modify it.
      * @return Array of entity strings, sorted
      */
     public String[] entitiesToStringSorted() {
-        ArrayList<Entity> list = new ArrayList();
-        for (int i = 0; i < entities.size(); i++) {
-            list.add(entities.get(i));
+        String[] sorted = sortedNames;
+        if (sorted != null) {
+            return sorted;
         }
+        ArrayList<Entity> list = new ArrayList<Entity>(entities);
 
         //sort the array by the strength of the entities
         Collections.sort(list, new Comparator<Entity>() {
@@ -315,11 +354,12 @@ public class Edge {
                         return Double.compare(b.getStrength(), a.getStrength());
                     }
         });
-        String[] sortedList = new String[entities.size()];
-        for (int i = 0; i < entities.size(); i++) {
-            sortedList[i] = list.get(i).getName();
+        sorted = new String[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            sorted[i] = list.get(i).getName();
         }
-        return sortedList;
+        sortedNames = sorted;
+        return sorted;
     }
 
     /**
@@ -20,9 +20,15 @@ public class Entity implements Iterable<Document> {
     private boolean softdata;
     private int ID;
     private String name;
+    /**
+     * Id of the name in the SymbolTable, entities with the same name (any
+     * case) have the same symbol.
+     */
+    private int symbol;
     private ArrayList<Document> docs;
+    private IntSet docIds; //ids of docs, for hasDocument
     private ArrayList<Search> searches;
-    private double strength;    //strength of the entity, which the edge then uses
+    private volatile double strength;    //strength of the entity, which the edge then uses
     private double initialTFIDF;    //the initial TFIDF value given
     private double TF;
     private double IDF;
@@ -61,6 +67,17 @@ public class Entity implements Iterable<Document> {
      * @throws JSONException format exception
      */
     public Entity(JSONObject ent, DataModel model) throws JSONException {
+        this(ent, model.documentIndex(), model.searchIndex());
+    }
+
+    /**
+     * Load an entity from a saved JSON, linking it through id maps.
+     * @param ent JSON object to load
+     * @param docIds documents of the model by id
+     * @param searchIds searches of the model by id
+     * @throws JSONException format exception
+     */
+    Entity(JSONObject ent, Map<Integer, Document> docIds, Map<Integer, Search> searchIds) throws JSONException {
         int lid;
         String n;
         double str;
@@ -78,7 +95,7 @@ public class Entity implements Iterable<Document> {
         for (int i = 0; i < JSONdocs.length(); i++) {
             int id;
             id = JSONdocs.getInt(i);
-            Document d = model.lookUpDocument(id);
+            Document d = docIds.get(id);
             if (d != null) {
 		//add document to this entity
                 ndocs.add(d);
@@ -96,7 +113,7 @@ public class Entity implements Iterable<Document> {
         for (int i = 0; i < JSONsearches.length(); i++) {
             int id;
             id = JSONsearches.getInt(i);
-            Search s = model.lookUpSearch(id);
+            Search s = searchIds.get(id);
             if (s != null) {
 		//add document to this entity
                 nsearches.add(s);
@@ -125,6 +142,21 @@ public class Entity implements Iterable<Document> {
         }
     }
 
+    /**
+     * Save copy constructor, see saveCopy. The links are copied, the
+     * documents and searches themselves aren't.
+     * @param e entity to copy
+     */
+    private Entity(Entity e) {
+        ID = e.ID;
+        name = e.name;
+        symbol = e.symbol;
+        softdata = e.softdata;
+        strength = e.strength;
+        docs = new ArrayList<Document>(e.docs);
+        searches = new ArrayList<Search>(e.searches);
+    }
+
     /**
      * constructor helper.
      * @param newID id to give the entity, helpful to reuse old ids on load
@@ -134,9 +166,14 @@ public class Entity implements Iterable<Document> {
      */
     private void setup(int newID, String newName, ArrayList<Document> newDocs,ArrayList<Search> newSearches, boolean soft, double str) {
         docs = newDocs;
+        docIds = new IntSet();
+        for (Document d : newDocs) {
+            docIds.add(d.getId());
+        }
         searches = newSearches;
         ID = newID;
         name = newName;
+        symbol = SymbolTable.id(newName);
         strength = str;
         softdata = soft;
         initialTFIDF = 0;
@@ -174,6 +211,42 @@ public class Entity implements Iterable<Document> {
 
         return entJSON;
     }
+
+    /**
+     * Copies the saved fields and links, for a WorkspaceSnapshot. The caller
+     * holds the data model's read lock so the links don't change meanwhile.
+     * @return copy, not part of any model
+     */
+    Entity saveCopy() {
+        return new Entity(this);
+    }
+
+    /**
+     * Writes the same representation as getJSONObject straight to a writer,
+     * without building the object first. Used for saving.
+     * @param w writer positioned where the entity goes
+     * @throws JSONException something went wrong
+     */
+    public void writeJSON(JSONWriter w) throws JSONException {
+        w.object();
+        w.key("ID").value(ID);
+        if (name != null) {
+            w.key("name").value(name);
+        }
+        w.key("softdata").value(softdata);
+        w.key("strength").value(strength);
+        w.key("documents").array();
+        for (Document doc : docs) {
+            w.value(doc.getId());
+        }
+        w.endArray();
+        w.key("searches").array();
+        for (Search s : searches) {
+            w.value(s.getId());
+        }
+        w.endArray();
+        w.endObject();
+    }
     
     
     
@@ -259,6 +332,7 @@ public class Entity implements Iterable<Document> {
     protected void setName(String n) {
         if(n.length() < 0) {
             name = n;
+            symbol = SymbolTable.id(n);
         }
     }
 
@@ -268,6 +342,7 @@ public class Entity implements Iterable<Document> {
      */
     public void addDocument(Document d) {
         docs.add(d);
+        docIds.add(d.getId());
     }
 
     /**
@@ -306,23 +381,28 @@ public class Entity implements Iterable<Document> {
         return name;
     }
 
+    /**
+     * Get the symbol of the entity name, two entities with the same symbol
+     * have the same name ignoring case.
+     * @return symbol id, see SymbolTable
+     */
+    public int getSymbol() {
+        return symbol;
+    }
+
     /**
      * Finds if the Document exists in the current Document list.
      * @param doc The document to check if it exists.
      * @return boolean True if it exists, False if not
      */
     public boolean hasDocument(Document doc) {
-        for (Document d : docs) {
-            if (doc.getName().equals(d.getName())) {
-                return true;
-            }
-        }
-        return false;
+        return docIds.contains(doc.getId());
     }
 
     public boolean hasSearch(Search s) {
+        int term = s.getSymbol();
         for (Search ss : searches) {
-            if (ss.getSearchTerm().equals(s.getSearchTerm())) {
+            if (ss.getSymbol() == term) {
                 return true;
             }
         }
@@ -335,7 +415,9 @@ public class Entity implements Iterable<Document> {
      * @param d Document to remove
      */
     protected void removeDocument(Document d) {
-        docs.remove(d);
+        if (docs.remove(d) && !docs.contains(d)) {
+            docIds.remove(d.getId());
+        }
     }
 
     protected void removeSearch(Search s) {
@@ -383,6 +465,14 @@ public class Entity implements Iterable<Document> {
         return softdata;
     }
 
+    /**
+     * Sets whether the entity was user created.
+     * @param soft true if soft data
+     */
+    void setSoftData(boolean soft) {
+        softdata = soft;
+    }
+
     /**
      * Return the id of this entity;
      * @return id number
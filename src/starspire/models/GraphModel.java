@@ -120,6 +120,23 @@ public class GraphModel {
         }
     }
 
+    /**
+     * Adds a node read from a save file. No events, nothing listens yet.
+     * @param n loaded node
+     */
+    synchronized void loadNode(Node n) {
+        nodes.add(n);
+    }
+
+    /**
+     * Adds an edge read from a save file. No events, nothing listens yet.
+     * The edge must already be linked to its nodes and entities.
+     * @param e loaded edge
+     */
+    synchronized void loadEdge(Edge e) {
+        edges.add(e);
+    }
+
     /**
      * lookUpNode is a helper for creating edges from JSONObjects,
      * the edge has the node id but no way to look it up.
@@ -59,4 +59,16 @@ public class Highlight {
 	return a;
     }
 
+    /**
+     * Writes the same array as getJSONObject straight to a writer.
+     * @param w writer positioned where the highlight goes
+     * @throws JSONException something went wrong
+     */
+    public void writeJSON(JSONWriter w) throws JSONException {
+        w.array();
+        w.value(start);
+        w.value(end);
+        w.endArray();
+    }
+
 }
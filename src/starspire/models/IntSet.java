@@ -0,0 +1,150 @@
+package starspire.models;
+
+import java.util.Arrays;
+
+/**
+ * A set of ints without boxing, for the document/entity links.
+ *
+ * About the set:
+ * - Open addressing with linear probing in a power of two table kept at
+ *   most half full, add, remove and contains are O(1).
+ * - Removing shifts the following entries back instead of leaving
+ *   tombstones so lookups never slow down after many removals.
+ * - Not thread safe, the owners guard it like the lists it sits next to.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class IntSet {
+
+    /**
+     * Marks free slots, the one value the set can't hold.
+     */
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final int MIN_CAPACITY = 8;
+    private int[] table;
+    private int size = 0;
+
+    /**
+     * Creates an empty set.
+     */
+    public IntSet() {
+        table = new int[MIN_CAPACITY];
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * Adds a value.
+     * @param v value, anything but Integer.MIN_VALUE
+     * @return true if it wasn't in the set already
+     */
+    public boolean add(int v) {
+        if (v == EMPTY) {
+            throw new IllegalArgumentException("IntSet can't hold Integer.MIN_VALUE");
+        }
+        int mask = table.length - 1;
+        int i = slot(v, mask);
+        while (table[i] != EMPTY) {
+            if (table[i] == v) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = v;
+        size++;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Checks for a value.
+     * @param v value
+     * @return true if it's in the set
+     */
+    public boolean contains(int v) {
+        if (v == EMPTY) {
+            return false;
+        }
+        int mask = table.length - 1;
+        int i = slot(v, mask);
+        while (table[i] != EMPTY) {
+            if (table[i] == v) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a value.
+     * @param v value
+     * @return true if it was in the set
+     */
+    public boolean remove(int v) {
+        if (v == EMPTY) {
+            return false;
+        }
+        int mask = table.length - 1;
+        int i = slot(v, mask);
+        while (table[i] != v) {
+            if (table[i] == EMPTY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        //shift back the entries that probed past the freed slot
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[j] == EMPTY) {
+                break;
+            }
+            int home = slot(table[j], mask);
+            //move it if its home isn't in (i, j] cyclically
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = EMPTY;
+        size--;
+        return true;
+    }
+
+    /**
+     * Get the number of values.
+     * @return set size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Home slot of a value, the bits are mixed so sequential ids spread out.
+     */
+    private static int slot(int v, int mask) {
+        int h = v * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Moves the values to a table of a new size.
+     */
+    private void rehash(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        int mask = capacity - 1;
+        for (int v : old) {
+            if (v != EMPTY) {
+                int i = slot(v, mask);
+                while (table[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = v;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package starspire.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import starspire.StarSpireApp;
+
+/**
+ * Keeps document content out of the heap, in a memory mapped file.
+ *
+ * About the store:
+ * - Content is appended to a temporary file as UTF-8, documents keep the
+ *   offset and byte length of their content (the offset index, the offset
+ *   is the record key) and read it back when asked, see Document.getContent.
+ * - The file is mapped in segments. A record never straddles two segments
+ *   so it can always be read from a single mapping, records bigger than a
+ *   segment are read straight from the file.
+ * - Nothing is ever removed, content that's replaced stays in the file
+ *   until the store is closed. Documents don't change content so that's
+ *   rare.
+ * - The file is deleted when the store is closed or the app exits.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class MappedDocumentStore extends DocumentStore {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    /**
+     * Size of one mapping, 64MB.
+     */
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ArrayList<MappedByteBuffer> segments;
+    private long end = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates an empty store in the temporary directory.
+     * @throws IOException the file couldn't be created
+     */
+    public MappedDocumentStore() throws IOException {
+        file = File.createTempFile("starspire-", ".docs");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        segments = new ArrayList<MappedByteBuffer>();
+    }
+
+    /**
+     * Adds content to the store.
+     * @param utf8 content encoded as UTF-8
+     * @return offset to read it back from
+     * @throws IOException the file couldn't be written
+     */
+    synchronized long append(byte[] utf8) throws IOException {
+        if (closed) {
+            throw new IOException("Document store is closed");
+        }
+        long offset = end;
+        long left = SEGMENT_SIZE - offset % SEGMENT_SIZE;
+        if (utf8.length <= SEGMENT_SIZE && utf8.length > left) {
+            //start the next segment instead of straddling
+            offset += left;
+        }
+        ByteBuffer b = ByteBuffer.wrap(utf8);
+        long pos = offset;
+        while (b.hasRemaining()) {
+            pos += channel.write(b, pos);
+        }
+        end = offset + utf8.length;
+        return offset;
+    }
+
+    /**
+     * Reads content back from the store.
+     * @param offset offset append returned
+     * @param length length in bytes
+     * @return the content, empty if it couldn't be read
+     */
+    String read(long offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        try {
+            ByteBuffer b = slice(offset, length);
+            return UTF8.decode(b).toString();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error reading document content", ex);
+            return "";
+        }
+    }
+
+    /**
+     * Reads part of an ascii record, bytes are characters so only the
+     * substring is read.
+     * @param offset offset append returned
+     * @param length length in bytes
+     * @param start first character
+     * @param end character after the last
+     * @return the substring
+     */
+    @Override
+    String readAscii(long offset, int length, int start, int end) {
+        return read(offset + start, end - start);
+    }
+
+    /**
+     * Mapped records aren't removed, the space is only given back when the
+     * store is closed.
+     * @param offset offset append returned
+     */
+    void remove(long offset) {
+    }
+
+    /**
+     * Get the number of bytes in the store file.
+     * @return store size, including content that was replaced
+     */
+    public synchronized long size() {
+        return end;
+    }
+
+    /**
+     * Unmaps and deletes the store. Content can't be read afterwards.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        segments.clear();
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error closing document store", ex);
+        }
+        if (!file.delete()) {
+            //still mapped (windows), deleteOnExit will get it
+            logger.log(Level.FINE, "Document store {0} deleted on exit", file);
+        }
+    }
+
+    /**
+     * Get a buffer over a record, mapping its segment if needed.
+     * @param offset record offset
+     * @param length record length
+     * @return buffer positioned on the record, safe to use from any thread
+     */
+    private synchronized ByteBuffer slice(long offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Document store is closed");
+        }
+        if (length > SEGMENT_SIZE) {
+            ByteBuffer b = ByteBuffer.allocate(length);
+            long pos = offset;
+            while (b.hasRemaining()) {
+                int n = channel.read(b, pos);
+                if (n < 0) {
+                    throw new IOException("Document store truncated");
+                }
+                pos += n;
+            }
+            b.flip();
+            return b;
+        }
+        int index = (int) (offset / SEGMENT_SIZE);
+        int start = (int) (offset % SEGMENT_SIZE);
+        while (segments.size() <= index) {
+            segments.add(null);
+        }
+        MappedByteBuffer segment = segments.get(index);
+        if (segment == null || segment.capacity() < start + length) {
+            //map up to the current end, the last segment grows as we append
+            long base = (long) index * SEGMENT_SIZE;
+            long size = Math.min(SEGMENT_SIZE, end - base);
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, base, size);
+            segments.set(index, segment);
+        }
+        ByteBuffer b = segment.duplicate();
+        b.position(start);
+        b.limit(start + length);
+        return b;
+    }
+}
@@ -171,6 +171,34 @@ public abstract class Node {
         return nodeJSON;
     }
 
+    /**
+     * Writes the same representation as getJSONObject straight to a writer,
+     * without building the object first. Used for saving.
+     * @param w writer positioned where the node goes
+     * @throws JSONException something went wrong
+     */
+    public void writeJSON(JSONWriter w) throws JSONException {
+        w.object();
+        writeJSONFields(w);
+        w.endObject();
+    }
+
+    /**
+     * Writes the node's keys and values, subclasses add theirs after these.
+     * @param w writer inside the node object
+     * @throws JSONException something went wrong
+     */
+    protected void writeJSONFields(JSONWriter w) throws JSONException {
+        w.key("ID").value(ID);
+        w.key("X").value(x);
+        w.key("Y").value(y);
+        w.key("W").value(this.w);
+        w.key("H").value(h);
+        w.key("weight").value(weight);
+        w.key("pinned").value(pinned);
+        w.key("open").value(isOpen);
+    }
+
     /**
      * Return the weight of the Node.
      * @return double weight
@@ -15,6 +15,7 @@ public class Search {
     private int results;
     private int hue; //where search node color gets set
     private String searchTerm;
+    private int symbol; //searchTerm in the SymbolTable
     private Entity entity; //should we have this AND Entity has list of Documents?
 
     /**
@@ -62,6 +63,14 @@ public class Search {
         }
     }
 
+    /**
+     * Save copy constructor, see saveCopy.
+     * @param s search to copy
+     */
+    private Search(Search s) {
+        setup(s.id, s.hue, s.results, s.searchTerm, null);
+    }
+
     /**
      * Helper for constructor.
      * @param nid id to use
@@ -70,6 +79,7 @@ public class Search {
     private void setup(int nid, int h, int r, String n, Entity e) {
         id = nid;
         searchTerm = n;
+        symbol = SymbolTable.id(n);
         entity = e;
         results = r;
         hue = h;
@@ -91,13 +101,38 @@ public class Search {
         return nodeJSON;
     }
 
+    /**
+     * Copies the saved fields, for a WorkspaceSnapshot.
+     * @return copy with no entity, not part of any model
+     */
+    Search saveCopy() {
+        return new Search(this);
+    }
+
+    /**
+     * Writes the same representation as getJSONObject straight to a writer,
+     * without building the object first. Used for saving.
+     * @param w writer positioned where the search goes
+     * @throws JSONException something went wrong
+     */
+    public void writeJSON(JSONWriter w) throws JSONException {
+        w.object();
+        w.key("ID").value(id);
+        if (searchTerm != null) {
+            w.key("query").value(searchTerm);
+        }
+        w.key("hue").value(hue);
+        w.key("results").value(results);
+        w.endObject();
+    }
+
     /**
      * Check if the entity is part of the entity list for this search.
      * @param ent The entity to check.
      * @return boolean True if it exists, False if not
      */
     public boolean hasEntity(Entity ent) {
-        if (entity.getName().equalsIgnoreCase(ent.getName())) {
+        if (entity.getSymbol() == ent.getSymbol()) {
             return true;
         }
         return false;
@@ -152,6 +187,16 @@ public class Search {
      */
     protected void setSearchTerm(String n) {
         searchTerm = n;
+        symbol = SymbolTable.id(n);
+    }
+
+    /**
+     * Get the symbol of the search term, searches for the same term (any
+     * case) have the same symbol.
+     * @return symbol id, see SymbolTable
+     */
+    public int getSymbol() {
+        return symbol;
     }
 
     /**
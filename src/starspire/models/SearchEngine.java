@@ -0,0 +1,1082 @@
+package starspire.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import starspire.controllers.Parser;
+
+/**
+ * Ranked full text search over every document of the data model, visible
+ * and hidden, for searches and for picking which hidden documents to show.
+ *
+ * About the engine:
+ * - Documents are numbered in the order they're indexed (ordinals). Every
+ *   term (case insensitive, SymbolTable.normalize) has a postings array of
+ *   (ordinal, term frequency, where its positions start) triples in
+ *   ordinal order and an array of the token positions, for phrases.
+ *   Positions are token indexes in the document's TokenStream, the index
+ *   is built from the streams and never reads the text again.
+ * - Documents are scored with BM25 over the whole collection. Each term
+ *   keeps its highest frequency and the shortest document it's in, which
+ *   bound what it can add to a score.
+ * - Top k queries skip what can't make it: with required terms the
+ *   documents having them all are walked and the ones whose bound is under
+ *   the k-th best score aren't checked any further, otherwise (only OR)
+ *   the terms whose bounds add up under the k-th best score stop being
+ *   walked (MaxScore) and the search ends once no term is left to walk.
+ * - Query syntax: words are all required, "quoted words" are a phrase
+ *   (consecutive words, stop words in the phrase aren't checked), OR
+ *   between two words or phrases means either one and -word or -"phrase"
+ *   leaves out the documents with it.
+ * - DataModel tells the engine about every document that becomes visible
+ *   or hidden and applies the changes right after, on its own thread.
+ *   Queries never index, they see what was applied. A document whose
+ *   content changed is indexed again under a new ordinal, the old one is
+ *   skipped and its postings dropped once there are more skipped ordinals
+ *   than live ones.
+ * - Queries are synchronized, they can come from any thread. Adding
+ *   documents never waits for a query, applying them only does while
+ *   postings are appended.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class SearchEngine {
+
+    /**
+     * Filter for every document.
+     */
+    public final static int ALL = 0;
+    /**
+     * Filter for the visible documents.
+     */
+    public final static int VISIBLE = 1;
+    /**
+     * Filter for the hidden documents.
+     */
+    public final static int HIDDEN = 2;
+    private final static double K1 = 1.2;
+    private final static double B = 0.75;
+    private final static int NO_MORE = Integer.MAX_VALUE;
+    /**
+     * Documents indexed at once, the ones to parse are parsed in parallel
+     * above the parallel minimum.
+     */
+    private final static int INDEX_CHUNK = 4096;
+    private final static int PARALLEL_MIN = 256;
+    /**
+     * Compacting isn't worth it below this many skipped ordinals.
+     */
+    private final static int MIN_COMPACT = 64;
+    private final TermDictionary terms;
+    /**
+     * Case folded terms, their ids are the postings indexes.
+     */
+    private final TermDictionary keys = new TermDictionary();
+    /**
+     * Key of each term id plus one, 0 when not known yet. Only indexing
+     * uses it.
+     */
+    private int[] keyOfTerm = new int[1024];
+    private final ArrayList<int[]> postings = new ArrayList<int[]>();
+    private final ArrayList<int[]> positions = new ArrayList<int[]>();
+    private int[] postingsCount = new int[1024];
+    private int[] positionsSize = new int[1024];
+    private int[] maxTf = new int[1024];
+    private int[] minLength = new int[1024];
+    private final ArrayList<Document> documents = new ArrayList<Document>();
+    private int[] lengths = new int[1024];
+    private int[] versions = new int[1024];
+    private final BitSet hidden = new BitSet();
+    private final BitSet deleted = new BitSet();
+    private final HashMap<Integer, Integer> ordinals = new HashMap<Integer, Integer>();
+    private long totalLength = 0;
+    /**
+     * Documents added or moved since the last applyChanges, and if they're
+     * hidden.
+     */
+    private final LinkedHashMap<Document, Boolean> changes = new LinkedHashMap<Document, Boolean>();
+    /**
+     * Held while applying changes, so batches are indexed one at a time
+     * and in order.
+     */
+    private final Object indexing = new Object();
+
+    /**
+     * A ranked document.
+     */
+    public static class Result {
+
+        private final Document document;
+        private final double score;
+        private final int ordinal;
+
+        Result(Document document, double score, int ordinal) {
+            this.document = document;
+            this.score = score;
+            this.ordinal = ordinal;
+        }
+
+        /**
+         * Get the document.
+         * @return document
+         */
+        public Document getDocument() {
+            return document;
+        }
+
+        /**
+         * Get the document's BM25 score for the query.
+         * @return score
+         */
+        public double getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * A word or phrase of a query.
+     */
+    private static class Clause {
+
+        /**
+         * Cursor of each word, null if no document has it.
+         */
+        final Cursor[] words;
+        final boolean phrase;
+
+        Clause(Cursor[] words, boolean phrase) {
+            this.words = words;
+            this.phrase = phrase;
+        }
+    }
+
+    /**
+     * Walks the postings of a term.
+     */
+    private static class Cursor {
+
+        final int[] post;
+        final int[] pos;
+        final int count;
+        final double idf;
+        final double bound;
+        int i = 0;
+
+        Cursor(int[] post, int[] pos, int count, double idf, double bound) {
+            this.post = post;
+            this.pos = pos;
+            this.count = count;
+            this.idf = idf;
+            this.bound = bound;
+        }
+
+        int doc() {
+            return i < count ? post[3 * i] : NO_MORE;
+        }
+
+        int tf() {
+            return post[3 * i + 1];
+        }
+
+        /**
+         * Moves to the first posting at or after an ordinal, galloping then
+         * a binary search.
+         * @return the ordinal it's on
+         */
+        int advance(int target) {
+            if (i >= count || post[3 * i] >= target) {
+                return doc();
+            }
+            int lo = i;
+            int step = 1;
+            while (lo + step < count && post[3 * (lo + step)] < target) {
+                lo += step;
+                step <<= 1;
+            }
+            int hi = Math.min(lo + step, count);
+            //post[lo] < target, post[hi] >= target or hi == count
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if (post[3 * mid] < target) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            i = hi;
+            return doc();
+        }
+
+        /**
+         * Checks that the current document has the term at a position.
+         */
+        boolean hasPosition(int p) {
+            int from = post[3 * i + 2];
+            return Arrays.binarySearch(pos, from, from + post[3 * i + 1], p) >= 0;
+        }
+    }
+
+    /**
+     * A parsed query.
+     */
+    private static class Query {
+
+        /**
+         * Every group has to match, a group matches if one of its clauses
+         * does.
+         */
+        final ArrayList<ArrayList<Clause>> groups = new ArrayList<ArrayList<Clause>>();
+        final ArrayList<Clause> excluded = new ArrayList<Clause>();
+        /**
+         * One cursor per term of the groups.
+         */
+        final ArrayList<Cursor> scored = new ArrayList<Cursor>();
+    }
+
+    /**
+     * The words of a document, ready to be appended.
+     */
+    private static class Tokenized {
+
+        int length;
+        int[] keys;
+        int[] tf;
+        int[] positions;
+    }
+
+    /**
+     * Constructor
+     * @param terms term dictionary of the data model, the one the
+     * documents' token streams use
+     */
+    public SearchEngine(TermDictionary terms) {
+        this.terms = terms;
+    }
+
+    /**
+     * Adds a document or moves it between visible and hidden. It's indexed
+     * at the next applyChanges.
+     * @param d document
+     * @param isHidden if it's a hidden document
+     */
+    public void add(Document d, boolean isHidden) {
+        synchronized (changes) {
+            changes.put(d, isHidden);
+        }
+    }
+
+    /**
+     * Counts the documents matching a query.
+     * @param query query, see SearchEngine
+     * @param filter ALL, VISIBLE or HIDDEN
+     * @return number of documents
+     */
+    public synchronized int count(String query, int filter) {
+        return evaluate(query, filter, null);
+    }
+
+    /**
+     * Finds every document matching a query.
+     * @param query query, see SearchEngine
+     * @param filter ALL, VISIBLE or HIDDEN
+     * @return documents in the order they were indexed
+     */
+    public synchronized List<Document> match(String query, int filter) {
+        ArrayList<Document> found = new ArrayList<Document>();
+        evaluate(query, filter, found);
+        return found;
+    }
+
+    /**
+     * Finds the best documents for a query.
+     * @param query query, see SearchEngine
+     * @param k how many to return
+     * @param filter ALL, VISIBLE or HIDDEN
+     * @return up to k documents, best first
+     */
+    public synchronized List<Result> search(String query, int k, int filter) {
+        Query q = parse(query);
+        ArrayList<Result> results = new ArrayList<Result>();
+        if (k <= 0 || q == null) {
+            return results;
+        }
+        PriorityQueue<Result> top = new PriorityQueue<Result>(Math.min(k, 1024), new Comparator<Result>() {
+
+            public int compare(Result a, Result b) {
+                //worst first, on ties the later document goes first
+                if (a.score != b.score) {
+                    return a.score < b.score ? -1 : 1;
+                }
+                return b.ordinal - a.ordinal;
+            }
+        });
+        if (hasRequired(q)) {
+            searchRequired(q, k, filter, top);
+        } else {
+            searchOptional(q, k, filter, top);
+        }
+        results.addAll(top);
+        Collections.sort(results, Collections.reverseOrder(top.comparator()));
+        return results;
+    }
+
+    /**
+     * Counts or collects the documents matching a query, no scoring.
+     */
+    private int evaluate(String query, int filter, List<Document> found) {
+        Query q = parse(query);
+        if (q == null) {
+            return 0;
+        }
+        int n = 0;
+        if (hasRequired(q)) {
+            Cursor[] required = required(q);
+            for (int d = conjoin(required, 0); d != NO_MORE; d = conjoin(required, d + 1)) {
+                if (accept(d, filter) && matches(q, d)) {
+                    n++;
+                    if (found != null) {
+                        found.add(documents.get(d));
+                    }
+                }
+            }
+        } else {
+            Cursor[] all = q.scored.toArray(new Cursor[q.scored.size()]);
+            for (int d = first(all, 0, all.length); d != NO_MORE; d = next(all, 0, all.length, d)) {
+                if (accept(d, filter) && matches(q, d)) {
+                    n++;
+                    if (found != null) {
+                        found.add(documents.get(d));
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Top k when some terms are required: walks the documents with all of
+     * them, a document whose bound can't beat the k-th score is dropped
+     * before the other clauses and phrases are checked.
+     */
+    private void searchRequired(Query q, int k, int filter, PriorityQueue<Result> top) {
+        Cursor[] required = required(q);
+        List<Cursor> requiredList = Arrays.asList(required);
+        double optionalBound = 0;
+        for (Cursor c : q.scored) {
+            if (!requiredList.contains(c)) {
+                optionalBound += c.bound;
+            }
+        }
+        double avg = averageLength();
+        for (int d = conjoin(required, 0); d != NO_MORE; d = conjoin(required, d + 1)) {
+            if (!accept(d, filter)) {
+                continue;
+            }
+            double score = 0;
+            for (Cursor c : required) {
+                score += weight(c, d, avg);
+            }
+            if (top.size() >= k && score + optionalBound <= top.peek().score) {
+                continue;
+            }
+            if (!matches(q, d)) {
+                continue;
+            }
+            for (Cursor c : q.scored) {
+                if (!requiredList.contains(c) && c.advance(d) == d) {
+                    score += weight(c, d, avg);
+                }
+            }
+            offer(top, k, new Result(documents.get(d), score, d));
+        }
+    }
+
+    /**
+     * Top k when every term is optional (MaxScore): terms sorted by bound,
+     * the lowest ones whose bounds add up under the k-th score are only
+     * looked up for documents the others found.
+     */
+    private void searchOptional(Query q, int k, int filter, PriorityQueue<Result> top) {
+        Cursor[] cursors = q.scored.toArray(new Cursor[q.scored.size()]);
+        Arrays.sort(cursors, new Comparator<Cursor>() {
+
+            public int compare(Cursor a, Cursor b) {
+                return Double.compare(a.bound, b.bound);
+            }
+        });
+        int n = cursors.length;
+        //sums[i] is the bound of the cursors before i
+        double[] sums = new double[n + 1];
+        for (int i = 0; i < n; i++) {
+            sums[i + 1] = sums[i] + cursors[i].bound;
+        }
+        double avg = averageLength();
+        int essential = 0;
+        int d = first(cursors, essential, n);
+        while (d != NO_MORE) {
+            if (accept(d, filter)) {
+                double score = 0;
+                for (int i = essential; i < n; i++) {
+                    if (cursors[i].doc() == d) {
+                        score += weight(cursors[i], d, avg);
+                    }
+                }
+                double threshold = top.size() >= k ? top.peek().score : Double.NEGATIVE_INFINITY;
+                boolean pruned = false;
+                for (int i = essential - 1; i >= 0; i--) {
+                    if (score + sums[i + 1] <= threshold) {
+                        pruned = true;
+                        break;
+                    }
+                    if (cursors[i].advance(d) == d) {
+                        score += weight(cursors[i], d, avg);
+                    }
+                }
+                if (!pruned && score > threshold && matches(q, d)) {
+                    offer(top, k, new Result(documents.get(d), score, d));
+                    if (top.size() >= k) {
+                        threshold = top.peek().score;
+                        while (essential < n && sums[essential + 1] <= threshold) {
+                            essential++;
+                        }
+                        if (essential == n) {
+                            //nothing left can beat the k-th document
+                            return;
+                        }
+                    }
+                }
+            }
+            d = next(cursors, essential, n, d);
+        }
+    }
+
+    private static void offer(PriorityQueue<Result> top, int k, Result r) {
+        if (top.size() < k) {
+            top.add(r);
+        } else if (top.comparator().compare(r, top.peek()) > 0) {
+            top.poll();
+            top.add(r);
+        }
+    }
+
+    /**
+     * Checks that a query has a group of one clause, whose words are then
+     * all required.
+     */
+    private static boolean hasRequired(Query q) {
+        for (ArrayList<Clause> g : q.groups) {
+            if (g.size() == 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the cursors of the required words, rarest first.
+     */
+    private static Cursor[] required(Query q) {
+        ArrayList<Cursor> list = new ArrayList<Cursor>();
+        for (ArrayList<Clause> g : q.groups) {
+            if (g.size() == 1) {
+                for (Cursor c : g.get(0).words) {
+                    if (!list.contains(c)) {
+                        list.add(c);
+                    }
+                }
+            }
+        }
+        Cursor[] required = list.toArray(new Cursor[list.size()]);
+        Arrays.sort(required, new Comparator<Cursor>() {
+
+            public int compare(Cursor a, Cursor b) {
+                return a.count - b.count;
+            }
+        });
+        return required;
+    }
+
+    /**
+     * Finds the next document at or after an ordinal that has all the
+     * cursors' terms.
+     */
+    private static int conjoin(Cursor[] cursors, int target) {
+        int d = cursors[0].advance(target);
+        while (d != NO_MORE) {
+            boolean agreed = true;
+            for (int i = 1; i < cursors.length; i++) {
+                int e = cursors[i].advance(d);
+                if (e != d) {
+                    //past it, the rarest term catches up
+                    d = cursors[0].advance(e);
+                    agreed = false;
+                    break;
+                }
+            }
+            if (agreed) {
+                return d;
+            }
+        }
+        return NO_MORE;
+    }
+
+    /**
+     * Smallest current document of some cursors.
+     */
+    private static int first(Cursor[] cursors, int from, int to) {
+        int d = NO_MORE;
+        for (int i = from; i < to; i++) {
+            d = Math.min(d, cursors[i].doc());
+        }
+        return d;
+    }
+
+    /**
+     * Moves the cursors on a document past it and gives the next one.
+     */
+    private static int next(Cursor[] cursors, int from, int to, int d) {
+        for (int i = from; i < to; i++) {
+            if (cursors[i].doc() == d) {
+                cursors[i].advance(d + 1);
+            }
+        }
+        return first(cursors, from, to);
+    }
+
+    /**
+     * Checks the filter and that the document wasn't indexed again.
+     */
+    private boolean accept(int d, int filter) {
+        if (deleted.get(d)) {
+            return false;
+        }
+        switch (filter) {
+            case VISIBLE:
+                return !hidden.get(d);
+            case HIDDEN:
+                return hidden.get(d);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Checks the groups and exclusions of a query on a document.
+     */
+    private static boolean matches(Query q, int d) {
+        for (ArrayList<Clause> g : q.groups) {
+            boolean any = false;
+            for (Clause c : g) {
+                if (matches(c, d)) {
+                    any = true;
+                    break;
+                }
+            }
+            if (!any) {
+                return false;
+            }
+        }
+        for (Clause c : q.excluded) {
+            if (matches(c, d)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks a word or phrase on a document, positions its cursors there.
+     */
+    private static boolean matches(Clause c, int d) {
+        for (Cursor w : c.words) {
+            if (w == null || w.advance(d) != d) {
+                return false;
+            }
+        }
+        if (!c.phrase) {
+            return true;
+        }
+        Cursor lead = c.words[0];
+        int from = lead.post[3 * lead.i + 2];
+        for (int p = from; p < from + lead.tf(); p++) {
+            int start = lead.pos[p];
+            boolean found = true;
+            for (int j = 1; j < c.words.length && found; j++) {
+                found = c.words[j].hasPosition(start + j);
+            }
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * BM25 weight of the term of a cursor positioned on a document.
+     */
+    private double weight(Cursor c, int d, double avg) {
+        int tf = c.tf();
+        return c.idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * lengths[d] / avg));
+    }
+
+    private double averageLength() {
+        int n = documents.size() - deleted.cardinality();
+        return n == 0 || totalLength == 0 ? 1 : (double) totalLength / n;
+    }
+
+    /**
+     * Parses a query and sets up the cursors of its terms.
+     * @return the query, null if it has no words to look for
+     */
+    private Query parse(String query) {
+        Query q = new Query();
+        HashMap<Integer, Cursor> cursors = new HashMap<Integer, Cursor>();
+        int live = documents.size() - deleted.cardinality();
+        double avg = averageLength();
+        boolean or = false;
+        int i = 0;
+        int n = query.length();
+        while (i < n) {
+            while (i < n && Character.isWhitespace(query.charAt(i))) {
+                i++;
+            }
+            if (i >= n) {
+                break;
+            }
+            boolean not = false;
+            if (query.charAt(i) == '-' && i + 1 < n && !Character.isWhitespace(query.charAt(i + 1))) {
+                not = true;
+                i++;
+            }
+            String text;
+            boolean phrase = false;
+            if (query.charAt(i) == '"') {
+                int close = query.indexOf('"', i + 1);
+                if (close < 0) {
+                    close = n;
+                }
+                text = query.substring(i + 1, close);
+                phrase = true;
+                i = close + 1;
+            } else {
+                int s = i;
+                while (i < n && !Character.isWhitespace(query.charAt(i))) {
+                    i++;
+                }
+                text = query.substring(s, i);
+                if (!not && text.equals("OR")) {
+                    or = true;
+                    continue;
+                }
+            }
+            ArrayList<Cursor> words = new ArrayList<Cursor>();
+            Parser.Tokenizer tokenizer = new Parser.Tokenizer(text);
+            while (tokenizer.next()) {
+                int key = keys.lookup(SymbolTable.normalize(tokenizer.token()));
+                Cursor c = null;
+                if (key >= 0 && key < postingsCount.length && postingsCount[key] > 0) {
+                    c = cursors.get(key);
+                    if (c == null) {
+                        int df = postingsCount[key];
+                        double idf = Math.log(1 + (live - df + 0.5) / (df + 0.5));
+                        double bound = idf * maxTf[key] * (K1 + 1)
+                                / (maxTf[key] + K1 * (1 - B + B * minLength[key] / avg));
+                        c = new Cursor(postings.get(key), positions.get(key), df, idf, bound);
+                        cursors.put(key, c);
+                    }
+                }
+                words.add(c);
+            }
+            if (words.isEmpty()) {
+                //only stop words or punctuation
+                or = false;
+                continue;
+            }
+            Clause c = new Clause(words.toArray(new Cursor[words.size()]), phrase && words.size() > 1);
+            if (not) {
+                q.excluded.add(c);
+            } else {
+                if (or && !q.groups.isEmpty()) {
+                    q.groups.get(q.groups.size() - 1).add(c);
+                } else {
+                    ArrayList<Clause> g = new ArrayList<Clause>();
+                    g.add(c);
+                    q.groups.add(g);
+                }
+                for (Cursor w : c.words) {
+                    if (w != null && !q.scored.contains(w)) {
+                        q.scored.add(w);
+                    }
+                }
+            }
+            or = false;
+        }
+        if (q.groups.isEmpty()) {
+            return null;
+        }
+        //clauses with a word no document has never match
+        for (ArrayList<Clause> g : q.groups) {
+            for (int j = g.size() - 1; j >= 0; j--) {
+                if (Arrays.asList(g.get(j).words).contains(null)) {
+                    g.remove(j);
+                }
+            }
+            if (g.isEmpty()) {
+                return null;
+            }
+        }
+        for (int j = q.excluded.size() - 1; j >= 0; j--) {
+            if (Arrays.asList(q.excluded.get(j).words).contains(null)) {
+                q.excluded.remove(j);
+            }
+        }
+        //only terms of clauses that can match are scored
+        q.scored.clear();
+        for (ArrayList<Clause> g : q.groups) {
+            for (Clause c : g) {
+                for (Cursor w : c.words) {
+                    if (!q.scored.contains(w)) {
+                        q.scored.add(w);
+                    }
+                }
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Indexes the documents added or moved since the last call. DataModel
+     * calls it on the thread that changed the documents (importing, the
+     * pipeline), so queries find everything already indexed. Documents
+     * that were never parsed are parsed here, on all processors for big
+     * batches, without holding up queries; only appending their postings
+     * does.
+     */
+    public void applyChanges() {
+        synchronized (indexing) {
+            ArrayList<Map.Entry<Document, Boolean>> todo;
+            synchronized (changes) {
+                if (changes.isEmpty()) {
+                    return;
+                }
+                todo = new ArrayList<Map.Entry<Document, Boolean>>(changes.entrySet());
+                changes.clear();
+            }
+            //only indexing changes the ordinals, they can be read here
+            ArrayList<Map.Entry<Document, Boolean>> moved = new ArrayList<Map.Entry<Document, Boolean>>();
+            ArrayList<Document> toIndex = new ArrayList<Document>();
+            ArrayList<Boolean> toIndexHidden = new ArrayList<Boolean>();
+            for (Map.Entry<Document, Boolean> e : todo) {
+                Document d = e.getKey();
+                Integer ordinal = ordinals.get(d.getId());
+                if (ordinal != null && documents.get(ordinal) == d
+                        && versions[ordinal] == d.getContentVersion()) {
+                    moved.add(e);
+                } else {
+                    toIndex.add(d);
+                    toIndexHidden.add(e.getValue());
+                }
+            }
+            synchronized (this) {
+                for (Map.Entry<Document, Boolean> e : moved) {
+                    hidden.set(ordinals.get(e.getKey().getId()), e.getValue());
+                }
+            }
+            if (toIndex.isEmpty()) {
+                return;
+            }
+            int threads = toIndex.size() < PARALLEL_MIN ? 1 : Runtime.getRuntime().availableProcessors();
+            ExecutorService pool = threads == 1 ? null : Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Search Indexing");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            try {
+                for (int from = 0; from < toIndex.size(); from += INDEX_CHUNK) {
+                    int to = Math.min(from + INDEX_CHUNK, toIndex.size());
+                    List<Document> chunk = toIndex.subList(from, to);
+                    List<Boolean> chunkHidden = toIndexHidden.subList(from, to);
+                    int[] parsedVersions = new int[chunk.size()];
+                    TokenStream[] streams = tokensOf(chunk, chunkHidden, parsedVersions, pool, threads);
+                    Tokenized[] tokenized = new Tokenized[chunk.size()];
+                    for (int j = 0; j < chunk.size(); j++) {
+                        tokenized[j] = tokenize(streams[j]);
+                    }
+                    synchronized (this) {
+                        for (int j = 0; j < chunk.size(); j++) {
+                            append(chunk.get(j), tokenized[j], parsedVersions[j], chunkHidden.get(j));
+                        }
+                        int skipped = deleted.cardinality();
+                        if (skipped >= MIN_COMPACT && skipped > documents.size() - skipped) {
+                            compact();
+                        }
+                    }
+                }
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the token streams of documents, parsing the ones that don't
+     * have one for their current content. Visible documents keep what was
+     * parsed, hidden ones don't hold on to it.
+     * @param parsedVersions filled with the content version of each stream
+     */
+    private TokenStream[] tokensOf(final List<Document> chunk, final List<Boolean> chunkHidden,
+            final int[] parsedVersions, ExecutorService pool, int threads) {
+        final TokenStream[] out = new TokenStream[chunk.size()];
+        if (pool == null) {
+            for (int j = 0; j < out.length; j++) {
+                out[j] = tokensOf(chunk.get(j), chunkHidden.get(j), parsedVersions, j);
+            }
+            return out;
+        }
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(threads);
+        int slice = (out.length + threads - 1) / threads;
+        for (int j = 0; j < threads; j++) {
+            final int from = j * slice;
+            final int to = Math.min(from + slice, out.length);
+            futures.add(pool.submit(new Runnable() {
+
+                public void run() {
+                    for (int i = from; i < to; i++) {
+                        out[i] = tokensOf(chunk.get(i), chunkHidden.get(i), parsedVersions, i);
+                    }
+                }
+            }));
+        }
+        boolean interrupted = false;
+        for (Future<?> f : futures) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException ex) {
+                    //the index has to stay whole, finish and interrupt after
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    throw new IllegalStateException("Could not index documents", ex.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return out;
+    }
+
+    private TokenStream tokensOf(Document d, boolean isHidden, int[] parsedVersions, int j) {
+        int version = d.getTokensVersion();
+        TokenStream t = d.getTokens();
+        if (t == null || version != d.getContentVersion()) {
+            version = d.getContentVersion();
+            t = TokenStream.parse(d.getContent(), terms);
+            if (!isHidden) {
+                d.setTokens(t, version);
+            }
+        }
+        parsedVersions[j] = version;
+        return t;
+    }
+
+    /**
+     * Gets the words of a token stream: sorted keys, their frequencies and
+     * positions (token indexes).
+     */
+    private Tokenized tokenize(TokenStream tokens) {
+        int n = tokens.size();
+        //(key, position) pairs sorted by key then position
+        long[] pairs = new long[n];
+        for (int i = 0; i < n; i++) {
+            pairs[i] = ((long) key(tokens.term(i)) << 32) | i;
+        }
+        Arrays.sort(pairs);
+        Tokenized t = new Tokenized();
+        t.length = n;
+        t.positions = new int[n];
+        int[] k = new int[n];
+        int[] tf = new int[n];
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            int key = (int) (pairs[i] >>> 32);
+            if (unique > 0 && k[unique - 1] == key) {
+                tf[unique - 1]++;
+            } else {
+                k[unique] = key;
+                tf[unique++] = 1;
+            }
+            t.positions[i] = (int) pairs[i];
+        }
+        t.keys = Arrays.copyOf(k, unique);
+        t.tf = Arrays.copyOf(tf, unique);
+        return t;
+    }
+
+    /**
+     * Gets the key of a term id, making it the first time the term is seen.
+     */
+    private int key(int termId) {
+        if (termId >= keyOfTerm.length) {
+            keyOfTerm = Arrays.copyOf(keyOfTerm, Math.max(termId + 1, keyOfTerm.length * 2));
+        }
+        int k = keyOfTerm[termId] - 1;
+        if (k < 0) {
+            k = keys.id(SymbolTable.normalize(terms.term(termId)));
+            keyOfTerm[termId] = k + 1;
+        }
+        return k;
+    }
+
+    /**
+     * Gives a tokenized document the next ordinal and appends its postings.
+     */
+    private void append(Document d, Tokenized t, int version, boolean isHidden) {
+        Integer old = ordinals.get(d.getId());
+        if (old != null) {
+            //changed or replaced, its postings are skipped until compact
+            deleted.set(old);
+            documents.set(old, null);
+            totalLength -= lengths[old];
+        }
+        int ordinal = documents.size();
+        documents.add(d);
+        if (ordinal >= lengths.length) {
+            lengths = Arrays.copyOf(lengths, lengths.length * 2);
+            versions = Arrays.copyOf(versions, versions.length * 2);
+        }
+        lengths[ordinal] = t.length;
+        versions[ordinal] = version;
+        hidden.set(ordinal, isHidden);
+        ordinals.put(d.getId(), ordinal);
+        totalLength += t.length;
+        int p = 0;
+        for (int j = 0; j < t.keys.length; j++) {
+            int key = t.keys[j];
+            int tf = t.tf[j];
+            grow(key);
+            int[] post = postings.get(key);
+            int count = postingsCount[key];
+            if (3 * count + 3 > post.length) {
+                post = Arrays.copyOf(post, Math.max(3 * count + 3, post.length * 2));
+                postings.set(key, post);
+            }
+            int[] pos = positions.get(key);
+            int size = positionsSize[key];
+            if (size + tf > pos.length) {
+                pos = Arrays.copyOf(pos, Math.max(size + tf, pos.length * 2));
+                positions.set(key, pos);
+            }
+            post[3 * count] = ordinal;
+            post[3 * count + 1] = tf;
+            post[3 * count + 2] = size;
+            System.arraycopy(t.positions, p, pos, size, tf);
+            p += tf;
+            postingsCount[key] = count + 1;
+            positionsSize[key] = size + tf;
+            maxTf[key] = Math.max(maxTf[key], tf);
+            minLength[key] = count == 0 ? t.length : Math.min(minLength[key], t.length);
+        }
+    }
+
+    /**
+     * Drops the postings of the skipped ordinals and numbers the documents
+     * left again, in the same order so postings stay sorted.
+     */
+    private void compact() {
+        int n = documents.size();
+        int[] renumber = new int[n];
+        ArrayList<Document> kept = new ArrayList<Document>(n - deleted.cardinality());
+        int[] keptLengths = new int[Math.max(1024, lengths.length / 2)];
+        int[] keptVersions = new int[keptLengths.length];
+        BitSet keptHidden = new BitSet();
+        for (int d = 0; d < n; d++) {
+            if (deleted.get(d)) {
+                renumber[d] = -1;
+                continue;
+            }
+            int o = kept.size();
+            renumber[d] = o;
+            kept.add(documents.get(d));
+            if (o >= keptLengths.length) {
+                keptLengths = Arrays.copyOf(keptLengths, keptLengths.length * 2);
+                keptVersions = Arrays.copyOf(keptVersions, keptVersions.length * 2);
+            }
+            keptLengths[o] = lengths[d];
+            keptVersions[o] = versions[d];
+            keptHidden.set(o, hidden.get(d));
+            ordinals.put(documents.get(d).getId(), o);
+        }
+        for (int key = 0; key < postings.size(); key++) {
+            int[] post = postings.get(key);
+            int[] pos = positions.get(key);
+            int count = postingsCount[key];
+            int live = 0;
+            int size = 0;
+            int max = 0;
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                int o = renumber[post[3 * i]];
+                if (o < 0) {
+                    continue;
+                }
+                int tf = post[3 * i + 1];
+                //positions only move towards the start
+                System.arraycopy(pos, post[3 * i + 2], pos, size, tf);
+                post[3 * live] = o;
+                post[3 * live + 1] = tf;
+                post[3 * live + 2] = size;
+                size += tf;
+                live++;
+                max = Math.max(max, tf);
+                min = Math.min(min, keptLengths[o]);
+            }
+            postingsCount[key] = live;
+            positionsSize[key] = size;
+            maxTf[key] = max;
+            minLength[key] = live == 0 ? 0 : min;
+        }
+        documents.clear();
+        documents.addAll(kept);
+        lengths = keptLengths;
+        versions = keptVersions;
+        hidden.clear();
+        hidden.or(keptHidden);
+        deleted.clear();
+    }
+
+    /**
+     * Makes room for a key.
+     */
+    private void grow(int key) {
+        while (postings.size() <= key) {
+            postings.add(new int[6]);
+            positions.add(new int[4]);
+        }
+        if (key >= postingsCount.length) {
+            int size = Math.max(key + 1, postingsCount.length * 2);
+            postingsCount = Arrays.copyOf(postingsCount, size);
+            positionsSize = Arrays.copyOf(positionsSize, size);
+            maxTf = Arrays.copyOf(maxTf, size);
+            minLength = Arrays.copyOf(minLength, size);
+        }
+    }
+}
@@ -63,6 +63,18 @@ public class SearchNode extends Node {
         setup(s);
     }
 
+    /**
+     * JSONObject constructor for a node whose search was already found.
+     * Used by the streaming loader.
+     * @param node JSONObject containing node's parameters including SID.
+     * @param s search of this node
+     * @throws JSONException JSON object not in the correct format.
+     */
+    SearchNode(JSONObject node, Search s) throws JSONException {
+        super(node);
+        setup(s);
+    }
+
     private void setup(Search s) {
         /* Show up in green... */
         highlight++;
@@ -104,6 +116,18 @@ public class SearchNode extends Node {
         return nodeJSON;
     }
 
+    /**
+     * Adds the search node keys to the streamed representation.
+     * @param w writer inside the node object
+     * @throws JSONException something went wrong
+     */
+    @Override
+    protected void writeJSONFields(JSONWriter w) throws JSONException {
+        super.writeJSONFields(w);
+        w.key("class").value(this.getClass().getName());
+        w.key("searchID").value(search.getId());
+    }
+
     /**
      * Return the Search associated with this node
      * @return Search linked to this node
@@ -0,0 +1,100 @@
+package starspire.models;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every entity name, search term and the like a stable int id (its
+ * symbol) so they can be compared with == instead of string compares.
+ *
+ * About symbols:
+ * - Names are normalized first (lower case), "Truck" and "truck" are the
+ *   same symbol, the same way entities are matched everywhere else.
+ * - Each symbol keeps one canonical instance of the normalized name, use
+ *   it as a key instead of making another lower case copy.
+ * - The table is shared by all the models and symbols are never removed,
+ *   it grows with the vocabulary not with the documents.
+ * - Lookups never block, adding a new symbol does.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public final class SymbolTable {
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private static final ArrayList<String> names = new ArrayList<String>();
+
+    /**
+     * Only static methods.
+     */
+    private SymbolTable() {
+    }
+
+    /**
+     * Normalizes a name the way symbols are matched.
+     * @param name name to normalize
+     * @return normalized name
+     */
+    public static String normalize(String name) {
+        return name.toLowerCase();
+    }
+
+    /**
+     * Get the symbol of a name, adding it if it's new.
+     * @param name name, any case
+     * @return symbol id
+     */
+    public static int id(String name) {
+        String key = normalize(name);
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        synchronized (names) {
+            id = ids.get(key);
+            if (id == null) {
+                id = names.size();
+                names.add(key);
+                ids.put(key, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Get the symbol of a name without adding it.
+     * @param name name, any case
+     * @return symbol id, -1 if the name was never added
+     */
+    public static int lookup(String name) {
+        Integer id = ids.get(normalize(name));
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the canonical normalized name of a symbol.
+     * @param id symbol id
+     * @return normalized name, always the same instance
+     */
+    public static String name(int id) {
+        synchronized (names) {
+            return names.get(id);
+        }
+    }
+
+    /**
+     * Get the canonical normalized instance of a name, adding it if it's new.
+     * @param name name, any case
+     * @return normalized name, always the same instance
+     */
+    public static String canonical(String name) {
+        return name(id(name));
+    }
+
+    /**
+     * Get the number of symbols.
+     * @return symbol count
+     */
+    public static int size() {
+        return ids.size();
+    }
+}
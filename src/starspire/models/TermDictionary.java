@@ -0,0 +1,80 @@
+package starspire.models;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every distinct term an int id, so documents can keep their terms as
+ * a small int array instead of a list of Strings.
+ *
+ * About the dictionary:
+ * - Ids start at 0 and are never reused, a term keeps its id for the life
+ *   of the data model.
+ * - Terms are case sensitive, "Truck" and "truck" get different ids.
+ * - Lookups never block, adding a new term does.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class TermDictionary {
+
+    private final ConcurrentHashMap<String, Integer> ids;
+    private final ArrayList<String> terms;
+
+    /**
+     * Creates an empty dictionary.
+     */
+    public TermDictionary() {
+        ids = new ConcurrentHashMap<String, Integer>();
+        terms = new ArrayList<String>();
+    }
+
+    /**
+     * Get the id of a term, adding the term if it's new.
+     * @param term term to look up
+     * @return its id
+     */
+    public int id(String term) {
+        Integer id = ids.get(term);
+        if (id != null) {
+            return id;
+        }
+        synchronized (terms) {
+            id = ids.get(term);
+            if (id == null) {
+                id = terms.size();
+                terms.add(term);
+                ids.put(term, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Get the id of a term without adding it.
+     * @param term term to look up
+     * @return its id, -1 if no document has it
+     */
+    public int lookup(String term) {
+        Integer id = ids.get(term);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the term of an id.
+     * @param id term id
+     * @return the term
+     */
+    public String term(int id) {
+        synchronized (terms) {
+            return terms.get(id);
+        }
+    }
+
+    /**
+     * Get the number of terms.
+     * @return term count
+     */
+    public int size() {
+        return ids.size();
+    }
+}
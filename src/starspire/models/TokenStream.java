@@ -0,0 +1,201 @@
+package starspire.models;
+
+import java.util.Arrays;
+import starspire.controllers.Parser;
+
+/**
+ * The parsed tokens of a document: for each token, its term id (see
+ * TermDictionary) and where it is in the content. Built once when the
+ * document is parsed so nothing has to scan the text again.
+ *
+ * About the stream:
+ * - Tokens are the ones Parser gives (stop words dropped, start and end
+ *   punctuation trimmed), in text order, kept as a single int array of
+ *   (term, start, end) triples.
+ * - Tokens never overlap and are sorted by offset, so a character range
+ *   maps to a range of tokens with a binary search (from and to).
+ * - The sorted unique term ids are found on the first call to termSet,
+ *   term frequencies on the first call to frequency (as counts that line
+ *   up with the term set).
+ * - Immutable once built, safe to share between threads.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class TokenStream {
+
+    private final int[] tokens;
+    private final int size;
+    private volatile int[] terms;
+    private volatile int[] counts;
+
+    /**
+     * Constructor, see parse.
+     */
+    private TokenStream(int[] tokens, int size) {
+        this.tokens = tokens;
+        this.size = size;
+    }
+
+    /**
+     * Parses a text.
+     * @param text text to parse
+     * @param dict dictionary giving the term ids, new terms are added to it
+     * @return its tokens
+     */
+    public static TokenStream parse(CharSequence text, TermDictionary dict) {
+        int[] t = new int[48];
+        int n = 0;
+        Parser.Tokenizer tokenizer = new Parser.Tokenizer(text);
+        while (tokenizer.next()) {
+            if (n + 3 > t.length) {
+                t = Arrays.copyOf(t, t.length * 2);
+            }
+            t[n++] = dict.id(tokenizer.token());
+            t[n++] = tokenizer.start();
+            t[n++] = tokenizer.end();
+        }
+        return new TokenStream(n == t.length ? t : Arrays.copyOf(t, n), n / 3);
+    }
+
+    /**
+     * Get the number of tokens.
+     * @return token count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the term id of a token.
+     * @param i token index
+     * @return term id
+     */
+    public int term(int i) {
+        return tokens[3 * i];
+    }
+
+    /**
+     * Get where a token starts in the content.
+     * @param i token index
+     * @return start offset
+     */
+    public int start(int i) {
+        return tokens[3 * i + 1];
+    }
+
+    /**
+     * Get where a token ends in the content.
+     * @param i token index
+     * @return end offset (exclusive)
+     */
+    public int end(int i) {
+        return tokens[3 * i + 2];
+    }
+
+    /**
+     * Finds the first token ending after an offset, the first token of a
+     * range starting there.
+     * @param offset character offset
+     * @return token index, size() if there is none
+     */
+    public int from(int offset) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (end(mid) <= offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Finds the first token starting at or after an offset, the token after
+     * the last one of a range ending there.
+     * @param offset character offset
+     * @return token index, size() if there is none
+     */
+    public int to(int offset) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (start(mid) < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Finds the token at an offset.
+     * @param offset character offset
+     * @return token index, -1 if the offset isn't in a token
+     */
+    public int tokenAt(int offset) {
+        int i = from(offset);
+        return i < size && start(i) <= offset ? i : -1;
+    }
+
+    /**
+     * Gets the sorted unique term ids of the stream, found on the first
+     * call. The same array is returned every time.
+     * @return sorted unique term ids, must not be modified
+     */
+    public int[] termSet() {
+        int[] t = terms;
+        if (t == null) {
+            int[] ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = term(i);
+            }
+            Arrays.sort(ids);
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (n == 0 || ids[n - 1] != ids[i]) {
+                    ids[n++] = ids[i];
+                }
+            }
+            t = n == size ? ids : Arrays.copyOf(ids, n);
+            terms = t;
+        }
+        return t;
+    }
+
+    /**
+     * Checks if a term is in the stream.
+     * @param termId term id
+     * @return true if at least one token has that term
+     */
+    public boolean hasTerm(int termId) {
+        return Arrays.binarySearch(termSet(), termId) >= 0;
+    }
+
+    /**
+     * Counts how many times a term appears. The counts are made on the
+     * first call.
+     * @param termId term id
+     * @return number of tokens with that term
+     */
+    public int frequency(int termId) {
+        int[] t = termSet();
+        int i = Arrays.binarySearch(t, termId);
+        if (i < 0) {
+            return 0;
+        }
+        int[] c = counts;
+        if (c == null) {
+            c = new int[t.length];
+            for (int j = 0; j < size; j++) {
+                c[Arrays.binarySearch(t, term(j))]++;
+            }
+            counts = c;
+        }
+        return c[i];
+    }
+}
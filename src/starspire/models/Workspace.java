@@ -0,0 +1,41 @@
+package starspire.models;
+
+import org.json.JSONObject;
+
+/**
+ * A workspace loaded from a save file, whatever format it was in.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public interface Workspace {
+
+    /**
+     * Get the loaded data model.
+     * @return data model
+     */
+    public DataModel getDataModel();
+
+    /**
+     * Get the loaded graph model.
+     * @return graph model
+     */
+    public GraphModel getGraphModel();
+
+    /**
+     * Get the layout settings.
+     * @return JSON of the layout
+     */
+    public JSONObject getLayout();
+
+    /**
+     * Get the saved width.
+     * @return width, -1 if it wasn't in the file
+     */
+    public int getWidth();
+
+    /**
+     * Get the saved height.
+     * @return height, -1 if it wasn't in the file
+     */
+    public int getHeight();
+}
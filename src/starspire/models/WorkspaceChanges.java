@@ -0,0 +1,177 @@
+package starspire.models;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import starspire.StarSpireApp;
+
+/**
+ * Changes laid over the records of a save file while it loads, for the
+ * autosave journal (see SaveJournal). The readers pass every record they
+ * read through apply and load what comes back, so the journal is merged
+ * in the same pass that reads the file.
+ *
+ * About the changes:
+ * - A record is known by its type (DOCUMENT, SEARCH...) and its id.
+ * - put replaces a whole record, remove drops it and set changes some of
+ *   its fields. Later changes to the same record win.
+ * - Records that aren't in the file are added at the end of their list,
+ *   fields set on a record that isn't anywhere are dropped.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class WorkspaceChanges {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    public final static String DOCUMENT = "document";
+    public final static String SEARCH = "search";
+    public final static String ENTITY = "entity";
+    public final static String NODE = "node";
+    public final static String EDGE = "edge";
+    /**
+     * Stands for a removed record.
+     */
+    private final static JSONObject REMOVED = new JSONObject();
+    private final HashMap<String, LinkedHashMap<Integer, JSONObject>> changes =
+            new HashMap<String, LinkedHashMap<Integer, JSONObject>>();
+    /**
+     * type + id of the records that only have some fields.
+     */
+    private final HashSet<String> partial = new HashSet<String>();
+    private int count = 0;
+
+    /**
+     * Replaces a whole record.
+     * @param type record type
+     * @param record record with its "ID"
+     * @throws JSONException the record has no id
+     */
+    public void put(String type, JSONObject record) throws JSONException {
+        int id = record.getInt("ID");
+        records(type).put(id, record);
+        partial.remove(type + id);
+        count++;
+    }
+
+    /**
+     * Drops a record.
+     * @param type record type
+     * @param id record id
+     */
+    public void remove(String type, int id) {
+        records(type).put(id, REMOVED);
+        partial.remove(type + id);
+        count++;
+    }
+
+    /**
+     * Changes some fields of a record, the others stay as they are.
+     * @param type record type
+     * @param fields changed fields with the record's "ID"
+     * @throws JSONException the fields have no id
+     */
+    public void set(String type, JSONObject fields) throws JSONException {
+        int id = fields.getInt("ID");
+        LinkedHashMap<Integer, JSONObject> records = records(type);
+        JSONObject record = records.get(id);
+        count++;
+        if (record == REMOVED) {
+            return;
+        }
+        if (record == null) {
+            records.put(id, fields);
+            partial.add(type + id);
+        } else {
+            merge(fields, record);
+        }
+    }
+
+    /**
+     * Get the number of changes made.
+     * @return put, remove and set calls
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Lays the changes over a record read from the file.
+     * @param type record type
+     * @param record record from the file
+     * @return record to load, null if it was removed
+     * @throws JSONException the record has no id
+     */
+    JSONObject apply(String type, JSONObject record) throws JSONException {
+        LinkedHashMap<Integer, JSONObject> records = changes.get(type);
+        if (records == null) {
+            return record;
+        }
+        int id = record.getInt("ID");
+        JSONObject changed = records.remove(id);
+        if (changed == null) {
+            return record;
+        }
+        if (changed == REMOVED) {
+            return null;
+        }
+        if (partial.remove(type + id)) {
+            merge(changed, record);
+            return record;
+        }
+        return changed;
+    }
+
+    /**
+     * Takes the records that weren't in the file, call once the file's
+     * records of that type were all applied.
+     * @param type record type
+     * @return records to add
+     */
+    ArrayList<JSONObject> added(String type) {
+        ArrayList<JSONObject> added = new ArrayList<JSONObject>();
+        LinkedHashMap<Integer, JSONObject> records = changes.remove(type);
+        if (records == null) {
+            return added;
+        }
+        for (Map.Entry<Integer, JSONObject> e : records.entrySet()) {
+            JSONObject record = e.getValue();
+            if (record == REMOVED) {
+                continue;
+            }
+            if (partial.remove(type + e.getKey())) {
+                logger.log(Level.WARNING, "Changed {0} {1} isn't in the workspace, skipped",
+                        new Object[]{type, e.getKey()});
+            } else {
+                added.add(record);
+            }
+        }
+        return added;
+    }
+
+    private LinkedHashMap<Integer, JSONObject> records(String type) {
+        LinkedHashMap<Integer, JSONObject> records = changes.get(type);
+        if (records == null) {
+            records = new LinkedHashMap<Integer, JSONObject>();
+            changes.put(type, records);
+        }
+        return records;
+    }
+
+    /**
+     * Copies the fields of one record onto another.
+     */
+    private static void merge(JSONObject from, JSONObject to) throws JSONException {
+        Iterator<?> keys = from.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            to.put(key, from.get(key));
+        }
+    }
+}
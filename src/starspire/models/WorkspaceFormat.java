@@ -0,0 +1,308 @@
+package starspire.models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.*;
+import starspire.StarSpireApp;
+
+/**
+ * Reads and writes workspace save files. Workspaces are saved either as
+ * JSON (see save_format_draft.json) or in a compact binary format, files
+ * ending in .ssw are binary.
+ *
+ * About the binary format:
+ * - Header: the magic bytes "SSWB", the binary revision and the format
+ *   version string (the same version as the JSON format).
+ * - Width, height and the layout settings as JSON text.
+ * - String table with the entity names, entities are known by their index
+ *   in it.
+ * - Documents (content and notes length prefixed, highlights delta coded),
+ *   searches, entities (document and search ids delta coded), nodes
+ *   (positions delta coded) then edges (entities as string table indexes).
+ * - See BinaryWorkspaceWriter for how values are encoded.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class WorkspaceFormat {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    /**
+     * Version of the save format, both JSON and binary.
+     */
+    public final static String FORMAT_VERSION = "0.12";
+    /**
+     * File extension of binary workspaces.
+     */
+    public final static String BINARY_EXTENSION = "ssw";
+    /**
+     * Revision of the binary encoding, bumped when the layout changes.
+     */
+    final static int BINARY_REVISION = 1;
+    final static byte[] MAGIC = {'S', 'S', 'W', 'B'};
+    final static byte DOCUMENT_NODE = 0;
+    final static byte SEARCH_NODE = 1;
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Finds if a file holds a binary workspace by looking at its first bytes.
+     * @param f file to check
+     * @return true if it's binary, false otherwise (or if it can't be read)
+     */
+    public static boolean isBinary(File f) {
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            InputStream in = new FileInputStream(f);
+            try {
+                int read = 0;
+                while (read < magic.length) {
+                    int n = in.read(magic, read, magic.length - read);
+                    if (n < 0) {
+                        return false;
+                    }
+                    read += n;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * Finds if a workspace should be saved as binary, based on its name.
+     * @param f file to save to
+     * @return true if the extension is the binary one
+     */
+    public static boolean isBinaryName(File f) {
+        return f.getName().toLowerCase().endsWith("." + BINARY_EXTENSION);
+    }
+
+    /**
+     * Loads a workspace, the format is found from the file content.
+     * @param f file to open
+     * @return loaded workspace
+     * @throws IOException file could not be read
+     * @throws JSONException file isn't a valid workspace
+     */
+    public static Workspace open(File f) throws IOException, JSONException {
+        return open(f, new WorkspaceChanges());
+    }
+
+    /**
+     * Loads a workspace with changes on top, see WorkspaceChanges.
+     * @param f file to open
+     * @param changes changes to apply to the records as they're read
+     * @return loaded workspace
+     * @throws IOException file could not be read
+     * @throws JSONException file isn't a valid workspace
+     */
+    public static Workspace open(File f, WorkspaceChanges changes) throws IOException, JSONException {
+        if (isBinary(f)) {
+            InputStream in = new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE);
+            try {
+                BinaryWorkspaceReader reader = new BinaryWorkspaceReader(in, changes);
+                reader.read();
+                return reader;
+            } finally {
+                close(in);
+            }
+        }
+        Reader in = new BufferedReader(new FileReader(f), BUFFER_SIZE);
+        try {
+            WorkspaceReader reader = new WorkspaceReader(in, changes);
+            reader.read();
+            return reader;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Saves a workspace, binary if the file has the binary extension, JSON
+     * otherwise. The file is written next to the target first and renamed
+     * over it once complete, a failed save leaves the old file alone.
+     * @param f file to write
+     * @param s snapshot of the workspace
+     * @throws IOException could not write the file
+     * @throws JSONException something in the snapshot couldn't be written
+     */
+    public static void save(File f, WorkspaceSnapshot s) throws IOException, JSONException {
+        write(f, s, isBinaryName(f));
+    }
+
+    /**
+     * Saves a workspace as binary, whatever the file name.
+     * @param f file to write
+     * @param s snapshot of the workspace
+     * @throws IOException could not write the file
+     * @throws JSONException something in the snapshot couldn't be written
+     */
+    public static void saveBinary(File f, WorkspaceSnapshot s) throws IOException, JSONException {
+        write(f, s, true);
+    }
+
+    /**
+     * Saves a workspace as JSON, whatever the file name.
+     * @param f file to write
+     * @param s snapshot of the workspace
+     * @throws IOException could not write the file
+     * @throws JSONException something in the snapshot couldn't be written
+     */
+    public static void saveJSON(File f, WorkspaceSnapshot s) throws IOException, JSONException {
+        write(f, s, false);
+    }
+
+    /**
+     * Streams a workspace as JSON (see save_format_draft.json), one record
+     * at a time.
+     * @param w JSON writer to use, nothing must have been written yet
+     * @param s snapshot of the workspace
+     * @throws JSONException something went wrong
+     */
+    public static void writeJSON(JSONWriter w, WorkspaceSnapshot s) throws JSONException {
+        w.object();
+        w.key("ForceSpire").object();
+        //save controller specific data
+        w.key("Width").value(s.width);
+        w.key("Height").value(s.height);
+
+        //data model
+        w.key("DataModel").object();
+        w.key("Documents").array();
+        for (Document d : s.documents) {
+            d.writeJSON(w);
+            s.recordWritten();
+        }
+        w.endArray();
+        //searches before entities so a streaming load can link them right away
+        w.key("Searches").array();
+        for (Search search : s.searches) {
+            search.writeJSON(w);
+            s.recordWritten();
+        }
+        w.endArray();
+        w.key("Entities").array();
+        for (Entity e : s.entities) {
+            e.writeJSON(w);
+            s.recordWritten();
+        }
+        w.endArray();
+        w.endObject();
+
+        //graph model
+        w.key("GraphModel").object();
+        writeRecords(w, "Nodes", s.nodes, s);
+        writeRecords(w, "Edges", s.edges, s);
+        w.endObject();
+
+        //layout data, it's tiny
+        w.key("GraphLayout").value(s.layout);
+        w.endObject();
+        w.endObject();
+    }
+
+    /**
+     * Converts a JSON workspace to a binary one.
+     * @param json JSON workspace to read
+     * @param binary file to write the binary workspace to
+     * @throws IOException a file couldn't be read or written
+     * @throws JSONException the JSON workspace isn't valid
+     */
+    public static void toBinary(File json, File binary) throws IOException, JSONException {
+        saveBinary(binary, WorkspaceSnapshot.take(open(json)));
+    }
+
+    /**
+     * Converts a binary workspace to a JSON one.
+     * @param binary binary workspace to read
+     * @param json file to write the JSON workspace to
+     * @throws IOException a file couldn't be read or written
+     * @throws JSONException the binary workspace has invalid records
+     */
+    public static void toJSON(File binary, File json) throws IOException, JSONException {
+        saveJSON(json, WorkspaceSnapshot.take(open(binary)));
+    }
+
+    /**
+     * Writes a snapshot to a temporary file and moves it over the target.
+     * @param f file to write
+     * @param s snapshot of the workspace
+     * @param binary true for the binary format, false for JSON
+     */
+    private static void write(File f, WorkspaceSnapshot s, boolean binary) throws IOException, JSONException {
+        File dir = f.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(f.getName() + "-", ".saving", dir);
+        boolean done = false;
+        try {
+            if (binary) {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+                try {
+                    new BinaryWorkspaceWriter(out).write(s);
+                } finally {
+                    out.close();
+                }
+            } else {
+                Writer writer = new BufferedWriter(new FileWriter(temp), BUFFER_SIZE);
+                try {
+                    writeJSON(new JSONWriter(writer), s);
+                } finally {
+                    writer.close();
+                }
+            }
+            if (!temp.renameTo(f)) {
+                //windows won't rename over an existing file
+                if (!f.delete() || !temp.renameTo(f)) {
+                    throw new IOException("Could not move " + temp + " to " + f);
+                }
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes an array of save records.
+     */
+    private static void writeRecords(JSONWriter w, String key, ArrayList<JSONObject> records,
+            WorkspaceSnapshot s) throws JSONException {
+        w.key(key).array();
+        for (JSONObject record : records) {
+            w.value(record);
+            s.recordWritten();
+        }
+        w.endArray();
+    }
+
+    /**
+     * Closes a save file after reading, errors are only logged.
+     */
+    private static void close(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error closing save file", ex);
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package starspire.models;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.*;
+import starspire.StarSpireApp;
+
+/**
+ * Loads a workspace save (see save_format_draft.json) without parsing the
+ * whole file into a JSONObject first.
+ *
+ * About the reader:
+ * - The structure of the file (workspace, models and arrays) is walked one
+ *   token at a time, only a single document, entity, search, node or edge
+ *   record is parsed into a JSONObject at once.
+ * - Models are built as their record is read and linked up through id maps.
+ * - Files written by JSONObject.toString have their keys in any order. Records
+ *   that point to something that wasn't read yet (an entity read before the
+ *   documents, a node before the data model...) wait in a pending list and
+ *   are built as soon as what they need is loaded.
+ * - Every record goes through the WorkspaceChanges given to the reader
+ *   before it's built, the journal of an autosave is merged while reading.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class WorkspaceReader implements Workspace {
+
+    private static final Logger logger = Logger.getLogger(StarSpireApp.class.getName());
+    private final JSONTokener x;
+    private final DataModel data;
+    private final GraphModel graph;
+    private final WorkspaceChanges changes;
+    private JSONObject layout = null;
+    private int width = -1;
+    private int height = -1;
+    private boolean workspaceRead = false;
+    private boolean dataRead = false;
+    private boolean graphRead = false;
+    private boolean documentsRead = false;
+    private boolean searchesRead = false;
+    private boolean nodesRead = false;
+    /*
+     * Id maps used to link records together.
+     */
+    private final HashMap<Integer, Document> documents = new HashMap<Integer, Document>();
+    private final HashMap<Integer, Search> searches = new HashMap<Integer, Search>();
+    private final HashMap<Integer, Entity> entities = new HashMap<Integer, Entity>();
+    private final HashMap<Integer, Node> nodes = new HashMap<Integer, Node>();
+    /*
+     * Records waiting for what they point to.
+     */
+    private final ArrayList<JSONObject> pendingEntities = new ArrayList<JSONObject>();
+    private final ArrayList<JSONObject> pendingNodes = new ArrayList<JSONObject>();
+    private final ArrayList<JSONObject> pendingEdges = new ArrayList<JSONObject>();
+
+    /**
+     * Constructor
+     * @param reader save file to read, buffered if it isn't already
+     */
+    public WorkspaceReader(Reader reader) {
+        this(reader, new WorkspaceChanges());
+    }
+
+    /**
+     * Constructor for reading a save with changes on top.
+     * @param reader save file to read, buffered if it isn't already
+     * @param changes changes to apply to the records as they're read
+     */
+    public WorkspaceReader(Reader reader, WorkspaceChanges changes) {
+        x = new JSONTokener(reader);
+        data = new DataModel();
+        graph = new GraphModel();
+        this.changes = changes;
+    }
+
+    /**
+     * Reads the whole workspace.
+     * @throws JSONException the file isn't a workspace save
+     */
+    public void read() throws JSONException {
+        beginObject();
+        String key;
+        while ((key = nextKey()) != null) {
+            if (key.equals("ForceSpire")) {
+                readWorkspace();
+            } else {
+                x.nextValue();
+            }
+        }
+        if (!workspaceRead) {
+            throw new JSONException("JSONObject[\"ForceSpire\"] not found.");
+        }
+        if (!dataRead) {
+            throw new JSONException("JSONObject[\"DataModel\"] not found.");
+        }
+        if (!graphRead) {
+            throw new JSONException("JSONObject[\"GraphModel\"] not found.");
+        }
+        if (layout == null) {
+            throw new JSONException("JSONObject[\"GraphLayout\"] not found.");
+        }
+        data.indexLoadedDocuments();
+    }
+
+    /**
+     * Get the loaded data model.
+     * @return data model
+     */
+    public DataModel getDataModel() {
+        return data;
+    }
+
+    /**
+     * Get the loaded graph model.
+     * @return graph model
+     */
+    public GraphModel getGraphModel() {
+        return graph;
+    }
+
+    /**
+     * Get the layout settings, they're small so they stay JSON.
+     * @return JSON of the layout
+     */
+    public JSONObject getLayout() {
+        return layout;
+    }
+
+    /**
+     * Get the saved width.
+     * @return width, -1 if it wasn't in the file
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the saved height.
+     * @return height, -1 if it wasn't in the file
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Reads the ForceSpire object: size, models and layout.
+     */
+    private void readWorkspace() throws JSONException {
+        beginObject();
+        String key;
+        while ((key = nextKey()) != null) {
+            if (key.equals("Width")) {
+                width = toInt(x.nextValue());
+            } else if (key.equals("Height")) {
+                height = toInt(x.nextValue());
+            } else if (key.equals("DataModel")) {
+                readDataModel();
+            } else if (key.equals("GraphModel")) {
+                readGraphModel();
+            } else if (key.equals("GraphLayout")) {
+                layout = nextObject();
+            } else {
+                x.nextValue();
+            }
+        }
+        workspaceRead = true;
+    }
+
+    /**
+     * Reads the documents, searches and entities.
+     */
+    private void readDataModel() throws JSONException {
+        beginObject();
+        String key;
+        while ((key = nextKey()) != null) {
+            if (key.equals("Documents")) {
+                beginArray();
+                while (nextElement()) {
+                    loadDocument(changes.apply(WorkspaceChanges.DOCUMENT, nextObject()));
+                }
+                for (JSONObject doc : changes.added(WorkspaceChanges.DOCUMENT)) {
+                    loadDocument(doc);
+                }
+                documentsRead = true;
+            } else if (key.equals("Searches")) {
+                beginArray();
+                while (nextElement()) {
+                    loadSearch(changes.apply(WorkspaceChanges.SEARCH, nextObject()));
+                }
+                for (JSONObject search : changes.added(WorkspaceChanges.SEARCH)) {
+                    loadSearch(search);
+                }
+                searchesRead = true;
+            } else if (key.equals("Entities")) {
+                beginArray();
+                while (nextElement()) {
+                    readEntity(changes.apply(WorkspaceChanges.ENTITY, nextObject()));
+                }
+                for (JSONObject ent : changes.added(WorkspaceChanges.ENTITY)) {
+                    readEntity(ent);
+                }
+            } else {
+                x.nextValue();
+            }
+            if (documentsRead && searchesRead) {
+                loadPendingEntities();
+            }
+        }
+        //whatever is missing from the file won't show up any more
+        loadPendingEntities();
+        dataRead = true;
+        loadPendingNodes();
+        if (nodesRead) {
+            loadPendingEdges();
+        }
+    }
+
+    /**
+     * Reads the nodes and edges.
+     */
+    private void readGraphModel() throws JSONException {
+        beginObject();
+        String key;
+        while ((key = nextKey()) != null) {
+            if (key.equals("Nodes")) {
+                beginArray();
+                while (nextElement()) {
+                    readNode(changes.apply(WorkspaceChanges.NODE, nextObject()));
+                }
+                for (JSONObject node : changes.added(WorkspaceChanges.NODE)) {
+                    readNode(node);
+                }
+                nodesRead = true;
+            } else if (key.equals("Edges")) {
+                beginArray();
+                while (nextElement()) {
+                    readEdge(changes.apply(WorkspaceChanges.EDGE, nextObject()));
+                }
+                for (JSONObject edge : changes.added(WorkspaceChanges.EDGE)) {
+                    readEdge(edge);
+                }
+            } else {
+                x.nextValue();
+            }
+        }
+        graphRead = true;
+        if (dataRead) {
+            loadPendingEdges();
+        }
+    }
+
+    /**
+     * Builds a document.
+     * @param doc record, null if it was removed
+     */
+    private void loadDocument(JSONObject doc) throws JSONException {
+        if (doc != null) {
+            Document d = new Document(doc);
+            documents.put(d.getId(), d);
+            data.loadDocument(d);
+        }
+    }
+
+    /**
+     * Builds a search.
+     * @param search record, null if it was removed
+     */
+    private void loadSearch(JSONObject search) throws JSONException {
+        if (search != null) {
+            Search s = new Search(search);
+            searches.put(s.getId(), s);
+            data.loadSearch(s);
+        }
+    }
+
+    /**
+     * Builds an entity, or keeps it for later if its documents or searches
+     * weren't read yet.
+     * @param ent record, null if it was removed
+     */
+    private void readEntity(JSONObject ent) throws JSONException {
+        if (ent == null) {
+            return;
+        }
+        if (documentsRead && searchesRead) {
+            loadEntity(ent);
+        } else {
+            pendingEntities.add(ent);
+        }
+    }
+
+    /**
+     * Builds a node, or keeps it for later if the data model wasn't read yet.
+     * @param node record, null if it was removed
+     */
+    private void readNode(JSONObject node) throws JSONException {
+        if (node == null) {
+            return;
+        }
+        if (dataRead) {
+            loadNode(node);
+        } else {
+            pendingNodes.add(node);
+        }
+    }
+
+    /**
+     * Builds an edge, or keeps it for later if its nodes weren't read yet.
+     * @param edge record, null if it was removed
+     */
+    private void readEdge(JSONObject edge) throws JSONException {
+        if (edge == null) {
+            return;
+        }
+        if (dataRead && nodesRead) {
+            loadEdge(edge);
+        } else {
+            pendingEdges.add(edge);
+        }
+    }
+
+    /**
+     * Builds the entities that were read before their documents or searches.
+     */
+    private void loadPendingEntities() throws JSONException {
+        for (JSONObject ent : pendingEntities) {
+            loadEntity(ent);
+        }
+        pendingEntities.clear();
+    }
+
+    /**
+     * Builds the nodes that were read before the data model.
+     */
+    private void loadPendingNodes() throws JSONException {
+        for (JSONObject node : pendingNodes) {
+            loadNode(node);
+        }
+        pendingNodes.clear();
+    }
+
+    /**
+     * Builds the edges that were read before their nodes.
+     */
+    private void loadPendingEdges() throws JSONException {
+        for (JSONObject edge : pendingEdges) {
+            loadEdge(edge);
+        }
+        pendingEdges.clear();
+    }
+
+    /**
+     * Builds an entity and links it to its documents and searches.
+     */
+    private void loadEntity(JSONObject ent) throws JSONException {
+        Entity e = new Entity(ent, documents, searches);
+        entities.put(e.getID(), e);
+        data.loadEntity(e);
+    }
+
+    /**
+     * Builds a node and links it to its document or search.
+     */
+    private void loadNode(JSONObject node) throws JSONException {
+        String nodeClass = node.getString("class");
+        Node n;
+        if (nodeClass.equals(DocumentNode.class.getName())) {
+            int did = node.getInt("docID");
+            Document d = documents.get(did);
+            if (d == null) {
+                data.addDocument("Document Id: " + did + "Could not be linked");
+            }
+            n = new DocumentNode(node, d);
+        } else if (nodeClass.equals(SearchNode.class.getName())) {
+            Search s = searches.get(node.getInt("searchID"));
+            if (s == null) {
+                System.err.println("Node could not be linked to a search!");
+            }
+            n = new SearchNode(node, s);
+        } else {
+            throw new JSONException("Unknown node type.");
+        }
+        nodes.put(n.getID(), n);
+        graph.loadNode(n);
+    }
+
+    /**
+     * Builds an edge and links it to its nodes and entities.
+     */
+    private void loadEdge(JSONObject edge) throws JSONException {
+        Node n1 = nodes.get(edge.getInt("node1"));
+        Node n2 = nodes.get(edge.getInt("node2"));
+        if (n1 == null || n2 == null) {
+            logger.log(Level.WARNING, "Edge {0} points to a missing node, skipped",
+                    edge.opt("ID"));
+            return;
+        }
+        Edge e = new Edge(edge, n1, n2);
+        JSONArray entIds = edge.getJSONArray("entIds");
+        for (int d = 0; d < entIds.length(); d++) {
+            int id = entIds.getInt(d);
+            Entity ent = entities.get(id);
+            if (ent == null) {
+                System.err.println("Loading Exception: Entity with id " + id + " not found!");
+            } else {
+                e.addEntity(ent);
+            }
+        }
+        n1.addEdge(e);
+        n2.addEdge(e);
+        graph.loadEdge(e);
+    }
+
+    /*
+     * Pull parsing helpers, they accept what JSONObject and JSONArray accept.
+     */
+
+    /**
+     * Reads the opening brace of an object.
+     */
+    private void beginObject() throws JSONException {
+        if (x.nextClean() != '{') {
+            throw x.syntaxError("A JSONObject text must begin with '{'");
+        }
+    }
+
+    /**
+     * Reads the next key of the current object and the ':' after it.
+     * @return the key, null when the object is over
+     */
+    private String nextKey() throws JSONException {
+        char c = x.nextClean();
+        if (c == ',' || c == ';') {
+            c = x.nextClean();
+        }
+        switch (c) {
+            case 0:
+                throw x.syntaxError("A JSONObject text must end with '}'");
+            case '}':
+                return null;
+            default:
+                x.back();
+        }
+        String key = x.nextValue().toString();
+        c = x.nextClean();
+        if (c == '=') {
+            if (x.next() != '>') {
+                x.back();
+            }
+        } else if (c != ':') {
+            throw x.syntaxError("Expected a ':' after a key");
+        }
+        return key;
+    }
+
+    /**
+     * Reads the opening bracket of an array.
+     */
+    private void beginArray() throws JSONException {
+        if (x.nextClean() != '[') {
+            throw x.syntaxError("A JSONArray text must start with '['");
+        }
+    }
+
+    /**
+     * Moves to the next element of the current array.
+     * @return true if there is one, false when the array is over
+     */
+    private boolean nextElement() throws JSONException {
+        char c = x.nextClean();
+        if (c == ',' || c == ';') {
+            c = x.nextClean();
+        }
+        switch (c) {
+            case 0:
+                throw x.syntaxError("Expected a ',' or ']'");
+            case ']':
+                return false;
+            default:
+                x.back();
+                return true;
+        }
+    }
+
+    /**
+     * Parses one record.
+     * @return the record
+     */
+    private JSONObject nextObject() throws JSONException {
+        Object o = x.nextValue();
+        if (!(o instanceof JSONObject)) {
+            throw x.syntaxError("Expected an object");
+        }
+        return (JSONObject) o;
+    }
+
+    /**
+     * Converts a value to an int the way JSONObject.getInt does.
+     */
+    private static int toInt(Object o) throws JSONException {
+        if (o instanceof Number) {
+            return ((Number) o).intValue();
+        }
+        try {
+            return (int) Double.parseDouble(o.toString());
+        } catch (NumberFormatException e) {
+            throw new JSONException("Not a number: " + o);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package starspire.models;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
+import java.util.Iterator;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Copy of a workspace taken for saving, so it can be written on another
+ * thread while the models keep changing.
+ *
+ * About the snapshot:
+ * - Documents, searches and entities are copied as detached models with
+ *   only the saved fields (see the saveCopy methods), the writers use
+ *   their writeJSON on the saving thread. Strings aren't copied, they never
+ *   change in place. Document content in a store isn't read for the
+ *   snapshot, only its key is kept.
+ * - Nodes and edges are copied as their save records (the same JSONObject
+ *   getJSONObject builds), they're small.
+ * - The graph is copied under the graph model's lock, then the data under
+ *   the data model's read lock. Graph first so every node finds the
+ *   document it was added for.
+ * - Writers count the records they write, listeners get a "progress"
+ *   event (0 to 100) when the percentage changes. Events come from the
+ *   writing thread.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+public class WorkspaceSnapshot {
+
+    /**
+     * Property fired as records are written, the value is a percentage.
+     */
+    public static final String PROGRESS_PROPERTY = "progress";
+    final ArrayList<Document> documents = new ArrayList<Document>();
+    final ArrayList<Search> searches = new ArrayList<Search>();
+    final ArrayList<Entity> entities = new ArrayList<Entity>();
+    final ArrayList<JSONObject> nodes = new ArrayList<JSONObject>();
+    final ArrayList<JSONObject> edges = new ArrayList<JSONObject>();
+    final int width;
+    final int height;
+    final JSONObject layout;
+    private final PropertyChangeSupport support;
+    private int written = 0;
+    private int progress = 0;
+
+    /**
+     * Constructor, see take.
+     */
+    private WorkspaceSnapshot(int width, int height, JSONObject layout) {
+        this.width = width;
+        this.height = height;
+        this.layout = layout;
+        support = new PropertyChangeSupport(this);
+    }
+
+    /**
+     * Copies a workspace.
+     * @param data data model
+     * @param graph graph model
+     * @param width workspace width
+     * @param height workspace height
+     * @param layout layout settings
+     * @return the snapshot
+     * @throws JSONException a record could not be built
+     */
+    public static WorkspaceSnapshot take(DataModel data, GraphModel graph, int width, int height,
+            JSONObject layout) throws JSONException {
+        WorkspaceSnapshot s = new WorkspaceSnapshot(width, height, layout);
+        synchronized (graph) {
+            Iterator<Node> nodeIt = graph.nodeIterator();
+            while (nodeIt.hasNext()) {
+                s.nodes.add(nodeIt.next().getJSONObject());
+            }
+            Iterator<Edge> edgeIt = graph.edgeIterator();
+            while (edgeIt.hasNext()) {
+                s.edges.add(edgeIt.next().getJSONObject());
+            }
+        }
+        data.snapshot(s);
+        return s;
+    }
+
+    /**
+     * Copies a loaded workspace, for converting it.
+     * @param ws workspace
+     * @return the snapshot
+     * @throws JSONException a record could not be built
+     */
+    public static WorkspaceSnapshot take(Workspace ws) throws JSONException {
+        return take(ws.getDataModel(), ws.getGraphModel(), ws.getWidth(), ws.getHeight(),
+                ws.getLayout());
+    }
+
+    /**
+     * Number of records in the snapshot.
+     * @return record count
+     */
+    public int size() {
+        return documents.size() + searches.size() + entities.size() + nodes.size() + edges.size();
+    }
+
+    /**
+     * Listen to the progress of writing this snapshot.
+     * @param l listener to add
+     */
+    public void addPropertyChangeListener(PropertyChangeListener l) {
+        support.addPropertyChangeListener(l);
+    }
+
+    /**
+     * Called by the writers after each record.
+     */
+    void recordWritten() {
+        written++;
+        int p = (int) (100L * written / Math.max(1, size()));
+        if (p != progress) {
+            int old = progress;
+            progress = p;
+            support.firePropertyChange(PROGRESS_PROPERTY, old, p);
+        }
+    }
+}
@@ -57,6 +57,7 @@ public class GraphDocumentView extends JInternalFrame implements InternalFrameLi
     private DocumentContentPane docView; //one doc to view alone
     private JSplitPane splitView;
     private DocumentContentPane content; //one doc to view with notes
+    private String docText = null; //RTF last loaded in docView and content
     private JEditorPane notes;
     private DocumentNode node;
     private StarSpireController controller;
@@ -73,6 +74,7 @@ public class GraphDocumentView extends JInternalFrame implements InternalFrameLi
     private int currentHeight = Node.OPEN_MIN_HEIGHT;
     
     private boolean canUpdate = false;
+    private boolean holdingContent = false; //document content kept on heap while open
     
     private JPopupMenu addMenu;
     private JMenuItem addMenuQuery;
@@ -269,6 +271,8 @@ public class GraphDocumentView extends JInternalFrame implements InternalFrameLi
 				
 			}
         });
+        //both panes show the same text, parse it once for the two of them
+        content.setDocument(docView.getDocument());
         JScrollPane docScrollPane = new JScrollPane(content);
         docScrollPane.setVerticalScrollBarPolicy(
                 JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
@@ -346,6 +350,7 @@ public class GraphDocumentView extends JInternalFrame implements InternalFrameLi
         addMouseMotionListener(this);
         addMouseListener(this);
         setVisible(node.isOpen());
+        holdContent(node.isOpen());
         refresh();
     }
 
@@ -356,9 +361,12 @@ public class GraphDocumentView extends JInternalFrame implements InternalFrameLi
     public void refresh() {
         int caretPosition = docView.getCaretPosition();
         setTitle(node.getDocument().getName());
-        String docText = controller.getDocumentRTF(node.getDocument());
-        docView.setText(docText); //TODO optimize based on what's open...
-        content.setText(docText);
+        String text = controller.getDocumentRTF(node.getDocument());
+        if (!text.equals(docText)) {
+            //content shares docView's document so this updates both
+            docView.setText(text);
+            docText = text;
+        }
         String noteText = controller.getNotesRTF(node.getDocument());
         notes.setText(noteText);
 
@@ -406,6 +414,7 @@ public class GraphDocumentView extends JInternalFrame implements InternalFrameLi
         if (isVisible()) {
             setVisible(false);
         }
+        holdContent(false);
     }
 
     /**
@@ -413,6 +422,7 @@ public class GraphDocumentView extends JInternalFrame implements InternalFrameLi
      */
     protected void open() {
         if (!isVisible()) {
+            holdContent(true);
             setVisible(true);
             updateLocation();
             setSize(node.getWidth(), node.getHeight());
@@ -421,6 +431,29 @@ public class GraphDocumentView extends JInternalFrame implements InternalFrameLi
         }
     }
 
+    /**
+     * The node was removed, let go of what this view holds.
+     */
+    protected void detach() {
+        holdContent(false);
+    }
+
+    /**
+     * Keeps the document content in memory while the view is open, closed
+     * views read it from the document store when refreshed.
+     * @param hold true to hold the content, false to release it
+     */
+    private void holdContent(boolean hold) {
+        if (hold != holdingContent) {
+            holdingContent = hold;
+            if (hold) {
+                node.getDocument().holdContent();
+            } else {
+                node.getDocument().releaseContent();
+            }
+        }
+    }
+
     /**
      * Get the node this graph view is linked to.
      * @return node
@@ -90,7 +90,7 @@ public class GraphSearchView extends JInternalFrame implements InternalFrameList
                 System.out.println("New Search...");
                 String q = query.getText();
                 if (q.length() > 1) {
-                    Search s = controller.search(node, query.getText());
+                    controller.search(node, query.getText());
                     toolbar.remove(go);
                     query.setEnabled(false);
                     refresh();
@@ -14,13 +14,27 @@ import starspire.controllers.StarSpireController;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.*;
+import java.awt.image.BufferedImage;
 import java.beans.PropertyVetoException;
 import java.util.ArrayList;
 import javax.swing.*;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The graph view displays the graph visually.
+ *
+ * About painting:
+ * - The background and the edges are drawn to a cached layer that is only
+ *   redrawn when edges, node positions or the selection change.
+ * - Nodes are painted on top, only in the dirty rectangles reported by
+ *   the model events (see shapeRectangle).
+ * - Repaint requests (which can come from the layout thread) are merged and
+ *   flushed at most once per frame.
+ * - Only the nodes in the clip are painted, they're found with a grid
+ *   (see NodeGrid). Edges are only drawn for the selected node.
+ * - Labels are dropped when they'd be too small to read at the current
+ *   scale, or when there are too many nodes for all of them to fit.
  * @author Patrick Fiaux, Alex Endert
  */
 public class GraphView extends JDesktopPane implements MouseListener, MouseMotionListener, MouseWheelListener, GraphListener, DataListener {
@@ -54,6 +68,32 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
     private final static double ARC_RADIUS_CLOSE = 6.0;
     private final static double ARC_RADIUS_OPEN = 10.0;
     private final static boolean PRINT_NODE_NAME = true;
+    /**
+     * Time between two frames in ms, repaints are coalesced to this rate.
+     */
+    private final static int FRAME_DELAY = 16;
+    /**
+     * Extra room around a node shape when building repaint rectangles.
+     */
+    private final static int NODE_MARGIN = 5;
+    private final static int LABEL_LINE_HEIGHT = 10;
+    /**
+     * Smallest text height in device pixels worth drawing.
+     */
+    private final static double MIN_LABEL_PIXELS = 6.0;
+    /**
+     * Largest share of the view node labels may cover before only the
+     * selected and top quartile nodes keep theirs.
+     */
+    private final static double MAX_LABEL_COVERAGE = 0.35;
+    /**
+     * Typical label length in characters, used to guess label density.
+     */
+    private final static int TYPICAL_LABEL_CHARS = 12;
+    /**
+     * Past this many shown edges each edge only gets its top entity.
+     */
+    private final static int DENSE_EDGE_COUNT = 12;
     private static Line2D line = new Line2D.Double();
     private static RoundRectangle2D node = new RoundRectangle2D.Double();
     private StarSpireController controller;
@@ -65,6 +105,39 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
     private ArrayList<DocumentNode> documentsToLink;
     private DocumentLink docLink;
     private Node linkTarget = null;
+    /*
+     * Layered rendering
+     */
+    private BufferedImage edgeLayer;
+    private volatile boolean edgeLayerValid = false;
+    private final Object dirtyLock = new Object();
+    private Rectangle dirty = null;
+    private Timer frameTimer;
+    /**
+     * Where each node was last painted, by node ID.
+     */
+    private final ConcurrentHashMap<Integer, PaintedNode> paintedNodes = new ConcurrentHashMap<Integer, PaintedNode>();
+    /**
+     * Spatial index of the nodes, rebuilt when nodes come and go.
+     */
+    private final NodeGrid nodeGrid = new NodeGrid();
+    private volatile boolean gridStale = true;
+
+    /**
+     * Area (node and label) a node covered when it was last painted,
+     * and the position it was painted at.
+     */
+    private static class PaintedNode {
+
+        private final Rectangle bounds;
+        private final int x, y;
+
+        PaintedNode(Rectangle bounds, int x, int y) {
+            this.bounds = bounds;
+            this.x = x;
+            this.y = y;
+        }
+    }
 
     /**
      * Default Constructor creates a new graph view for the given model.
@@ -88,9 +161,69 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
         addMouseMotionListener(this);
         addMouseWheelListener(this);
 
+        frameTimer = new Timer(FRAME_DELAY, new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                flushDirtyRegion();
+            }
+        });
+        frameTimer.setRepeats(false);
+        frameTimer.setCoalesce(true);
+
         initializeOpenNodeViews();
     }
 
+    /**
+     * Add a region to repaint on the next frame.
+     * Safe to call from any thread (the layout fires events from its own).
+     * @param r region that changed, null for the whole view
+     */
+    private void markDirty(Rectangle r) {
+        synchronized (dirtyLock) {
+            if (r == null) {
+                dirty = new Rectangle(0, 0, getWidth(), getHeight());
+            } else if (dirty == null) {
+                dirty = new Rectangle(r);
+            } else {
+                dirty.add(r);
+            }
+        }
+        if (!frameTimer.isRunning()) {
+            frameTimer.start();
+        }
+    }
+
+    /**
+     * Something that's in the cached edge layer changed, redraw the layer
+     * and repaint the given region.
+     * @param r region that changed, null for the whole view
+     */
+    private void invalidateEdgeLayer(Rectangle r) {
+        edgeLayerValid = false;
+        markDirty(r);
+    }
+
+    /**
+     * Repaints everything that changed since the last frame (EDT).
+     */
+    private void flushDirtyRegion() {
+        Rectangle r;
+        synchronized (dirtyLock) {
+            r = dirty;
+            dirty = null;
+        }
+        if (r != null) {
+            repaint(r);
+        }
+    }
+
+    /**
+     * Replaces a full repaint, the view is redrawn on the next frame.
+     */
+    private void repaintAll() {
+        invalidateEdgeLayer(null);
+    }
+
     /**
      * This is a helper function that will create an link an open node
      * view for all the nodes already in the graph.
@@ -138,23 +271,43 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
     @Override
     public void paintComponent(Graphics g) {
         Graphics2D g2 = (Graphics2D) g;
+        Rectangle clip = g2.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        //there's no zoom in the view, but the device transform may scale
+        double scale = Math.abs(g2.getTransform().getScaleX());
+        FontMetrics fm = g2.getFontMetrics();
+        boolean readable = fm.getHeight() * scale >= MIN_LABEL_PIXELS;
+
+        /* Background and edges come from the cached layer */
+        paintEdgeLayer();
+        g2.drawImage(edgeLayer, 0, 0, null);
+
+        /* Labels of the selected edges */
+        if (readable) {
+            ArrayList<Edge> shown = shownEdges();
+            int lines = shown.size() > DENSE_EDGE_COUNT ? 1 : ENTITY_LIST_MAX + 1;
+            for (Edge e : shown) {
+                if (edgeRectangle(e).intersects(clip)) {
+                    paintEdgeLabels(g2, e, lines);
+                }
+            }
+        }
 
-        g2.setColor(FORCESPIRE_BACKGROUND_COLOR);
-        g2.fillRect(0, 0, getWidth(), getHeight());
-
-        /* Paint all the edges */
-        Iterator<Edge> edges = controller.getEdgeIterator();
-        while (edges.hasNext()) {
-            paintEdge(g2, edges.next());
+        /* Paint the nodes in the clip on top */
+        if (gridStale) {
+            rebuildGrid(fm);
         }
-        /* Paint the nodes on top */
-        Iterator<Node> nodes = controller.getNodeIterator();
-        Node n;
-        while (nodes.hasNext()) {
-            n = nodes.next();
-            //only paint closed nodes
-            if (!n.isOpen()) {
-                paintNode(g2, n);
+        boolean labelAll = readable && labelsFit(fm);
+        for (Node n : nodeGrid.query(clip)) {
+            //only paint closed nodes, big enough to be seen
+            if (n.isOpen()) {
+                paintedNodes.remove(n.getID());
+            } else if (n.getWidth() * scale >= 1.0) {
+                boolean label = labelAll || (readable
+                        && (controller.isSelected(n) || n.getQuartile() == 0));
+                paintNode(g2, n, label);
             }
         }
 
@@ -174,21 +327,88 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
     }
 
     /**
-     * Draws the given edge on the screen.
+     * Redraws the background and edge layer if it was invalidated.
+     * The layer is reallocated when the view size changes.
+     */
+    private void paintEdgeLayer() {
+        int w = Math.max(1, getWidth());
+        int h = Math.max(1, getHeight());
+        if (edgeLayer == null || edgeLayer.getWidth() != w || edgeLayer.getHeight() != h) {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            if (gc != null) {
+                edgeLayer = gc.createCompatibleImage(w, h);
+            } else {
+                edgeLayer = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            }
+            edgeLayerValid = false;
+        }
+        if (edgeLayerValid) {
+            return;
+        }
+        //mark valid first, changes that come in while drawing invalidate it again
+        edgeLayerValid = true;
+        Graphics2D g = edgeLayer.createGraphics();
+        try {
+            g.setColor(FORCESPIRE_BACKGROUND_COLOR);
+            g.fillRect(0, 0, w, h);
+
+            /* Paint the edges of the selected node */
+            for (Edge e : shownEdges()) {
+                paintEdge(g, e);
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * The edges that are drawn, the ones of the selected node.
+     * @return copy of the selected node's edge list, empty if none selected
+     */
+    private ArrayList<Edge> shownEdges() {
+        Node selected = controller.getGraphSelected();
+        if (selected == null) {
+            return new ArrayList<Edge>();
+        }
+        return new ArrayList<Edge>(selected.getEdgeList());
+    }
+
+    /**
+     * Re-files every node in the grid, in paint order.
+     * @param fm font metrics used for the labels
+     */
+    private void rebuildGrid(FontMetrics fm) {
+        gridStale = false;
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        ArrayList<Rectangle> bounds = new ArrayList<Rectangle>();
+        Iterator<Node> iter = controller.getNodeIterator();
+        while (iter.hasNext()) {
+            Node n = iter.next();
+            nodes.add(n);
+            bounds.add(nodeBounds(n, fm));
+        }
+        nodeGrid.rebuild(nodes, bounds);
+    }
+
+    /**
+     * Guesses if all the node labels fit in the view without piling up.
+     * @param fm font metrics used for the labels
+     * @return true if every node can be labeled
+     */
+    private boolean labelsFit(FontMetrics fm) {
+        double labelArea = (double) fm.getHeight() * fm.charWidth('n') * TYPICAL_LABEL_CHARS;
+        double viewArea = Math.max(1, getWidth()) * (double) Math.max(1, getHeight());
+        return nodeGrid.size() * labelArea <= viewArea * MAX_LABEL_COVERAGE;
+    }
+
+    /**
+     * Draws the given edge in the edge layer.
      * uses graphics 2d.
-     * The entities contained in the edge are drawn,
-     * in order of weight of entities.
      * @param g graphics2D object
      * @param e edge to draw
      */
     private void paintEdge(Graphics2D g, Edge e) {
-
-        //print entities
-        int x = Math.min(e.getNode1().getX(), e.getNode2().getX())
-                + Math.abs(e.getNode1().getX() - e.getNode2().getX()) / 2;
-        int y = Math.min(e.getNode1().getY(), e.getNode2().getY())
-                + Math.abs(e.getNode1().getY() - e.getNode2().getY()) / 2;
-        boolean selected = controller.isSelected(e.getNode1()) || controller.isSelected(e.getNode2());
+        boolean selected = isEdgeShown(e);
 
         line.setLine(e.getNode1().getX(), e.getNode1().getY(),
                 e.getNode2().getX(), e.getNode2().getY());
@@ -198,25 +418,62 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
             g.setPaint(EDGE_SELECTED_COLOR);
             g.setStroke(STROKE);
             g.draw(line);
+        }
+    }
+
+    /**
+     * Draws the entities of an edge of the selected node,
+     * in order of weight of entities.
+     * These go on top of the edge layer.
+     * @param g graphics2D object
+     * @param e edge to label
+     * @param lines most label lines to draw
+     */
+    private void paintEdgeLabels(Graphics2D g, Edge e, int lines) {
+        if (isEdgeShown(e)) {
+            //print entities
+            Point mid = edgeMidpoint(e);
 
             g.setPaint(EDGE_LABEL_COLOR);
-            String[] ents = e.entitiesToStringSorted();
-            String[] entList;
-            if(ents.length <= ENTITY_LIST_MAX) {
-                entList = ents;
-            }
-            else {
-                entList = new String[ENTITY_LIST_MAX + 1];
-                for(int i = 0; i < entList.length - 1; i++) {
-                    entList[i] = ents[i];
-                }
-                entList[ENTITY_LIST_MAX] = "(" + (ents.length - ENTITY_LIST_MAX) + " more)";
+            String[] entList = edgeLabels(e);
+            for (int i = 0; i < Math.min(lines, entList.length); i++) {
+                g.drawString(entList[i], mid.x, mid.y + i * LABEL_LINE_HEIGHT);
             }
-            
-            for (int i = 0; i < entList.length; i++) {
-                g.drawString(entList[i], x, y + i * 10);
+        }
+    }
+
+    /**
+     * The labels shown for an edge, its strongest entities first.
+     * @param e edge
+     * @return at most ENTITY_LIST_MAX entities plus a "more" line
+     */
+    private String[] edgeLabels(Edge e) {
+        String[] ents = e.entitiesToStringSorted();
+        String[] entList;
+        if(ents.length <= ENTITY_LIST_MAX) {
+            entList = ents;
+        }
+        else {
+            entList = new String[ENTITY_LIST_MAX + 1];
+            for(int i = 0; i < entList.length - 1; i++) {
+                entList[i] = ents[i];
             }
+            entList[ENTITY_LIST_MAX] = "(" + (ents.length - ENTITY_LIST_MAX) + " more)";
         }
+        return entList;
+    }
+
+    /**
+     * Where the labels of an edge start.
+     * @param e edge
+     * @return middle of the edge
+     */
+    private Point edgeMidpoint(Edge e) {
+        int x = Math.min(e.getNode1().getX(), e.getNode2().getX())
+                + Math.abs(e.getNode1().getX() - e.getNode2().getX()) / 2;
+        int y = Math.min(e.getNode1().getY(), e.getNode2().getY())
+                + Math.abs(e.getNode1().getY() - e.getNode2().getY()) / 2;
+        return new Point(x, y);
     }
 
     /**
@@ -261,8 +518,9 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
      * uses graphics 2D.
      * @param g Graphics2D object
      * @param n node to draw.
+     * @param label true to draw the node name
      */
-    private void paintNode(Graphics2D g, Node n) {
+    private void paintNode(Graphics2D g, Node n, boolean label) {
         /**
          * Set up
          */
@@ -272,22 +530,17 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
         /**
          * Specific actions based on node type
          */
-        if (n instanceof DocumentNode) {
-            /* Document Node Stuff */
-            if (PRINT_NODE_NAME && !n.isOpen()) {
-            	g.setColor(Color.BLACK);
-                g.drawString(((DocumentNode) n).getDocument().getName(), n.getX() + (n.getWidth() / 2) + 5, n.getY());
+        if (label) {
+            String text = nodeLabel(n);
+            if (text != null) {
+                g.setColor(Color.BLACK);
+                g.drawString(text, labelX(n), n.getY());
             }
         }
-        if (n instanceof SearchNode) {
-            /* Search Node Stuff */
-            SearchNode s = (SearchNode) n;
-            //if(!n.isOpen()) {
-            //if (!s.isOpen() && s.getSearch() != null) {
-            	g.setColor(Color.BLACK);
-                g.drawString(s.getSearch().getSearchTerm(), n.getX() + 10, n.getY());
-            //}
-        }
+        //remember what was covered so moves can repaint just that
+        Rectangle bounds = nodeBounds(n, g.getFontMetrics());
+        paintedNodes.put(n.getID(), new PaintedNode(bounds, n.getX(), n.getY()));
+        nodeGrid.update(n, bounds);
 
 
         /**
@@ -361,7 +614,6 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
             g.setStroke(THICK_STROKE);
         }
         g.draw(node);
-        repaint();
         g.setStroke(STROKE);
         g.setPaint(Color.black);
     }
@@ -374,8 +626,120 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
     private Rectangle shapeRectangle(Node n) {
         int x = n.getX() - n.getWidth() / 2;
         int y = n.getY() - n.getHeight() / 2;
-        return new Rectangle(x - 5, y - 5,
-                x + n.getWidth() + 5, y + n.getHeight() + 5);
+        return new Rectangle(x - NODE_MARGIN, y - NODE_MARGIN,
+                n.getWidth() + 2 * NODE_MARGIN, n.getHeight() + 2 * NODE_MARGIN);
+    }
+
+    /**
+     * The name printed next to a node.
+     * @param n node
+     * @return document name or search term, null if there's nothing to print
+     */
+    private String nodeLabel(Node n) {
+        if (n instanceof DocumentNode) {
+            /* Document Node Stuff */
+            if (PRINT_NODE_NAME) {
+                return ((DocumentNode) n).getDocument().getName();
+            }
+        } else if (n instanceof SearchNode) {
+            /* Search Node Stuff */
+            Search s = ((SearchNode) n).getSearch();
+            if (s != null) {
+                return s.getSearchTerm();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Where the label of a node starts.
+     * @param n node
+     * @return x of the label baseline
+     */
+    private int labelX(Node n) {
+        if (n instanceof SearchNode) {
+            return n.getX() + 10;
+        }
+        return n.getX() + (n.getWidth() / 2) + 5;
+    }
+
+    /**
+     * Area a node covers with its label, whether the label is drawn or not.
+     * @param n node
+     * @param fm font metrics used for the label
+     * @return bounding rectangle of the node and its label
+     */
+    private Rectangle nodeBounds(Node n, FontMetrics fm) {
+        Rectangle r = shapeRectangle(n);
+        String text = nodeLabel(n);
+        if (text != null) {
+            r.add(new Rectangle(labelX(n), n.getY() - fm.getAscent(),
+                    fm.stringWidth(text), fm.getHeight()));
+        }
+        return r;
+    }
+
+    /**
+     * Rectangle a node covered the last time it was painted, labels included.
+     * Falls back on the shape rectangle for nodes that weren't painted yet.
+     * @param n node
+     * @return bounding rectangle of the last paint
+     */
+    private Rectangle paintedRectangle(Node n) {
+        PaintedNode p = paintedNodes.get(n.getID());
+        if (p == null) {
+            return shapeRectangle(n);
+        }
+        return new Rectangle(p.bounds);
+    }
+
+    /**
+     * Rectangle covering where a node was last painted and where it is now.
+     * The label is assumed to keep its size.
+     * @param n node that changed
+     * @return area to repaint for this node
+     */
+    private Rectangle nodeChangeRectangle(Node n) {
+        Rectangle r = shapeRectangle(n);
+        PaintedNode p = paintedNodes.get(n.getID());
+        if (p != null) {
+            r.add(p.bounds);
+            Rectangle moved = new Rectangle(p.bounds);
+            moved.translate(n.getX() - p.x, n.getY() - p.y);
+            r.add(moved);
+        }
+        return r;
+    }
+
+    /**
+     * Finds if an edge is drawn, only edges of the selected node are.
+     * @param e edge to check
+     * @return true if one of the ends is selected
+     */
+    private boolean isEdgeShown(Edge e) {
+        return controller.isSelected(e.getNode1()) || controller.isSelected(e.getNode2());
+    }
+
+    /**
+     * Rectangle covering an edge and its labels.
+     * @param e edge
+     * @return area to repaint for this edge
+     */
+    private Rectangle edgeRectangle(Edge e) {
+        Rectangle r = shapeRectangle(e);
+        //no font until the view is in a window, nothing is painted before that
+        if (isEdgeShown(e) && getFont() != null) {
+            FontMetrics fm = getFontMetrics(getFont());
+            String[] labels = edgeLabels(e);
+            int w = 0;
+            for (String l : labels) {
+                w = Math.max(w, fm.stringWidth(l));
+            }
+            Point mid = edgeMidpoint(e);
+            r.add(new Rectangle(mid.x, mid.y - fm.getAscent(),
+                    w, labels.length * LABEL_LINE_HEIGHT + fm.getHeight()));
+        }
+        return r;
     }
 
     /**
@@ -608,8 +972,9 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
      * @param n Node
      */
     public void nodeAdded(Node n) {
+        gridStale = true;
         if (n instanceof DocumentNode) {
-            repaint(shapeRectangle(n));
+            markDirty(shapeRectangle(n));
             GraphDocumentView o = new GraphDocumentView(((DocumentNode) n), controller);
             o.addMouseListener(new MouseListener() {
 
@@ -636,7 +1001,7 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
             } catch (PropertyVetoException ex) {
             }
         } else if (n instanceof SearchNode) {
-            repaint(shapeRectangle(n));
+            markDirty(shapeRectangle(n));
             GraphSearchView o = new GraphSearchView(((SearchNode) n), controller);
             openSearches.add(o);
             add(o);
@@ -665,6 +1030,7 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
                 }
             }
         }
+        markDirty(nodeChangeRectangle(n));
     }
 
     /**
@@ -685,6 +1051,7 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
                 }
             }
         }
+        markDirty(nodeChangeRectangle(n));
     }
 
     /**
@@ -709,7 +1076,8 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
         }
 
 
-        repaint(shapeRectangle(n));
+        refileNode(n);
+        markDirty(nodeChangeRectangle(n));
     }
 
     /**
@@ -717,6 +1085,7 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
      * @param n Node
      */
     public void nodeMoved(Node n) {
+        refileNode(n);
         if (n.isOpen()) {
             if (n instanceof DocumentNode) {
                 for (GraphDocumentView g : openDocuments) {
@@ -734,7 +1103,20 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
             
             
         }
-        repaint();
+        //edges are only drawn for the selected node
+        boolean edgesShown = controller.isSelected(n);
+        for (Edge e : n.getEdgeList()) {
+            if (edgesShown) {
+                break;
+            }
+            edgesShown = isEdgeShown(e);
+        }
+        if (edgesShown) {
+            //edges and their labels moved too
+            invalidateEdgeLayer(null);
+        } else {
+            markDirty(nodeChangeRectangle(n));
+        }
     }
 
     /**
@@ -742,7 +1124,9 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
      * @param n Node
      */
     public void nodeRemoved(Node n) {
-        repaint(shapeRectangle(n));
+        gridStale = true;
+        invalidateEdgeLayer(nodeChangeRectangle(n));
+        paintedNodes.remove(n.getID());
         if (n instanceof DocumentNode) {
             GraphDocumentView remove = null;
             for (GraphDocumentView o : openDocuments) {
@@ -753,6 +1137,7 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
             }
             if (remove != null) {
                 openDocuments.remove(remove);
+                remove.detach();
                 remove(remove);
             }
         } else if (n instanceof SearchNode) {
@@ -776,7 +1161,7 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
      * @param n Node
      */
     public void nodeSelected(Node n) {
-        repaint();
+        repaintAll();
         // check for linking
         if (controller.isLinking()) {
             linkDocumentsAdd(n); //LINKS WHEN DOC IS SELECTED?
@@ -822,7 +1207,7 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
      * @param e edge
      */
     public void edgeAdded(Edge e) {
-        repaint(shapeRectangle(e));
+        edgeChanged(e);
     }
 
     /**
@@ -830,7 +1215,7 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
      * @param e edge
      */
     public void edgeModified(Edge e) {
-        repaint(shapeRectangle(e));
+        edgeChanged(e);
     }
 
     /**
@@ -838,7 +1223,34 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
      * @param e edge
      */
     public void edgeRemoved(Edge e) {
-        repaint(shapeRectangle(e));
+        edgeChanged(e);
+    }
+
+    /**
+     * Moves a node to its new place in the grid.
+     * Called from the layout thread as well as the EDT.
+     * @param n node that moved or changed
+     */
+    private void refileNode(Node n) {
+        Font font = getFont();
+        if (font == null) {
+            //not in a window yet, the grid gets built on the first paint
+            gridStale = true;
+            return;
+        }
+        nodeGrid.update(n, nodeBounds(n, getFontMetrics(font)));
+    }
+
+    /**
+     * Repaint an edge that changed, only edges that are drawn affect the layer.
+     * @param e edge
+     */
+    private void edgeChanged(Edge e) {
+        if (isEdgeShown(e)) {
+            invalidateEdgeLayer(edgeRectangle(e));
+        } else {
+            markDirty(shapeRectangle(e));
+        }
     }
 
     /**
@@ -852,7 +1264,7 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
         for (GraphDocumentView g : openDocuments) {
             g.refresh();
         }
-        repaint();
+        markDirty(null);
     }
 
     /**
@@ -902,8 +1314,8 @@ public class GraphView extends JDesktopPane implements MouseListener, MouseMotio
            controller.findNode(dn).setQuartile(dn.getQuartile());
         }
         
-        
-        repaint();
+        //node colors may all have changed, the edges didn't
+        markDirty(null);
     }
 
     /**
@@ -0,0 +1,223 @@
+package starspire.views;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import starspire.models.Node;
+
+/**
+ * Spatial index for the graph view. The view area is cut in square cells
+ * and each node is kept in the cells its painted bounds (node and label)
+ * overlap, so painting only has to look at the nodes inside the clip.
+ *
+ * Nodes are moved by the layout thread while the EDT paints so every
+ * method is synchronized.
+ *
+ * @author Patrick Fiaux, Alex Endert, Lauren Bradel
+ */
+class NodeGrid {
+
+    private final static int DEFAULT_CELL_SIZE = 128;
+    private final int cellSize;
+    private final HashMap<Long, ArrayList<Entry>> cells;
+    private final HashMap<Integer, Entry> entries;
+
+    /**
+     * A node in the grid, with the bounds it was filed under and its paint
+     * order (nodes painted later are on top).
+     */
+    private static class Entry {
+
+        private final Node node;
+        private final int order;
+        private Rectangle bounds;
+
+        Entry(Node node, int order, Rectangle bounds) {
+            this.node = node;
+            this.order = order;
+            this.bounds = bounds;
+        }
+    }
+
+    /**
+     * Default constructor, uses the default cell size.
+     */
+    NodeGrid() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Constructor with a cell size.
+     * @param cellSize width and height of a cell in pixels
+     */
+    NodeGrid(int cellSize) {
+        this.cellSize = cellSize;
+        cells = new HashMap<Long, ArrayList<Entry>>();
+        entries = new HashMap<Integer, Entry>();
+    }
+
+    /**
+     * Empties the grid and files all the given nodes, in paint order.
+     * @param nodes nodes in the order they're painted
+     * @param bounds bounds for each node, same order
+     */
+    synchronized void rebuild(ArrayList<Node> nodes, ArrayList<Rectangle> bounds) {
+        cells.clear();
+        entries.clear();
+        for (int i = 0; i < nodes.size(); i++) {
+            Entry e = new Entry(nodes.get(i), i, new Rectangle(bounds.get(i)));
+            entries.put(e.node.getID(), e);
+            file(e);
+        }
+    }
+
+    /**
+     * Refiles a node that moved or changed size.
+     * Nodes that aren't in the grid yet are ignored, they come in on rebuild.
+     * @param n node
+     * @param bounds new bounds of the node
+     */
+    synchronized void update(Node n, Rectangle bounds) {
+        Entry e = entries.get(n.getID());
+        if (e == null) {
+            return;
+        }
+        if (cellRange(e.bounds).equals(cellRange(bounds))) {
+            //same cells, no need to move it around
+            e.bounds = new Rectangle(bounds);
+            return;
+        }
+        unfile(e);
+        e.bounds = new Rectangle(bounds);
+        file(e);
+    }
+
+    /**
+     * Finds the nodes whose bounds intersect the given area.
+     * @param area region to look in (the clip)
+     * @return nodes in the area, in paint order
+     */
+    synchronized ArrayList<Node> query(Rectangle area) {
+        ArrayList<Entry> found = new ArrayList<Entry>();
+        HashSet<Entry> seen = new HashSet<Entry>();
+        Rectangle range = cellRange(area);
+        for (int cx = range.x; cx < range.x + range.width; cx++) {
+            for (int cy = range.y; cy < range.y + range.height; cy++) {
+                ArrayList<Entry> cell = cells.get(key(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (Entry e : cell) {
+                    if (e.bounds.intersects(area) && seen.add(e)) {
+                        found.add(e);
+                    }
+                }
+            }
+        }
+        Collections.sort(found, new Comparator<Entry>() {
+
+            public int compare(Entry a, Entry b) {
+                return a.order - b.order;
+            }
+        });
+        ArrayList<Node> nodes = new ArrayList<Node>(found.size());
+        for (Entry e : found) {
+            nodes.add(e.node);
+        }
+        return nodes;
+    }
+
+    /**
+     * Number of nodes in the grid.
+     * @return node count
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Adds an entry to all the cells its bounds overlap.
+     * @param e entry to file
+     */
+    private void file(Entry e) {
+        Rectangle range = cellRange(e.bounds);
+        for (int cx = range.x; cx < range.x + range.width; cx++) {
+            for (int cy = range.y; cy < range.y + range.height; cy++) {
+                Long k = key(cx, cy);
+                ArrayList<Entry> cell = cells.get(k);
+                if (cell == null) {
+                    cell = new ArrayList<Entry>(4);
+                    cells.put(k, cell);
+                }
+                cell.add(e);
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from the cells it was filed in.
+     * @param e entry to remove
+     */
+    private void unfile(Entry e) {
+        Rectangle range = cellRange(e.bounds);
+        for (int cx = range.x; cx < range.x + range.width; cx++) {
+            for (int cy = range.y; cy < range.y + range.height; cy++) {
+                Long k = key(cx, cy);
+                ArrayList<Entry> cell = cells.get(k);
+                if (cell != null) {
+                    Iterator<Entry> it = cell.iterator();
+                    while (it.hasNext()) {
+                        if (it.next() == e) {
+                            it.remove();
+                        }
+                    }
+                    if (cell.isEmpty()) {
+                        cells.remove(k);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a pixel rectangle into the range of cells it covers.
+     * @param r pixel rectangle
+     * @return x, y of the first cell and the number of cells across and down
+     */
+    private Rectangle cellRange(Rectangle r) {
+        int x1 = floorDiv(r.x, cellSize);
+        int y1 = floorDiv(r.y, cellSize);
+        int x2 = floorDiv(r.x + Math.max(r.width, 1) - 1, cellSize);
+        int y2 = floorDiv(r.y + Math.max(r.height, 1) - 1, cellSize);
+        return new Rectangle(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+    }
+
+    /**
+     * Division rounding towards negative infinity, nodes can be dragged
+     * past the top left corner.
+     * @param a dividend
+     * @param b divisor (positive)
+     * @return floor of a / b
+     */
+    private static int floorDiv(int a, int b) {
+        int q = a / b;
+        if (a % b != 0 && a < 0) {
+            q--;
+        }
+        return q;
+    }
+
+    /**
+     * Packs cell coordinates into a map key.
+     * @param cx cell column
+     * @param cy cell row
+     * @return key for the cell
+     */
+    private static Long key(int cx, int cy) {
+        return Long.valueOf(((long) cx << 32) | (cy & 0xffffffffL));
+    }
+}
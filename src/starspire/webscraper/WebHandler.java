@@ -44,13 +44,24 @@ public class WebHandler {
      */
     public void retrieveBingArticles(DataModel data,String query)   {
         
+        for(Document doc : this.fetchBingDocuments(query))   {
+            data.addDocument(doc);
+        }
+    }
+
+    /**
+     * Fetches Bing articles as documents without touching the data model.
+     * Safe to call off the EDT, adding them is up to the caller.
+     * @param query search query
+     * @return documents made from the articles found
+     */
+    public List<Document> fetchBingDocuments(String query) {
         List<Article> articles = this.getBingArticles(query);
-        
-        Document doc = null;
+        List<Document> fetched = new ArrayList<Document>(articles.size());
         for(Article a : articles)   {
-            doc = new Document(a.getContent(), a.getTitle(), a.getUrl());
-            data.addDocument(doc);
+            fetched.add(new Document(a.getContent(), a.getTitle(), a.getUrl()));
         }
+        return fetched;
     }
     private String currentURL = "";
 
@@ -61,13 +72,24 @@ public class WebHandler {
      */
     public void retrieveIEEEArticles(DataModel data, String query) {
 
+        for (Document doc : this.fetchIEEEDocuments(query)) {
+            data.addDocument(doc);
+        }
+    }
+
+    /**
+     * Fetches IEEE articles as documents without touching the data model.
+     * Safe to call off the EDT, adding them is up to the caller.
+     * @param query search query
+     * @return documents made from the articles found
+     */
+    public List<Document> fetchIEEEDocuments(String query) {
         List<Article> articles = this.getIEEEArticles(query);
-        
-        starspire.models.Document doc = null;
+        List<Document> fetched = new ArrayList<Document>(articles.size());
         for (Article a : articles) {
-            doc = new starspire.models.Document(a.getContent(), a.getTitle());
-            data.addDocument(doc);
+            fetched.add(new Document(a.getContent(), a.getTitle()));
         }
+        return fetched;
     }
 
     /**
@@ -335,4 +357,4 @@ public class WebHandler {
         return (ret);
     }
                 
-    }
\ No newline at end of file
+    }
\ No newline at end of file